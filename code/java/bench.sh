@@ -0,0 +1,9 @@
+#! /bin/bash
+CLASS=$1
+shift
+
+# Example: ./bench.sh BookingStress flightDB 5432 user
+rm -rf ./bin
+mkdir bin
+javac -cp "lib/*" src/*.java bench/*.java -d bin/
+java -cp lib/*:bin/ $CLASS "$@"
@@ -0,0 +1,110 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress harness for the BookingEngine. Every round fills one flight on a
+ * far future date up to a few seats short of capacity, then lets many
+ * threads race to book the remaining seats for more passengers than there
+ * are seats left. After each round the number of bookings is checked
+ * against the seat count and against the SeatInventory row, and no seat
+ * may be booked twice.
+ *
+ * Usage: BookingStress <dbname> <port> <user> [threads] [rounds] [free seats]
+ */
+
+public class BookingStress{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java BookingStress <dbname> <port> <user> [threads] [rounds] [free seats]");
+			return;
+		}
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+		int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+		int free = args.length > 5 ? Integer.parseInt(args[5]) : 20;
+		System.setProperty("airbooking.pool.size", Integer.toString(threads));
+
+		final AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		final BookingEngine engine = new BookingEngine(esql, AirBooking.BOOKING_ATTEMPTS);
+		try{
+			List<List<String>> flight = esql.executeQueryAndReturnResult("SELECT flightNum, seats FROM Flight ORDER BY seats LIMIT 1");
+			final String flightNum = flight.get(0).get(0).trim();
+			int seats = Integer.parseInt(flight.get(0).get(1));
+			final java.sql.Date departure = java.sql.Date.valueOf("2099-12-31");
+			List<Integer> pids = new ArrayList<Integer>();
+			for(List<String> row : esql.executeQueryAndReturnResult("SELECT pid FROM Passenger")){
+				pids.add(Integer.parseInt(row.get(0)));
+			}
+			if(pids.size() <= seats){
+				System.err.println("Need more passengers than the " + seats + " seats of " + flightNum);
+				return;
+			}
+			System.out.println("Flight " + flightNum + " with " + seats + " seats, " + free + " left free, " +
+				(pids.size() - seats + free) + " passengers racing on " + threads + " threads");
+
+			long attempts = 0;
+			long nanos = 0;
+			int oversold = 0;
+			for(int round = 0; round < rounds; ++round){
+				esql.executeUpdate("DELETE FROM Booking WHERE flightNum = ? AND departure = ?", flightNum, departure);
+				esql.getSeatMaps().invalidate(flightNum, departure);
+				Collections.shuffle(pids);
+				for(int i = 0; i < seats - free; ++i){
+					engine.book(pids.get(i), flightNum, departure, 0);
+				}
+
+				final List<Integer> racers = pids.subList(seats - free, pids.size());
+				final AtomicInteger next = new AtomicInteger();
+				final AtomicInteger booked = new AtomicInteger();
+				final CountDownLatch start = new CountDownLatch(1);
+				final CountDownLatch done = new CountDownLatch(threads);
+				for(int t = 0; t < threads; ++t){
+					new Thread(new Runnable(){
+						public void run(){
+							try{
+								start.await();
+								int i;
+								while((i = next.getAndIncrement()) < racers.size()){
+									if(engine.book(racers.get(i), flightNum, departure, 0).isBooked()){
+										booked.incrementAndGet();
+									}
+								}
+							}catch(Exception e){
+								System.err.println(e);
+							}finally{
+								done.countDown();
+							}
+						}
+					}).start();
+				}
+				long begin = System.nanoTime();
+				start.countDown();
+				done.await();
+				nanos += System.nanoTime() - begin;
+				attempts += racers.size();
+
+				List<String> counts = esql.executeQueryAndReturnResult(
+					"SELECT COUNT(*), COUNT(seat), COUNT(DISTINCT seat) FROM Booking WHERE flightNum = ? AND departure = ?", flightNum, departure).get(0);
+				int rows = Integer.parseInt(counts.get(0));
+				int seated = Integer.parseInt(counts.get(1));
+				int distinctSeats = Integer.parseInt(counts.get(2));
+				SeatAvailability inventory = SeatInventory.getAvailability(esql, flightNum, departure);
+				if(rows > seats || rows != inventory.booked || booked.get() != free || seated != distinctSeats){
+					++oversold;
+					System.out.println("Round " + round + ": " + rows + " bookings, inventory says " + inventory.booked +
+						", " + booked.get() + " racers booked, " + seated + " seated on " + distinctSeats + " seats");
+				}
+			}
+			esql.executeUpdate("DELETE FROM Booking WHERE flightNum = ? AND departure = ?", flightNum, departure);
+
+			System.out.println("Rounds: " + rounds + ", failed rounds: " + oversold);
+			System.out.println("Contended booking attempts: " + attempts + " in " + (nanos / 1000000) + " ms, " +
+				(long) (attempts / (nanos / 1e9)) + " attempts/sec");
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
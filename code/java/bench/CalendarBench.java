@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Times a seat calendar, the seats of many flights on every day of a
+ * range, three ways:
+ *
+ *   per day - SeatInventory.getAvailability for every flight and day, a
+ *             query each
+ *   cold    - AirBookingService.getCalendar with empty seat maps and no
+ *             flights in the reference data cache
+ *   warm    - AirBookingService.getCalendar again, from the cached maps
+ *
+ * and counts the statements each one ran (see QueryMetrics).
+ *
+ * Usage: CalendarBench <dbname> <port> <user> [flights] [days] [rounds]
+ */
+
+public class CalendarBench{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java CalendarBench <dbname> <port> <user> [flights] [days] [rounds]");
+			return;
+		}
+		int flightCount = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+		int dayCount = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+		int rounds = args.length > 5 ? Integer.parseInt(args[5]) : 20;
+		System.setProperty("airbooking.seats.maxAgeMillis", "60000");
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			List<List<String>> busiest = esql.executeQueryAndReturnResult(
+				"SELECT flightNum, MIN(departure) FROM SeatInventory GROUP BY flightNum ORDER BY SUM(booked) DESC LIMIT ?", flightCount);
+			if(busiest.isEmpty()){
+				System.err.println("No booked flights; load a data set first.");
+				return;
+			}
+			List<String> flights = new ArrayList<String>();
+			java.sql.Date from = java.sql.Date.valueOf(busiest.get(0).get(1));
+			for(List<String> row : busiest){
+				flights.add(row.get(0).trim());
+			}
+			Calendar end = Calendar.getInstance();
+			end.setTime(from);
+			end.add(Calendar.DAY_OF_MONTH, dayCount - 1);
+			java.sql.Date to = new java.sql.Date(end.getTimeInMillis());
+
+			Latency perDay = new Latency();
+			Latency cold = new Latency();
+			Latency warm = new Latency();
+			long perDayStatements = 0, coldStatements = 0, warmStatements = 0;
+			// one warm-up round, then the measured rounds
+			for(int round = 0; round <= rounds; ++round){
+				long statements = statements(esql);
+				long begin = System.nanoTime();
+				for(String flightNum : flights){
+					for(java.sql.Date day = from; !day.after(to); day = java.sql.Date.valueOf(day.toLocalDate().plusDays(1))){
+						SeatInventory.getAvailability(esql, flightNum, day);
+					}
+				}
+				long perDayNanos = System.nanoTime() - begin;
+				long perDayCount = statements(esql) - statements;
+
+				esql.getSeatMaps().getCache().clear();
+				esql.getReferenceData().getFlightCache().clear();
+				statements = statements(esql);
+				begin = System.nanoTime();
+				esql.getService().getCalendar(flights, from, to);
+				long coldNanos = System.nanoTime() - begin;
+				long coldCount = statements(esql) - statements;
+
+				statements = statements(esql);
+				begin = System.nanoTime();
+				esql.getService().getCalendar(flights, from, to);
+				long warmNanos = System.nanoTime() - begin;
+				long warmCount = statements(esql) - statements;
+				if(round > 0){
+					perDay.record(perDayNanos);
+					cold.record(coldNanos);
+					warm.record(warmNanos);
+					perDayStatements += perDayCount;
+					coldStatements += coldCount;
+					warmStatements += warmCount;
+				}
+			}
+			System.out.println(flights.size() + " flights x " + dayCount + " days from " + from + ", " + rounds + " rounds");
+			System.out.println("  per day " + perDay + " statements/calendar=" + perDayStatements / rounds);
+			System.out.println("  cold    " + cold + " statements/calendar=" + coldStatements / rounds);
+			System.out.println("  warm    " + warm + " statements/calendar=" + warmStatements / rounds);
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Returns how many statements have run so far.
+	 */
+	static long statements(AirBooking esql){
+		long count = 0;
+		for(QueryMetrics.Operation operation : esql.getMetrics().getOperations().values()){
+			count += operation.getCount();
+		}
+		return count;
+	}
+}
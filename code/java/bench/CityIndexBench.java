@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times CityIndex lookups on the cities of a loaded data set, against the
+ * query options 5 and 8 used to find out that a city has no flights:
+ *
+ *   query    - SELECT 1 FROM Flight WHERE origin = ? LIMIT 1
+ *   exact    - resolve of a city as typed in the database
+ *   case     - resolve of a city in upper case
+ *   typo     - resolve of a city with one letter changed
+ *   complete - the 10 completions of the first two letters of a city
+ *
+ * Usage: CityIndexBench <dbname> <port> <user> [lookups]
+ */
+
+public class CityIndexBench{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java CityIndexBench <dbname> <port> <user> [lookups]");
+			return;
+		}
+		int lookups = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			long begin = System.nanoTime();
+			CityIndex cities = esql.getCities();
+			System.out.println(cities.size() + " cities loaded in " + (System.nanoTime() - begin) / 1000 + " us");
+			List<List<String>> rows = esql.executeQueryAndReturnResult("SELECT DISTINCT origin FROM Flight");
+			if(rows.isEmpty()){
+				System.err.println("No flights; load a data set first.");
+				return;
+			}
+			List<String> names = new ArrayList<String>();
+			List<String> typos = new ArrayList<String>();
+			Random random = new Random(42);
+			for(List<String> row : rows){
+				String name = row.get(0).trim();
+				names.add(name);
+				char[] typo = name.toCharArray();
+				typo[random.nextInt(typo.length)] = (char) ('a' + random.nextInt(26));
+				typos.add(new String(typo));
+			}
+
+			Latency query = new Latency();
+			Latency exact = new Latency();
+			Latency upper = new Latency();
+			Latency typo = new Latency();
+			Latency complete = new Latency();
+			int corrected = 0;
+			// one warm-up pass, then the measured pass
+			for(int pass = 0; pass < 2; ++pass){
+				corrected = 0;
+				for(int i = 0; i < lookups; ++i){
+					String name = names.get(i % names.size());
+					String upperName = name.toUpperCase();
+					begin = System.nanoTime();
+					if(i < 1000){
+						esql.executeQueryAndReturnResult("SELECT 1 FROM Flight WHERE origin = ? LIMIT 1", name);
+					}
+					long queryNanos = System.nanoTime() - begin;
+					begin = System.nanoTime();
+					cities.resolve(name);
+					long exactNanos = System.nanoTime() - begin;
+					begin = System.nanoTime();
+					cities.resolve(upperName);
+					long upperNanos = System.nanoTime() - begin;
+					begin = System.nanoTime();
+					String resolved = cities.resolve(typos.get(i % typos.size()));
+					long typoNanos = System.nanoTime() - begin;
+					begin = System.nanoTime();
+					cities.complete(name.substring(0, Math.min(2, name.length())), 10);
+					long completeNanos = System.nanoTime() - begin;
+					if(name.equals(resolved)){
+						++corrected;
+					}
+					if(pass == 1){
+						if(i < 1000){
+							query.record(queryNanos);
+						}
+						exact.record(exactNanos);
+						upper.record(upperNanos);
+						typo.record(typoNanos);
+						complete.record(completeNanos);
+					}
+				}
+			}
+			System.out.println("  query    " + query);
+			System.out.println("  exact    " + exact);
+			System.out.println("  case     " + upper);
+			System.out.println("  typo     " + typo + " corrected " + corrected + " of " + lookups);
+			System.out.println("  complete " + complete);
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
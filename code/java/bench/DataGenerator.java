@@ -0,0 +1,187 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Writes a scaled up copy of the CSV files in code/data, in the same
+ * format, for load and query benchmarks. Airlines are copied as they are;
+ * cities and plane types are taken from flights.csv. Every flight gets a
+ * random seat count, and bookings fill every flight to 60-100% of its seats
+ * day after day, starting on 1/1/2015, until the requested number of
+ * bookings is written. Booking references are unique and no passenger is
+ * booked twice on the same flight and date. Four in five ratings get a
+ * comment of 4 to 16 words from a small vocabulary, the first words far more
+ * often than the last, for the review search.
+ *
+ * Usage: DataGenerator <source data folder> <target folder> <bookings> [flights] [passengers]
+ */
+
+public class DataGenerator{
+	private static final String LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	private static final String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
+	private static final String[] WORDS = ("flight crew seat food delay late on time friendly rude clean dirty comfortable " +
+		"cramped legroom boarding gate luggage lost bag staff service great terrible smooth turbulence landing takeoff " +
+		"pilot attendant meal drinks wifi entertainment screen window aisle upgrade refund cancelled rebooked connection " +
+		"missed lounge check-in queue security noisy quiet baby blanket pillow coffee snack price value recommend never " +
+		"again excellent awful").split(" ");
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3){
+			System.err.println("Usage: java DataGenerator <source data folder> <target folder> <bookings> [flights] [passengers]");
+			return;
+		}
+		File source = new File(args[0]);
+		File target = new File(args[1]);
+		long bookings = Long.parseLong(args[2]);
+		int flights = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+		int passengers = args.length > 4 ? Integer.parseInt(args[4]) : (int) Math.max(1000, Math.min(bookings / 20, 20000000));
+		target.mkdirs();
+		Random random = new Random(42);
+		long begin = System.currentTimeMillis();
+
+		List<String> airlines = readLines(new File(source, "airline.csv"));
+		String[] airId = new String[airlines.size()];
+		for(int a = 0; a < airId.length; ++a){
+			airId[a] = airlines.get(a).split(",")[0];
+		}
+		Set<String> cities = new LinkedHashSet<String>();
+		Set<String> planes = new LinkedHashSet<String>();
+		for(String line : readLines(new File(source, "flights.csv"))){
+			String[] f = line.split(",");
+			cities.add(f[2]);
+			cities.add(f[3]);
+			planes.add(f[4]);
+		}
+		String[] city = cities.toArray(new String[0]);
+		String[] plane = planes.toArray(new String[0]);
+
+		BufferedWriter out = writer(target, "airline.csv");
+		for(String line : airlines){
+			out.write(line);
+			out.write('\n');
+		}
+		out.close();
+
+		out = writer(target, "passenger.csv");
+		for(int p = 0; p < passengers; ++p){
+			out.write(Integer.toString(p));
+			out.write(',');
+			out.write(encode(p, LETTERS, 10));
+			out.write(",Passenger ");
+			out.write(Integer.toString(p));
+			out.write(',');
+			out.write((1 + random.nextInt(12)) + "/" + (1 + random.nextInt(28)) + "/" + (1930 + random.nextInt(80)));
+			out.write(',');
+			out.write("Country " + random.nextInt(100));
+			out.write('\n');
+		}
+		out.close();
+
+		String[] flightNum = new String[flights];
+		int[] seats = new int[flights];
+		out = writer(target, "flights.csv");
+		for(int f = 0; f < flights; ++f){
+			flightNum[f] = "SF" + f;
+			seats[f] = 100 + random.nextInt(399);
+			int from = random.nextInt(city.length);
+			int to = (from + 1 + random.nextInt(city.length - 1)) % city.length;
+			out.write(airId[random.nextInt(airId.length)] + "," + flightNum[f] + "," + city[from] + "," + city[to] + "," +
+				plane[random.nextInt(plane.length)] + "," + seats[f] + "," + (1 + random.nextInt(23)));
+			out.write('\n');
+		}
+		out.close();
+
+		out = writer(target, "bookings.csv");
+		Calendar day = new GregorianCalendar(2015, Calendar.JANUARY, 1);
+		long written = 0;
+		while(written < bookings){
+			String date = (day.get(Calendar.MONTH) + 1) + "/" + day.get(Calendar.DAY_OF_MONTH) + "/" + day.get(Calendar.YEAR);
+			for(int f = 0; f < flights && written < bookings; ++f){
+				int booked = (int) (seats[f] * (0.6 + 0.4 * random.nextDouble()));
+				int first = random.nextInt(passengers);
+				for(int s = 0; s < booked && s < passengers && written < bookings; ++s){
+					out.write(encode(written, CHARS, 10));
+					out.write(',');
+					out.write(date);
+					out.write(',');
+					out.write(flightNum[f]);
+					out.write(',');
+					out.write(Integer.toString((first + s) % passengers));
+					out.write('\n');
+					++written;
+				}
+			}
+			day.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		out.close();
+
+		long ratings = bookings / 5;
+		out = writer(target, "ratings.csv");
+		for(long r = 0; r < ratings; ++r){
+			out.write(Long.toString(r));
+			out.write(',');
+			out.write(Integer.toString(random.nextInt(passengers)));
+			out.write(',');
+			out.write(flightNum[random.nextInt(flights)]);
+			out.write(',');
+			out.write(Integer.toString(random.nextInt(6)));
+			out.write(',');
+			if(random.nextInt(5) > 0){
+				int words = 4 + random.nextInt(13);
+				for(int w = 0; w < words; ++w){
+					out.write(w == 0 ? "" : " ");
+					out.write(WORDS[random.nextInt(random.nextInt(WORDS.length) + 1)]);
+				}
+			}else{
+				out.write(' ');
+			}
+			out.write('\n');
+		}
+		out.close();
+
+		System.out.println(passengers + " passengers, " + flights + " flights, " + written + " bookings, " + ratings +
+			" ratings written to " + target + " in " + (System.currentTimeMillis() - begin) + " ms");
+	}
+
+	/**
+	 * Encodes a number as a fixed length string over the given alphabet.
+	 */
+	static String encode(long n, String alphabet, int length){
+		char[] c = new char[length];
+		for(int i = length - 1; i >= 0; --i){
+			c[i] = alphabet.charAt((int) (n % alphabet.length()));
+			n /= alphabet.length();
+		}
+		return new String(c);
+	}
+
+	private static BufferedWriter writer(File dir, String name) throws IOException {
+		return new BufferedWriter(new FileWriter(new File(dir, name)), 1 << 20);
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				if(line.trim().length() > 0){
+					lines.add(line.trim());
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,86 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.sql.SQLException;
+
+/**
+ * Measures how many rows per second a result is written to a file: the
+ * way executeQueryAndPrintResult used to print, a System.out.print per
+ * cell on a PrintStream like System.out, against every format of
+ * ResultWriter through Export. Every way reads the same rows of Booking
+ * with the same fetch size, so the difference is the writing.
+ *
+ * Usage: ExportBench <dbname> <port> <user> [rows] [file]
+ */
+
+public class ExportBench{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java ExportBench <dbname> <port> <user> [rows] [file]");
+			return;
+		}
+		long limit = args.length > 3 ? Long.parseLong(args[3]) : 1000000;
+		File file = new File(args.length > 4 ? args[4] : "/tmp/export-bench.out");
+		String query = "SELECT * FROM Booking LIMIT " + limit;
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			// one warm-up pass, then the measured pass
+			for(int pass = 0; pass < 2; ++pass){
+				StringBuilder line = new StringBuilder();
+				long begin = System.nanoTime();
+				long rows = printed(esql, query, file);
+				line.append("print  ").append(rate(rows, System.nanoTime() - begin, file));
+				for(ResultWriter.Format format : ResultWriter.Format.values()){
+					Writer out = Export.open(file.getPath());
+					begin = System.nanoTime();
+					try{
+						rows = esql.exportQuery(query, format, out);
+					}finally{
+						out.close();
+					}
+					line.append(String.format("%n%-6s ", format.name().toLowerCase())).append(rate(rows, System.nanoTime() - begin, file));
+				}
+				if(pass == 1){
+					System.out.println(line);
+				}
+			}
+		}finally{
+			file.delete();
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Writes the result the way executeQueryAndPrintResult used to.
+	 */
+	static long printed(AirBooking esql, String query, File file) throws Exception {
+		final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)), true, "UTF-8");
+		try{
+			return esql.streamQuery(query, AirBooking.DEFAULT_FETCH_SIZE, new RowHandler(){
+				public void row(Row row) throws SQLException {
+					int numCol = row.getColumnCount();
+					if(row.getNumber() == 1){
+						for(int i = 1; i <= numCol; i++){
+							out.print(row.getColumnName(i) + "\t");
+						}
+						out.println();
+					}
+					for(int i = 1; i <= numCol; ++i){
+						out.print(row.getString(i) + "\t");
+					}
+					out.println();
+				}
+			});
+		}finally{
+			out.close();
+		}
+	}
+
+	static String rate(long rows, long nanos, File file){
+		return rows + " rows in " + nanos / 1000000 + " ms, " + (nanos == 0 ? 0 : rows * 1000000000L / nanos) + " rows/s, " +
+			file.length() + " bytes";
+	}
+}
@@ -0,0 +1,126 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Compares bulk inserts of passengers and ratings with ids assigned by the
+ * getPassengerID / getReviewID triggers against ids reserved in blocks by
+ * SequenceBlocks, which skips the triggers. Both run as JDBC batches of the
+ * same size, one transaction per batch; the rows are deleted again after
+ * every run.
+ *
+ * Usage: IdAllocationBench <dbname> <port> <user> [rows] [batch size]
+ */
+
+public class IdAllocationBench{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java IdAllocationBench <dbname> <port> <user> [rows] [batch size]");
+			return;
+		}
+		final int rows = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+		final int batch = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+
+		final AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			List<List<String>> flight = esql.executeQueryAndReturnResult("SELECT flightNum FROM Flight LIMIT 1");
+			final String flightNum = flight.get(0).get(0).trim();
+			// one warm-up run of each, then the measured runs
+			for(int round = 0; round < 2; ++round){
+				for(final boolean blocks : new boolean[]{false, true}){
+					final String tag = (blocks ? "B" : "T") + round;
+					esql.withConnection(new SqlWork<Void>(){
+						public Void run(PooledConnection conn) throws SQLException {
+							long begin = System.nanoTime();
+							int[] pids = insertPassengers(esql, conn, tag, rows, batch, blocks);
+							long passengers = System.nanoTime() - begin;
+							begin = System.nanoTime();
+							insertRatings(esql, conn, tag, pids, flightNum, batch, blocks);
+							long ratings = System.nanoTime() - begin;
+							if(tag.endsWith("1")){
+								System.out.println((blocks ? "reserved ids: " : "trigger ids:  ") +
+									rate("passengers", rows, passengers) + ", " + rate("ratings", rows, ratings));
+							}
+							conn.executeUpdate("DELETE FROM Ratings WHERE comment = ?", "IdAllocationBench " + tag);
+							conn.executeUpdate("DELETE FROM Passenger WHERE passNum LIKE ?", tag + "%");
+							return null;
+						}
+					});
+				}
+			}
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	static int[] insertPassengers(AirBooking esql, PooledConnection conn, String tag, int rows, int batch, boolean blocks) throws SQLException {
+		Connection c = conn.getConnection();
+		PreparedStatement stmt = conn.prepare(blocks ?
+			"INSERT INTO Passenger (pID, passNum, fullName, bdate, country) VALUES (?, ?, ?, ?, ?)" :
+			"INSERT INTO Passenger (passNum, fullName, bdate, country) VALUES (?, ?, ?, ?)");
+		java.sql.Date bdate = java.sql.Date.valueOf("1980-01-01");
+		c.setAutoCommit(false);
+		try{
+			for(int start = 0; start < rows; start += batch){
+				int n = Math.min(batch, rows - start);
+				int[] ids = blocks ? esql.getPassengerIdSequence().next(conn, n) : null;
+				for(int i = 0; i < n; ++i){
+					int p = 1;
+					if(blocks){
+						stmt.setInt(p++, ids[i]);
+					}
+					stmt.setString(p++, tag + String.format("%08d", start + i));
+					stmt.setString(p++, "Bench Passenger");
+					stmt.setDate(p++, bdate);
+					stmt.setString(p, "Country");
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+				c.commit();
+			}
+		}finally{
+			c.setAutoCommit(true);
+		}
+		List<List<String>> inserted = conn.executeQueryAndReturnResult("SELECT pID FROM Passenger WHERE passNum LIKE ?", tag + "%");
+		int[] pids = new int[inserted.size()];
+		for(int i = 0; i < pids.length; ++i){
+			pids[i] = Integer.parseInt(inserted.get(i).get(0));
+		}
+		return pids;
+	}
+
+	static void insertRatings(AirBooking esql, PooledConnection conn, String tag, int[] pids, String flightNum, int batch, boolean blocks) throws SQLException {
+		Connection c = conn.getConnection();
+		PreparedStatement stmt = conn.prepare(blocks ?
+			"INSERT INTO Ratings (rID, pID, flightNum, score, comment) VALUES (?, ?, ?, ?, ?)" :
+			"INSERT INTO Ratings (pID, flightNum, score, comment) VALUES (?, ?, ?, ?)");
+		String comment = "IdAllocationBench " + tag;
+		c.setAutoCommit(false);
+		try{
+			for(int start = 0; start < pids.length; start += batch){
+				int n = Math.min(batch, pids.length - start);
+				int[] ids = blocks ? esql.getReviewIdSequence().next(conn, n) : null;
+				for(int i = 0; i < n; ++i){
+					int p = 1;
+					if(blocks){
+						stmt.setInt(p++, ids[i]);
+					}
+					stmt.setInt(p++, pids[start + i]);
+					stmt.setString(p++, flightNum);
+					stmt.setInt(p++, (start + i) % 6);
+					stmt.setString(p, comment);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+				c.commit();
+			}
+		}finally{
+			c.setAutoCommit(true);
+		}
+	}
+
+	static String rate(String what, int rows, long nanos){
+		return String.format("%s %.0f rows/s", what, rows / (nanos / 1e9));
+	}
+}
@@ -0,0 +1,47 @@
+import java.util.Random;
+
+/**
+ * Measures RouteGraph.search without a database on a synthetic graph:
+ * random flights between a number of cities, searched between random
+ * pairs of cities for the k shortest itineraries of up to maxLegs legs.
+ *
+ * Usage: ItinerarySearchBench [flights] [cities] [maxLegs] [k] [iterations]
+ */
+
+public class ItinerarySearchBench{
+	public static void main(String[] args){
+		int flights = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int cities = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int maxLegs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int k = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		int iterations = args.length > 4 ? Integer.parseInt(args[4]) : 2000;
+
+		RouteGraph graph = new RouteGraph(null);
+		Random random = new Random(42);
+		for(int f = 0; f < flights; ++f){
+			int origin = random.nextInt(cities);
+			int destination = random.nextInt(cities - 1);
+			if(destination >= origin){
+				++destination;
+			}
+			graph.put(new Flight(f % 100, "F" + f, "City" + origin, "City" + destination, "Plane", 100, 1 + random.nextInt(20)));
+		}
+
+		Latency latency = new Latency();
+		long found = 0;
+		// the first fifth of the runs only warm up the JIT
+		for(int i = 0; i < iterations + iterations / 5; ++i){
+			String origin = "City" + random.nextInt(cities);
+			String destination = "City" + random.nextInt(cities);
+			long begin = System.nanoTime();
+			int trips = graph.search(origin, destination, maxLegs, k, null).size();
+			if(i >= iterations / 5){
+				latency.record(System.nanoTime() - begin);
+				found += trips;
+			}
+		}
+		System.out.println(flights + " flights, " + cities + " cities, up to " + maxLegs + " legs, k=" + k);
+		System.out.println("itineraries found per search: " + (double) found / iterations);
+		System.out.println("search: " + latency);
+	}
+}
@@ -0,0 +1,59 @@
+import java.util.Arrays;
+
+/**
+ * Collects the latencies of repeated operations and reports percentiles.
+ */
+
+public class Latency{
+	private long[] nanos = new long[1024];
+	private int count = 0;
+	private long total = 0;
+
+	public void record(long elapsedNanos){
+		if(this.count == this.nanos.length){
+			this.nanos = Arrays.copyOf(this.nanos, this.count * 2);
+		}
+		this.nanos[this.count++] = elapsedNanos;
+		this.total += elapsedNanos;
+	}
+
+	/**
+	 * Adds the latencies recorded by another collector, e.g. of another
+	 * thread.
+	 */
+	public void addAll(Latency other){
+		for(int i = 0; i < other.count; ++i){
+			record(other.nanos[i]);
+		}
+	}
+
+	public int count(){
+		return this.count;
+	}
+
+	/**
+	 * Returns the given percentile (0-100) in microseconds.
+	 */
+	public double percentileMicros(double percentile){
+		if(this.count == 0){
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(this.nanos, this.count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * this.count) - 1;
+		return sorted[Math.max(0, Math.min(index, this.count - 1))] / 1000.0;
+	}
+
+	/**
+	 * Returns the operations per second over the recorded time.
+	 */
+	public double opsPerSecond(){
+		return this.total == 0 ? 0 : this.count / (this.total / 1e9);
+	}
+
+	@Override
+	public String toString(){
+		return String.format("n=%d p50=%.1fus p99=%.1fus max=%.1fus ops/s=%.0f", this.count,
+			percentileMicros(50), percentileMicros(99), percentileMicros(100), opsPerSecond());
+	}
+}
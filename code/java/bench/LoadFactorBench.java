@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Times the load factor reports of LoadFactors against the grouped queries
+ * over Booking they replace, for every grouping ops asks for, and checks
+ * that both find the same groups and bookings. Also times building the
+ * snapshot and an incremental refresh.
+ *
+ * Usage: LoadFactorBench <dbname> <port> <user> [rounds]
+ */
+
+public class LoadFactorBench{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java LoadFactorBench <dbname> <port> <user> [rounds]");
+			return;
+		}
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		List<Set<LoadFactors.Dimension>> groupings = new ArrayList<Set<LoadFactors.Dimension>>();
+		groupings.add(EnumSet.of(LoadFactors.Dimension.ROUTE));
+		groupings.add(EnumSet.of(LoadFactors.Dimension.AIRLINE));
+		groupings.add(EnumSet.of(LoadFactors.Dimension.MONTH));
+		groupings.add(EnumSet.of(LoadFactors.Dimension.ROUTE, LoadFactors.Dimension.MONTH));
+		groupings.add(EnumSet.allOf(LoadFactors.Dimension.class));
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			LoadFactors snapshot = new LoadFactors(esql);
+			long begin = System.nanoTime();
+			snapshot.refresh();
+			System.out.println("build   " + (System.nanoTime() - begin) / 1000 + " us, " + snapshot);
+			Latency refresh = new Latency();
+			for(int i = 0; i <= rounds; ++i){
+				begin = System.nanoTime();
+				snapshot.refresh();
+				if(i > 0){
+					refresh.record(System.nanoTime() - begin);
+				}
+			}
+			System.out.println("refresh " + refresh);
+
+			for(Set<LoadFactors.Dimension> by : groupings){
+				Latency sql = new Latency();
+				Latency columnar = new Latency();
+				int sqlGroups = 0;
+				long sqlBookings = 0;
+				List<LoadFactor> factors = null;
+				// one warm-up round, then the measured rounds
+				for(int i = 0; i <= rounds; ++i){
+					begin = System.nanoTime();
+					List<List<String>> rows = esql.executeQueryAndReturnResult(sql(by));
+					long sqlNanos = System.nanoTime() - begin;
+					begin = System.nanoTime();
+					factors = snapshot.report(by, null, null);
+					long columnarNanos = System.nanoTime() - begin;
+					if(i > 0){
+						sql.record(sqlNanos);
+						columnar.record(columnarNanos);
+					}
+					sqlGroups = rows.size();
+					sqlBookings = 0;
+					for(List<String> row : rows){
+						sqlBookings += Long.parseLong(row.get(row.size() - 3));
+					}
+				}
+				long bookings = 0;
+				for(LoadFactor factor : factors){
+					bookings += factor.bookings;
+				}
+				System.out.println(by + ": " + factors.size() + " groups, " + bookings + " bookings" +
+					(factors.size() == sqlGroups && bookings == sqlBookings ? "" :
+						" MISMATCH, SQL found " + sqlGroups + " groups, " + sqlBookings + " bookings"));
+				System.out.println("  sql      " + sql);
+				System.out.println("  columnar " + columnar);
+			}
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * The ad hoc query for the same report: bookings, seats flown and
+	 * departures per group, counted from Booking.
+	 */
+	static String sql(Set<LoadFactors.Dimension> by){
+		List<String> keys = new ArrayList<String>();
+		if(by.contains(LoadFactors.Dimension.ROUTE)){
+			keys.add("f.origin");
+			keys.add("f.destination");
+		}
+		if(by.contains(LoadFactors.Dimension.AIRLINE)){
+			keys.add("f.airId");
+		}
+		if(by.contains(LoadFactors.Dimension.MONTH)){
+			keys.add("to_char(d.departure, 'YYYY-MM')");
+		}
+		String columns = keys.isEmpty() ? "" : String.join(", ", keys) + ", ";
+		return "SELECT " + columns + "SUM(d.booked), SUM(f.seats), COUNT(*) " +
+			"FROM (SELECT flightNum, departure, COUNT(*) AS booked FROM Booking GROUP BY flightNum, departure) d " +
+			"JOIN Flight f ON f.flightNum = d.flightNum" + (keys.isEmpty() ? "" : " GROUP BY " + String.join(", ", keys));
+	}
+}
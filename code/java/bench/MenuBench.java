@@ -0,0 +1,249 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Times every menu operation of AirBooking against a database. Each
+ * operation is the menu method itself, fed a scripted answer through
+ * AirBooking.sc with its output thrown away, so the numbers include the
+ * same queries, caches and checks a user at the menu goes through.
+ * Passengers, flights, routes and past bookings to use are sampled from
+ * the database first.
+ *
+ * The menu reads from the shared static scanner, so operations run one at
+ * a time on one thread; BookingStress covers concurrent booking. The first
+ * sixth of the runs of every operation only warm up caches and plans.
+ *
+ * Every review run rates a past booking no one rated yet, so the reviews
+ * run as often as there are such bookings, up to all the runs. The
+ * passengers, reviews and bookings (in BENCH_YEAR) the bench adds are
+ * deleted at the end, together with the Booking partitions of BENCH_YEAR
+ * it created.
+ *
+ * Load a scaled data set first, see menubench.sh.
+ *
+ * Usage: MenuBench <dbname> <port> <user> [iterations]
+ */
+
+public class MenuBench{
+	//the year of the bookings made, far enough ahead that the flights are not full
+	static final int BENCH_YEAR = 2098;
+	private static final String BENCH_PARTITIONS =
+		"SELECT CAST(m AS DATE) FROM generate_series(CAST(? AS DATE), CAST(? AS DATE), interval '1 month') m " +
+		"WHERE to_regclass('booking_' || to_char(m, 'YYYY_MM')) IS NOT NULL";
+
+	/**
+	 * One menu operation and the answers it is given on every run.
+	 */
+	static abstract class Operation{
+		final String name;
+
+		Operation(String name){
+			this.name = name;
+		}
+
+		abstract String script(int run);
+
+		/**
+		 * Returns how many of the runs this operation can make.
+		 */
+		int runs(int runs){
+			return runs;
+		}
+
+		abstract void call(AirBooking esql) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java MenuBench <dbname> <port> <user> [iterations]");
+			return;
+		}
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		int runs = iterations + iterations / 5;
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		// passport numbers of new passengers: a run tag and a counter, 10 characters
+		final String tag = String.format("M%05d", System.currentTimeMillis() % 100000);
+		final java.sql.Date yearBegin = java.sql.Date.valueOf(BENCH_YEAR + "-01-01");
+		final java.sql.Date yearEnd = java.sql.Date.valueOf(BENCH_YEAR + "-12-31");
+		List<List<String>> partitionsBefore = esql.executeQueryAndReturnResult(BENCH_PARTITIONS, yearBegin, yearEnd);
+		try{
+			final Random random = new Random(42);
+			final List<List<String>> passengers = trimmed(esql.executeQueryAndReturnResult(
+				"SELECT passNum FROM Passenger ORDER BY random() LIMIT ?", runs));
+			final List<List<String>> flights = trimmed(esql.executeQueryAndReturnResult(
+				"SELECT flightNum, origin, destination FROM Flight ORDER BY random() LIMIT ?", runs));
+			// distinct, as a passenger rates a flight once however often it was booked
+			final List<List<String>> flown = trimmed(esql.executeQueryAndReturnResult(
+				"SELECT DISTINCT p.passNum, b.flightNum FROM Booking b, Passenger p WHERE p.pID = b.pID AND b.departure <= current_date" +
+				" AND NOT EXISTS (SELECT 1 FROM Ratings r WHERE r.pID = b.pID AND r.flightNum = b.flightNum) LIMIT ?", runs));
+			if(passengers.isEmpty() || flights.isEmpty()){
+				System.err.println("Load a data set first.");
+				return;
+			}
+			System.out.println(passengers.size() + " passengers, " + flights.size() + " flights and " + flown.size() +
+				" unrated past bookings sampled");
+
+			List<Operation> operations = new ArrayList<Operation>();
+			operations.add(new Operation("1 AddPassenger"){
+				String script(int run){
+					return "Bench Passenger\nCountry\n1\n1\n1980\n" + tag + String.format("%04d", run % 10000) + "\n";
+				}
+				void call(AirBooking esql){
+					AirBooking.AddPassenger(esql);
+				}
+			});
+			operations.add(new Operation("2 BookFlight"){
+				String script(int run){
+					return pick(flights, run).get(0) + "\n" + (1 + random.nextInt(12)) + "\n" + (1 + random.nextInt(28)) + "\n" + BENCH_YEAR + "\n" +
+						pick(passengers, run).get(0) + "\n";
+				}
+				void call(AirBooking esql){
+					AirBooking.BookFlight(esql);
+				}
+			});
+			if(!flown.isEmpty()){
+				operations.add(new Operation("3 TakeCustomerReview"){
+					String script(int run){
+						List<String> b = pick(flown, run);
+						return b.get(0) + "\n" + b.get(1) + "\n" + random.nextInt(6) + "\nMenuBench " + tag + "\n";
+					}
+					int runs(int runs){
+						return Math.min(runs, flown.size());
+					}
+					void call(AirBooking esql){
+						AirBooking.TakeCustomerReview(esql);
+					}
+				});
+			}
+			operations.add(new Operation("4 InsertOrUpdateRouteForAirline"){
+				String script(int run){
+					// updates a flight to the values it already has
+					return pick(flights, run).get(0) + "\n\n\n\n-1\n-1\n-1\n";
+				}
+				void call(AirBooking esql){
+					AirBooking.InsertOrUpdateRouteForAirline(esql);
+				}
+			});
+			operations.add(new Operation("5 ListAvailableFlightsBetweenOriginAndDestination"){
+				String script(int run){
+					List<String> f = pick(flights, run);
+					return f.get(1) + "\n" + f.get(2) + "\n";
+				}
+				void call(AirBooking esql) throws Exception {
+					AirBooking.ListAvailableFlightsBetweenOriginAndDestination(esql);
+				}
+			});
+			operations.add(new Operation("6 ListMostPopularDestinations"){
+				String script(int run){
+					return "10\n" + (1 + run % 4) + "\n";
+				}
+				void call(AirBooking esql){
+					AirBooking.ListMostPopularDestinations(esql);
+				}
+			});
+			operations.add(new Operation("7 ListHighestRatedRoutes"){
+				String script(int run){
+					return "10\n";
+				}
+				void call(AirBooking esql){
+					AirBooking.ListHighestRatedRoutes(esql);
+				}
+			});
+			operations.add(new Operation("8 ListFlightFromOriginToDestinationInOrderOfDuration"){
+				String script(int run){
+					List<String> f = pick(flights, run);
+					return f.get(1) + "\n" + f.get(2) + "\n10\n1\n";
+				}
+				void call(AirBooking esql){
+					AirBooking.ListFlightFromOriginToDestinationInOrderOfDuration(esql);
+				}
+			});
+			operations.add(new Operation("8 with connections (3 legs)"){
+				String script(int run){
+					List<String> from = pick(flights, run);
+					List<String> to = pick(flights, run + 1);
+					return from.get(1) + "\n" + to.get(2) + "\n10\n3\n\n";
+				}
+				void call(AirBooking esql){
+					AirBooking.ListFlightFromOriginToDestinationInOrderOfDuration(esql);
+				}
+			});
+			operations.add(new Operation("9 FindNumberOfAvailableSeatsForFlight"){
+				String script(int run){
+					return pick(flights, run).get(0) + "\n" + (1 + random.nextInt(12)) + "\n" + (1 + random.nextInt(28)) + "\n" +
+						(2015 + random.nextInt(3)) + "\n";
+				}
+				void call(AirBooking esql){
+					AirBooking.FindNumberOfAvailableSeatsForFlight(esql);
+				}
+			});
+
+			PrintStream out = System.out;
+			PrintStream discard = new PrintStream(new OutputStream(){
+				public void write(int b){
+				}
+			});
+			for(Operation op : operations){
+				Latency latency = new Latency();
+				int opRuns = op.runs(runs);
+				System.setOut(discard);
+				try{
+					for(int run = 0; run < opRuns; ++run){
+						AirBooking.sc = new Scanner(op.script(run));
+						long begin = System.nanoTime();
+						op.call(esql);
+						if(run >= opRuns / 6){
+							latency.record(System.nanoTime() - begin);
+						}
+					}
+				}finally{
+					System.setOut(out);
+				}
+				System.out.println(op.name + ": " + latency);
+			}
+		}finally{
+			cleanUp(esql, tag, yearBegin, yearEnd, partitionsBefore);
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Deletes the passengers, reviews and bookings the bench added, and
+	 * archives the Booking partitions of BENCH_YEAR that were not there
+	 * before, now empty.
+	 */
+	static void cleanUp(AirBooking esql, String tag, java.sql.Date yearBegin, java.sql.Date yearEnd, List<List<String>> partitionsBefore)
+			throws Exception {
+		esql.executeUpdate("DELETE FROM Ratings WHERE comment = ?", "MenuBench " + tag);
+		esql.executeUpdate("DELETE FROM Booking WHERE departure BETWEEN ? AND ?", yearBegin, yearEnd);
+		esql.executeUpdate("DELETE FROM SeatInventory WHERE departure BETWEEN ? AND ? AND booked = 0", yearBegin, yearEnd);
+		esql.executeUpdate("DELETE FROM Passenger WHERE passNum LIKE ?", tag + "%");
+		List<String> before = new ArrayList<String>();
+		for(List<String> row : partitionsBefore){
+			before.add(row.get(0));
+		}
+		for(List<String> row : esql.executeQueryAndReturnResult(BENCH_PARTITIONS, yearBegin, yearEnd)){
+			if(!before.contains(row.get(0))){
+				esql.executeQuery("SELECT archiveBookingPartition(?, 0)", java.sql.Date.valueOf(row.get(0)));
+			}
+		}
+	}
+
+	static List<List<String>> trimmed(List<List<String>> rows){
+		for(List<String> row : rows){
+			for(int i = 0; i < row.size(); ++i){
+				row.set(i, row.get(i).trim());
+			}
+		}
+		return rows;
+	}
+
+	static List<String> pick(List<List<String>> rows, int run){
+		return rows.get(run % rows.size());
+	}
+}
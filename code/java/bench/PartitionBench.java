@@ -0,0 +1,188 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the seat availability queries with 1 year and then with 10 years
+ * of bookings in the monthly partitions of Booking. The bookings are
+ * written by the benchmark, for the last year first and then for the nine
+ * years before it, on a fixed set of flights and passengers; the same
+ * flights and dates of the last year are looked up after both fills:
+ *
+ *   inventory - SeatInventory.getAvailability, the SeatInventory probe
+ *   count     - the booked seats counted on Booking for one flight and day
+ *   month     - the bookings of one flight in the 30 days up to a date
+ *
+ * Each query is also explained once to show how many partitions it reads.
+ * The rows written are deleted at the end; run it on a throwaway database
+ * (see partitionbench.sh), as that delete is slow.
+ *
+ * Usage: PartitionBench <dbname> <port> <user> [flights] [bookings per flight and day] [lookups]
+ */
+
+public class PartitionBench{
+	private static final String FILL =
+		"INSERT INTO Booking (bookRef, departure, flightNum, pID) " +
+		"SELECT 'P' || lpad(CAST(((CAST(g.day AS DATE) - DATE '2000-01-01') * CAST(? AS BIGINT) + f.i) * ? + p.i AS TEXT), 9, '0'), " +
+		"CAST(g.day AS DATE), f.flightNum, p.pID " +
+		"FROM generate_series(CAST(? AS DATE), CAST(? AS DATE), interval '1 day') AS g(day), " +
+		"unnest(?::bpchar[]) WITH ORDINALITY AS f(flightNum, i), unnest(?::int[]) WITH ORDINALITY AS p(pID, i)";
+	private static final String COUNT =
+		"SELECT COUNT(*) FROM Booking WHERE flightNum = ? AND departure = ?";
+	private static final String MONTH =
+		"SELECT COUNT(*) FROM Booking WHERE flightNum = ? AND departure > ? AND departure <= ?";
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java PartitionBench <dbname> <port> <user> [flights] [bookings per flight and day] [lookups]");
+			return;
+		}
+		int flightCount = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+		final int perDay = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		int lookups = args.length > 5 ? Integer.parseInt(args[5]) : 10000;
+
+		final AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			final List<String> flights = new ArrayList<String>();
+			for(List<String> row : esql.executeQueryAndReturnResult(
+					"SELECT flightNum FROM Flight WHERE seats >= ? ORDER BY flightNum LIMIT ?", perDay, flightCount)){
+				flights.add(row.get(0).trim());
+			}
+			final List<Integer> pids = new ArrayList<Integer>();
+			for(List<String> row : esql.executeQueryAndReturnResult("SELECT pID FROM Passenger ORDER BY pID LIMIT ?", perDay)){
+				pids.add(Integer.parseInt(row.get(0)));
+			}
+			if(flights.size() < flightCount || pids.size() < perDay){
+				System.err.println("Need " + flightCount + " flights with " + perDay + " seats and " + perDay + " passengers");
+				return;
+			}
+
+			Calendar day = Calendar.getInstance();
+			java.sql.Date today = new java.sql.Date(day.getTimeInMillis());
+			day.add(Calendar.YEAR, -1);
+			java.sql.Date oneYear = new java.sql.Date(day.getTimeInMillis());
+			day.add(Calendar.YEAR, -9);
+			java.sql.Date tenYears = new java.sql.Date(day.getTimeInMillis());
+
+			// the same lookups after both fills: a bench flight on a day of the last year
+			Random random = new Random(42);
+			String[] lookupFlights = new String[lookups];
+			java.sql.Date[] lookupDays = new java.sql.Date[lookups];
+			java.sql.Date[] monthBefore = new java.sql.Date[lookups];
+			for(int i = 0; i < lookups; ++i){
+				lookupFlights[i] = flights.get(random.nextInt(flights.size()));
+				Calendar d = Calendar.getInstance();
+				d.setTime(oneYear);
+				d.add(Calendar.DAY_OF_MONTH, 1 + random.nextInt(364));
+				lookupDays[i] = new java.sql.Date(d.getTimeInMillis());
+				d.add(Calendar.DAY_OF_MONTH, -30);
+				monthBefore[i] = new java.sql.Date(d.getTimeInMillis());
+			}
+
+			fill(esql, flights, pids, oneYear, today);
+			measure(esql, "1 year", lookupFlights, lookupDays, monthBefore);
+			fill(esql, flights, pids, tenYears, oneYear);
+			measure(esql, "10 years", lookupFlights, lookupDays, monthBefore);
+
+			System.out.println("Deleting the bench bookings");
+			esql.executeUpdate("DELETE FROM Booking WHERE bookRef ~ '^P[0-9]{9}$' AND departure >= ? AND departure < ?", tenYears, today);
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Books every bench flight with the bench passengers on every day from
+	 * from up to, but without, to, one month per transaction.
+	 */
+	static void fill(final AirBooking esql, final List<String> flights, final List<Integer> pids,
+			final java.sql.Date from, final java.sql.Date to) throws SQLException {
+		long begin = System.nanoTime();
+		long rows = esql.withConnection(new SqlWork<Long>(){
+			public Long run(PooledConnection conn) throws SQLException {
+				Connection c = conn.getConnection();
+				BookingPartitions.create(conn, from, to);
+				long rows = 0;
+				Calendar month = Calendar.getInstance();
+				month.setTime(from);
+				while(month.getTime().before(to)){
+					java.sql.Date first = new java.sql.Date(month.getTimeInMillis());
+					month.add(Calendar.MONTH, 1);
+					Calendar last = (Calendar) month.clone();
+					last.add(Calendar.DAY_OF_MONTH, -1);
+					if(!last.getTime().before(to)){
+						last.setTime(to);
+						last.add(Calendar.DAY_OF_MONTH, -1);
+					}
+					rows += conn.executeUpdate(FILL, flights.size(), pids.size(), first, new java.sql.Date(last.getTimeInMillis()),
+						c.createArrayOf("varchar", flights.toArray()), c.createArrayOf("int4", pids.toArray()));
+				}
+				conn.executeUpdate("ANALYZE Booking");
+				return rows;
+			}
+		});
+		System.out.println("Booked " + rows + " seats from " + from + " to " + to + " in " +
+			((System.nanoTime() - begin) / 1000000) + " ms");
+	}
+
+	static void measure(AirBooking esql, final String label, final String[] flights, final java.sql.Date[] days,
+			final java.sql.Date[] monthBefore) throws SQLException {
+		esql.withConnection(new SqlWork<Void>(){
+			public Void run(PooledConnection conn) throws SQLException {
+				Latency inventory = new Latency();
+				Latency count = new Latency();
+				Latency month = new Latency();
+				// one warm-up pass, then the measured pass
+				for(int pass = 0; pass < 2; ++pass){
+					for(int i = 0; i < flights.length; ++i){
+						long begin = System.nanoTime();
+						SeatInventory.getAvailability(conn, flights[i], days[i]);
+						long inventoryNanos = System.nanoTime() - begin;
+						begin = System.nanoTime();
+						conn.executeQueryAndReturnResult(COUNT, flights[i], days[i]);
+						long countNanos = System.nanoTime() - begin;
+						begin = System.nanoTime();
+						conn.executeQueryAndReturnResult(MONTH, flights[i], monthBefore[i], days[i]);
+						long monthNanos = System.nanoTime() - begin;
+						if(pass == 1){
+							inventory.record(inventoryNanos);
+							count.record(countNanos);
+							month.record(monthNanos);
+						}
+					}
+				}
+				long total = Long.parseLong(conn.executeQueryAndReturnResult("SELECT COUNT(*) FROM Booking").get(0).get(0));
+				int partitions = Integer.parseInt(conn.executeQueryAndReturnResult(
+					"SELECT COUNT(*) FROM pg_inherits WHERE inhparent = to_regclass('booking')").get(0).get(0));
+				System.out.println(label + ": " + total + " bookings in " + partitions + " partitions");
+				System.out.println("  inventory " + inventory);
+				System.out.println("  count     " + count + ", reads " + partitionsRead(conn, COUNT, flights[0], days[0]) + " partition(s)");
+				System.out.println("  month     " + month + ", reads " + partitionsRead(conn, MONTH, flights[0], monthBefore[0], days[0]) + " partition(s)");
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Explains a query with the given parameters and counts the partitions
+	 * of Booking in its plan.
+	 */
+	static int partitionsRead(PooledConnection conn, String sql, Object... params) throws SQLException {
+		int partitions = 0;
+		ResultSet rs = conn.prepare("EXPLAIN " + sql, params).executeQuery();
+		try{
+			while(rs.next()){
+				if(rs.getString(1).matches(".* on booking_\\d{4}_\\d{2}.*")){
+					++partitions;
+				}
+			}
+		}finally{
+			rs.close();
+		}
+		return partitions;
+	}
+}
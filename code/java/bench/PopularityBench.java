@@ -0,0 +1,51 @@
+import java.util.Random;
+
+/**
+ * Measures top-k queries on DestinationPopularity without a database:
+ * the counters are filled through recordRoute and recordBooking, then
+ * large-k queries are timed on a warm ranking and right after a change,
+ * when a destination has to move to its new place.
+ *
+ * Usage: PopularityBench [destinations] [k] [iterations]
+ */
+
+public class PopularityBench{
+	public static void main(String[] args){
+		int destinations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+		DestinationPopularity popularity = new DestinationPopularity(null);
+		Random random = new Random(42);
+		java.sql.Date day = java.sql.Date.valueOf(java.time.LocalDate.now());
+		for(int d = 0; d < destinations; ++d){
+			String city = "City" + d;
+			int routes = 1 + random.nextInt(50);
+			for(int r = 0; r < routes; ++r){
+				popularity.recordRoute(null, city);
+			}
+			int booked = random.nextInt(500);
+			for(int b = 0; b < booked; ++b){
+				popularity.recordBooking(city, day);
+			}
+		}
+
+		Latency warm = new Latency();
+		Latency changed = new Latency();
+		for(int i = 0; i < iterations; ++i){
+			DestinationPopularity.Ranking ranking = DestinationPopularity.Ranking.values()[i % 4];
+			long begin = System.nanoTime();
+			popularity.topK(ranking, k);
+			warm.record(System.nanoTime() - begin);
+			if(i % 10 == 0){
+				popularity.recordRoute(null, "City" + random.nextInt(destinations));
+				begin = System.nanoTime();
+				popularity.topK(DestinationPopularity.Ranking.ROUTES, k);
+				changed.record(System.nanoTime() - begin);
+			}
+		}
+		System.out.println(destinations + " destinations, k=" + k);
+		System.out.println("top-k on a sorted ranking: " + warm);
+		System.out.println("top-k after a change:      " + changed);
+	}
+}
@@ -0,0 +1,63 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Compares the top-k highest rated routes query of option 7 before and
+ * after the RouteRating aggregate: the old query groups all of Ratings on
+ * every call, the new one reads the first k entries of the
+ * route_rating_avg index. Load a scaled data set first (DataGenerator
+ * writes one rating per five bookings, so 50M bookings give 10M ratings).
+ *
+ * Usage: RatingLeaderboardBench <dbname> <port> <user> [k] [iterations]
+ */
+
+public class RatingLeaderboardBench{
+	static final String GROUP_BY_RATINGS =
+		"SELECT a.name, f.flightnum, avg_score From" +
+		" (Select (CAST(SUM(score) AS NUMERIC)/count(score)) avg_score, flightnum From ratings Group By(flightnum)) as average , flight f, airline a" +
+		" WHERE f.flightnum = average.flightnum and a.airid = f.airid ORDER By avg_score DESC LIMIT ?";
+	static final String ROUTE_RATING =
+		"SELECT a.name, r.flightNum, r.avgScore FROM RouteRating r, Flight f, Airline a" +
+		" WHERE f.flightNum = r.flightNum AND a.airId = f.airId ORDER BY r.avgScore DESC, r.flightNum LIMIT ?";
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java RatingLeaderboardBench <dbname> <port> <user> [k] [iterations]");
+			return;
+		}
+		int k = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		int iterations = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			System.out.println("Ratings: " + esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Ratings").get(0).get(0));
+			System.out.println("GROUP BY over Ratings: " + run(esql, GROUP_BY_RATINGS, k, iterations));
+			System.out.println("RouteRating index:     " + run(esql, ROUTE_RATING, k, iterations));
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	static Latency run(AirBooking esql, final String query, final int k, int iterations) throws SQLException {
+		Latency latency = new Latency();
+		for(int i = 0; i < iterations + iterations / 5; ++i){
+			long begin = System.nanoTime();
+			esql.withConnection(new SqlWork<Integer>(){
+				public Integer run(PooledConnection conn) throws SQLException {
+					ResultSet rs = conn.prepare(query, k).executeQuery();
+					int rows = 0;
+					while(rs.next()){
+						++rows;
+					}
+					rs.close();
+					return rows;
+				}
+			});
+			// the first fifth of the runs only warm up caches and plans
+			if(i >= iterations / 5){
+				latency.record(System.nanoTime() - begin);
+			}
+		}
+		return latency;
+	}
+}
@@ -0,0 +1,86 @@
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures BookingReferences without a database: blocks come from an
+ * in-memory counter instead of the sequence. Every thread draws its share
+ * of references as fast as it can; afterwards all references are decoded,
+ * sorted and checked for duplicates and for the 10 character format.
+ *
+ * Usage: ReferenceBench [threads] [references per thread]
+ */
+
+public class ReferenceBench{
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		final int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+		final AtomicLong blocks = new AtomicLong(1);
+		final AtomicLong leased = new AtomicLong();
+		final BookingReferences references = new BookingReferences(new BookingReferences.BlockSource(){
+			public long nextBlock(PooledConnection conn){
+				leased.incrementAndGet();
+				return blocks.getAndIncrement();
+			}
+		});
+
+		// warm up the JIT on a separate generator
+		BookingReferences warmup = new BookingReferences(new BookingReferences.BlockSource(){
+			public long nextBlock(PooledConnection conn){
+				return blocks.getAndIncrement();
+			}
+		});
+		for(int i = 0; i < 1000000; ++i){
+			warmup.next(null);
+		}
+
+		final String[][] drawn = new String[threads][perThread];
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int t = 0; t < threads; ++t){
+			final String[] mine = drawn[t];
+			new Thread(new Runnable(){
+				public void run(){
+					try{
+						start.await();
+						for(int i = 0; i < perThread; ++i){
+							mine[i] = references.next(null);
+						}
+					}catch(Exception e){
+						e.printStackTrace();
+					}finally{
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+
+		long[] values = new long[threads * perThread];
+		int n = 0;
+		int malformed = 0;
+		for(String[] mine : drawn){
+			for(String ref : mine){
+				if(ref == null || ref.length() != BookingReferences.LENGTH){
+					++malformed;
+					continue;
+				}
+				values[n++] = Long.parseLong(ref, 36);
+			}
+		}
+		Arrays.sort(values, 0, n);
+		int duplicates = 0;
+		for(int i = 1; i < n; ++i){
+			if(values[i] == values[i - 1]){
+				++duplicates;
+			}
+		}
+		System.out.println(threads + " threads, " + (long) threads * perThread + " references in " + String.format("%.3f", seconds) + "s: " +
+			String.format("%.0f", threads * perThread / seconds) + " references/s, " + leased.get() + " blocks leased, " +
+			duplicates + " duplicates, " + malformed + " malformed");
+	}
+}
@@ -0,0 +1,101 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Checks and times the reads routed to a streaming replica (see
+ * ReplicaRouter), on a primary and a replica of it such as the one
+ * scripts/replica.sh starts:
+ *
+ *   read your writes - adds passengers and reads every one back through
+ *                      withReadConnection right away, once with the pin of
+ *                      the writes and once without it, and counts the
+ *                      passengers the read did not find
+ *   reads            - times the direct flights of option 5 on up to 1000
+ *                      routes, on the primary only and through the router
+ *                      without the pin
+ *
+ * The passengers added are deleted at the end.
+ *
+ * Usage: ReplicaBench <dbname> <port> <user> <replica JDBC URL> [passengers] [reads]
+ */
+
+public class ReplicaBench{
+	private static final String PREFIX = "RB";
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 4){
+			System.err.println("Usage: java ReplicaBench <dbname> <port> <user> <replica JDBC URL> [passengers] [reads]");
+			return;
+		}
+		int passengers = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+		int reads = args.length > 5 ? Integer.parseInt(args[5]) : 10000;
+		System.setProperty("airbooking.replicas", args[3]);
+
+		AirBooking pinned = new AirBooking(args[0], args[1], args[2], "");
+		System.setProperty("airbooking.replicas.pinMillis", "0");
+		AirBooking unpinned = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			System.out.println("replicas: " + pinned.getReplicas());
+			System.out.println("read your writes, pinned:   " + readYourWrites(pinned, "P", passengers) + " of " + passengers + " not found");
+			System.out.println("read your writes, unpinned: " + readYourWrites(unpinned, "U", passengers) + " of " + passengers + " not found");
+
+			List<List<String>> routes = pinned.executeQueryAndReturnResult("SELECT DISTINCT origin, destination FROM Flight LIMIT 1000");
+			System.setProperty("airbooking.replicas", "");
+			AirBooking primary = new AirBooking(args[0], args[1], args[2], "");
+			try{
+				System.out.println("primary only " + time(primary, routes, reads));
+			}finally{
+				primary.cleanup();
+			}
+			System.out.println("replica      " + time(unpinned, routes, reads));
+			System.out.println("replicas: " + unpinned.getReplicas());
+		}finally{
+			pinned.executeUpdate("DELETE FROM Passenger WHERE passNum LIKE ?", PREFIX + "%");
+			pinned.cleanup();
+			unpinned.cleanup();
+		}
+	}
+
+	/**
+	 * Adds passengers and reads each one back right after it was added.
+	 *
+	 * @return how many of them the read did not find
+	 */
+	static int readYourWrites(AirBooking esql, String tag, int passengers) throws SQLException {
+		int missing = 0;
+		for(int i = 0; i < passengers; ++i){
+			final String passNum = PREFIX + tag + String.format("%07d", i);
+			esql.getService().addPassenger(new PassengerRequest(passNum, "Replica Bench", java.sql.Date.valueOf("1990-01-01"), "Nowhere"));
+			boolean found = esql.withReadConnection(new SqlWork<Boolean>(){
+				public Boolean run(PooledConnection conn) throws SQLException {
+					ResultSet rs = conn.prepare("SELECT 1 FROM Passenger WHERE passNum = ?", passNum).executeQuery();
+					try{
+						return rs.next();
+					}finally{
+						rs.close();
+					}
+				}
+			});
+			if(!found){
+				++missing;
+			}
+		}
+		return missing;
+	}
+
+	static Latency time(AirBooking esql, List<List<String>> routes, int reads) throws SQLException {
+		Latency latency = new Latency();
+		for(int pass = 0; pass < 2; ++pass){
+			for(int i = 0; i < reads; ++i){
+				List<String> route = routes.get(i % routes.size());
+				long begin = System.nanoTime();
+				esql.getService().listFlights(route.get(0).trim(), route.get(1).trim());
+				if(pass == 1){
+					latency.record(System.nanoTime() - begin);
+				}
+			}
+		}
+		return latency;
+	}
+}
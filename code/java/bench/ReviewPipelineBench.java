@@ -0,0 +1,92 @@
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the review pipeline under a burst of reviews: many threads
+ * submit reviews of flights their passengers have flown and wait for each
+ * one to commit, as the server threads do. It runs once with batches of
+ * one review and no linger, which commits every review on its own, and
+ * once with the given batch size, and reports reviews/sec and the latency
+ * from submit to commit. The reviews written are deleted after each run.
+ *
+ * Usage: ReviewPipelineBench <dbname> <port> <user> [threads] [reviews] [batch size] [linger ms]
+ */
+
+public class ReviewPipelineBench{
+	private static final String COMMENT = "ReviewPipelineBench";
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java ReviewPipelineBench <dbname> <port> <user> [threads] [reviews] [batch size] [linger ms]");
+			return;
+		}
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+		int reviews = args.length > 4 ? Integer.parseInt(args[4]) : 20000;
+		int batchSize = args.length > 5 ? Integer.parseInt(args[5]) : 500;
+		long linger = args.length > 6 ? Long.parseLong(args[6]) : 2L;
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			List<List<String>> flown = esql.executeQueryAndReturnResult(
+				"SELECT DISTINCT p.passNum, b.flightNum FROM Booking b, Passenger p WHERE p.pID = b.pID AND b.departure <= current_date" +
+				" AND NOT EXISTS (SELECT 1 FROM Ratings r WHERE r.pID = b.pID AND r.flightNum = b.flightNum) LIMIT ?", reviews);
+			if(flown.isEmpty()){
+				System.err.println("No unrated past bookings; load a data set first.");
+				return;
+			}
+			System.out.println(flown.size() + " unrated past bookings, " + threads + " threads");
+			run(esql, "one per commit", flown, threads, 1, 0);
+			run(esql, "batches of " + batchSize, flown, threads, batchSize, linger);
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	static void run(AirBooking esql, String label, final List<List<String>> flown, int threads, int batchSize, long linger) throws Exception {
+		final ReviewPipeline pipeline = new ReviewPipeline(esql, 10000, batchSize, linger);
+		pipeline.start();
+		final Latency[] latencies = new Latency[threads];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger rated = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int t = 0; t < threads; ++t){
+			final Latency mine = latencies[t] = new Latency();
+			new Thread(new Runnable(){
+				public void run(){
+					try{
+						start.await();
+						for(int i = next.getAndIncrement(); i < flown.size(); i = next.getAndIncrement()){
+							List<String> review = flown.get(i);
+							long begin = System.nanoTime();
+							ReviewResult result = pipeline.submit(new ReviewRequest(review.get(0).trim(), review.get(1).trim(), i % 6, COMMENT)).get();
+							mine.record(System.nanoTime() - begin);
+							if(result == ReviewResult.RATED){
+								rated.incrementAndGet();
+							}
+						}
+					}catch(Exception e){
+						e.printStackTrace();
+					}finally{
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		pipeline.stop();
+
+		Latency all = new Latency();
+		for(Latency latency : latencies){
+			all.addAll(latency);
+		}
+		System.out.println(String.format("%-16s %.0f reviews/s, %d rated, commit latency p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+			label, all.count() / seconds, rated.get(), all.percentileMicros(50), all.percentileMicros(90),
+			all.percentileMicros(99), all.percentileMicros(100)));
+		esql.executeUpdate("DELETE FROM Ratings WHERE comment = ?", COMMENT);
+	}
+}
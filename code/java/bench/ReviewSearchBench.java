@@ -0,0 +1,80 @@
+import java.util.List;
+
+/**
+ * Times ReviewSearch on a loaded data set, meant for 10M reviews, e.g.
+ * 50M bookings written by DataGenerator, whose comments come from a small
+ * vocabulary with common and rare words:
+ *
+ *   common  - a word in many comments, first page
+ *   rare    - a word in few comments
+ *   phrase  - two words next to each other
+ *   or/not  - either word, and a word without another
+ *   flight  - a common word on one flight
+ *   score   - a common word in reviews scored 0 or 1
+ *   page 10 - the tenth page of the common word, following the cursors
+ *
+ * Usage: ReviewSearchBench <dbname> <port> <user> [searches]
+ */
+
+public class ReviewSearchBench{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java ReviewSearchBench <dbname> <port> <user> [searches]");
+			return;
+		}
+		int searches = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			List<List<String>> reviews = esql.executeQueryAndReturnResult(
+				"SELECT CAST(reltuples AS BIGINT) FROM pg_class WHERE relname = 'ratings'");
+			List<List<String>> flights = esql.executeQueryAndReturnResult(
+				"SELECT flightNum FROM Ratings GROUP BY flightNum ORDER BY COUNT(*) DESC LIMIT 1");
+			if(flights.isEmpty()){
+				System.err.println("No reviews; load a data set first.");
+				return;
+			}
+			System.out.println("about " + reviews.get(0).get(0) + " reviews, " + searches + " searches each");
+			ReviewSearch search = new ReviewSearch(esql);
+			String flightNum = flights.get(0).get(0).trim();
+			time(search, "common ", "flight", null, 1, searches);
+			time(search, "rare   ", "awful", null, 1, searches);
+			time(search, "phrase ", "\"on time\"", null, 1, searches);
+			time(search, "or/not ", "lounge or upgrade -price", null, 1, searches);
+			time(search, "flight ", "seat", new ReviewSearch.Filter(flightNum, null, null, null), 1, searches);
+			time(search, "score  ", "seat", new ReviewSearch.Filter(null, null, 0, 1), 1, searches);
+			time(search, "page 10", "flight", null, 10, searches);
+		}finally{
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Times reading pages pages of 20 matches of text, one warm-up round
+	 * first.
+	 */
+	static void time(ReviewSearch search, String label, String text, ReviewSearch.Filter filter, int pages, int searches)
+			throws Exception {
+		Latency latency = new Latency();
+		int matches = 0;
+		for(int round = 0; round < 2; ++round){
+			for(int i = 0; i < searches; ++i){
+				long begin = System.nanoTime();
+				String after = null;
+				matches = 0;
+				for(int page = 0; page < pages; ++page){
+					ReviewSearch.Page p = search.search(text, filter, 20, after);
+					matches += p.matches.size();
+					after = p.next;
+					if(after == null){
+						break;
+					}
+				}
+				if(round == 1){
+					latency.record(System.nanoTime() - begin);
+				}
+			}
+		}
+		System.out.println("  " + label + " " + latency + " matches=" + matches);
+	}
+}
@@ -0,0 +1,86 @@
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times seat availability on booked flights and dates three ways:
+ *
+ *   table - SeatInventory.getAvailability, a query per lookup
+ *   map   - AirBookingService.getAvailability, from the cached seat maps
+ *   range - the seat maps of one flight on 30 days in a row
+ *
+ * and the first free seat of every map looked up, from the bitsets. The
+ * seat maps are used for a minute, so after the first pass every lookup
+ * is answered from memory.
+ *
+ * Usage: SeatMapBench <dbname> <port> <user> [lookups]
+ */
+
+public class SeatMapBench{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java SeatMapBench <dbname> <port> <user> [lookups]");
+			return;
+		}
+		int lookups = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+		System.setProperty("airbooking.seats.maxAgeMillis", "60000");
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			List<List<String>> slots = esql.executeQueryAndReturnResult(
+				"SELECT flightNum, departure FROM SeatInventory ORDER BY booked DESC LIMIT ?", lookups);
+			if(slots.isEmpty()){
+				System.err.println("No booked flights; load a data set first.");
+				return;
+			}
+			Random random = new Random(42);
+			String[] flights = new String[lookups];
+			java.sql.Date[] days = new java.sql.Date[lookups];
+			for(int i = 0; i < lookups; ++i){
+				List<String> slot = slots.get(random.nextInt(slots.size()));
+				flights[i] = slot.get(0).trim();
+				days[i] = java.sql.Date.valueOf(slot.get(1));
+			}
+
+			Latency table = new Latency();
+			Latency map = new Latency();
+			Latency range = new Latency();
+			Latency firstFree = new Latency();
+			// one warm-up pass, then the measured pass
+			for(int pass = 0; pass < 2; ++pass){
+				for(int i = 0; i < lookups; ++i){
+					long begin = System.nanoTime();
+					SeatInventory.getAvailability(esql, flights[i], days[i]);
+					long tableNanos = System.nanoTime() - begin;
+					begin = System.nanoTime();
+					esql.getService().getAvailability(flights[i], days[i]);
+					long mapNanos = System.nanoTime() - begin;
+					Calendar end = Calendar.getInstance();
+					end.setTime(days[i]);
+					end.add(Calendar.DAY_OF_MONTH, 29);
+					begin = System.nanoTime();
+					esql.getSeatMaps().getRange(flights[i], days[i], new java.sql.Date(end.getTimeInMillis()));
+					long rangeNanos = System.nanoTime() - begin;
+					SeatMap seats = esql.getSeatMaps().get(flights[i], days[i]);
+					begin = System.nanoTime();
+					seats.firstFree();
+					long firstFreeNanos = System.nanoTime() - begin;
+					if(pass == 1){
+						table.record(tableNanos);
+						map.record(mapNanos);
+						range.record(rangeNanos);
+						firstFree.record(firstFreeNanos);
+					}
+				}
+			}
+			System.out.println(lookups + " lookups on " + slots.size() + " booked flights and dates");
+			System.out.println("  table     " + table);
+			System.out.println("  map       " + map);
+			System.out.println("  range     " + range);
+			System.out.println("  firstFree " + firstFree);
+			System.out.println("  seat maps " + esql.getSeatMaps().getCache());
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load test of a running AirBookingServer: client threads send GET
+ * requests for the given paths in turn, as fast as the answers come back,
+ * for a number of seconds. The run is repeated with 1, 2, 4, ... up to the
+ * given number of client threads, to show how throughput grows with the
+ * cores of the server.
+ *
+ * Usage: ServerLoadTest <base url> <seconds> <max threads> <path> [path ...]
+ * e.g.   ServerLoadTest http://localhost:8080 10 32 "/seats?flightNum=1423&departure=2016-05-01" "/trips?origin=Paris&destination=Tokyo"
+ */
+
+public class ServerLoadTest{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 4){
+			System.err.println("Usage: java ServerLoadTest <base url> <seconds> <max threads> <path> [path ...]");
+			return;
+		}
+		final String base = args[0];
+		final long millis = Long.parseLong(args[1]) * 1000;
+		int maxThreads = Integer.parseInt(args[2]);
+		final List<URL> urls = new ArrayList<URL>();
+		for(int i = 3; i < args.length; ++i){
+			urls.add(new URL(base + args[i]));
+		}
+		System.out.println("Server cores are what counts; this client has " + Runtime.getRuntime().availableProcessors() + " cores");
+
+		// one short run to warm up the server
+		run(urls, 2, Math.min(millis, 2000));
+		for(int threads = 1; threads <= maxThreads; threads *= 2){
+			long begin = System.nanoTime();
+			Latency latency = run(urls, threads, millis);
+			double seconds = (System.nanoTime() - begin) / 1e9;
+			System.out.println(String.format("%3d threads: %8.0f requests/s  %s", threads, latency.count() / seconds, latency));
+		}
+	}
+
+	static Latency run(final List<URL> urls, int threads, final long millis) throws Exception {
+		final long deadline = System.currentTimeMillis() + millis;
+		final Latency[] latencies = new Latency[threads];
+		final Exception[] failures = new Exception[threads];
+		Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; ++t){
+			final int id = t;
+			latencies[t] = new Latency();
+			workers[t] = new Thread(new Runnable(){
+				public void run(){
+					byte[] buffer = new byte[8192];
+					try{
+						for(int i = id; System.currentTimeMillis() < deadline; ++i){
+							long begin = System.nanoTime();
+							HttpURLConnection conn = (HttpURLConnection) urls.get(i % urls.size()).openConnection();
+							int status = conn.getResponseCode();
+							InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+							while(in != null && in.read(buffer) > 0){
+							}
+							if(in != null){
+								in.close();
+							}
+							if(status >= 500){
+								throw new IllegalStateException("HTTP " + status + " from " + conn.getURL());
+							}
+							latencies[id].record(System.nanoTime() - begin);
+						}
+					}catch(Exception e){
+						failures[id] = e;
+					}
+				}
+			});
+			workers[t].start();
+		}
+		Latency all = new Latency();
+		for(int t = 0; t < threads; ++t){
+			workers[t].join();
+			if(failures[t] != null){
+				throw failures[t];
+			}
+			all.addAll(latencies[t]);
+		}
+		return all;
+	}
+}
@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: ./export.sh flightDB 5432 user csv booking.csv table Booking
+#          ./export.sh flightDB 5432 user jsonl - option 9 AA1234 2024-01-01 2024-01-31
+java -cp lib/*:bin/ Export $DBNAME $PORT $USER "$@"
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+DATA=${4:-../data}
+
+# Example: ./load.sh flightDB 5432 user ../data
+java -cp lib/*:bin/ BulkLoader $DBNAME $PORT $USER $DATA ../sql
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: ./loadfactors.sh flightDB 5432 user route,month 2024-01-01 2024-12-31
+java -cp lib/*:bin/ LoadFactors $DBNAME $PORT $USER "$@"
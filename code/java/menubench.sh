@@ -0,0 +1,21 @@
+#! /bin/bash
+PORT=$1
+USER=$2
+BOOKINGS=${3:-1000000}
+FLIGHTS=${4:-5000}
+ITERATIONS=${5:-1000}
+
+#throwaway database and data folder of the benchmark
+BENCHDB=flightBench
+BENCHDATA=/tmp/$LOGNAME/benchdata
+
+# Example: ./menubench.sh 5432 user 1000000 5000 1000
+rm -rf ./bin
+mkdir bin
+javac -cp "lib/*" src/*.java bench/*.java -d bin/
+java -cp lib/*:bin/ DataGenerator ../data $BENCHDATA $BOOKINGS $FLIGHTS
+dropdb -h 127.0.0.1 -p $PORT --if-exists $BENCHDB
+createdb -h 127.0.0.1 -p $PORT $BENCHDB
+java -cp lib/*:bin/ BulkLoader $BENCHDB $PORT $USER $BENCHDATA ../sql
+java -cp lib/*:bin/ MenuBench $BENCHDB $PORT $USER $ITERATIONS
+dropdb -h 127.0.0.1 -p $PORT $BENCHDB
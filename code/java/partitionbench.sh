@@ -0,0 +1,19 @@
+#! /bin/bash
+PORT=$1
+USER=$2
+FLIGHTS=${3:-50}
+PERDAY=${4:-10}
+LOOKUPS=${5:-10000}
+
+#throwaway database of the benchmark
+BENCHDB=flightBench
+
+# Example: ./partitionbench.sh 5432 user 50 10 10000
+rm -rf ./bin
+mkdir bin
+javac -cp "lib/*" src/*.java bench/*.java -d bin/
+dropdb -h 127.0.0.1 -p $PORT --if-exists $BENCHDB
+createdb -h 127.0.0.1 -p $PORT $BENCHDB
+java -cp lib/*:bin/ BulkLoader $BENCHDB $PORT $USER ../data ../sql
+java -cp lib/*:bin/ PartitionBench $BENCHDB $PORT $USER $FLIGHTS $PERDAY $LOOKUPS
+dropdb -h 127.0.0.1 -p $PORT $BENCHDB
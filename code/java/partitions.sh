@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: ./partitions.sh flightDB 5432 user create 12
+# Example: ./partitions.sh flightDB 5432 user archive 24 /tmp/$LOGNAME/archive
+java -cp lib/*:bin/ BookingPartitions $DBNAME $PORT $USER "$@"
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: ./seats.sh flightDB 5432 user overbooking AA1234 1.05
+java -cp lib/*:bin/ SeatMaps $DBNAME $PORT $USER "$@"
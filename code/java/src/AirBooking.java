@@ -11,20 +11,22 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Scanner;
-import java.util.Random;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,180 +35,599 @@ import java.util.Random;
  */
 
 public class AirBooking{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections
+	private ConnectionPool _pool = null;
+	//streaming replicas the reads go to, null unless -Dairbooking.replicas is set
+	private ReplicaRouter _replicas = null;
+	//timing of every statement and connection wait, unless -Dairbooking.metrics=false
+	private QueryMetrics _metrics = null;
+	//cached Flight and Airline rows, created on first use
+	private ReferenceDataCache _referenceData = null;
+	//passport number to passenger id, created on first use
+	private PassengerIds _passengerIds = null;
+	//seat maps of the flights on their departure dates, created on first use
+	private SeatMaps _seatMaps = null;
+	//destination rankings of option 6, created on first use
+	private DestinationPopularity _popularity = null;
+	private LoadFactors _loadFactors = null;
+	//route graph of the itinerary searches, created on first use
+	private RouteGraph _routes = null;
+	private CityIndex _cities = null;
+	//upkeep of the monthly Booking partitions, created on first use
+	private BookingPartitions _partitions = null;
+	//queue and writer of the reviews, started on first use
+	private ReviewPipeline _reviews = null;
+	//unique booking references, leased in blocks from the database
+	private final BookingReferences _references = BookingReferences.forDatabase();
+	//passenger and review ids reserved in blocks from their sequences
+	private final SequenceBlocks _passengerIdSequence = new SequenceBlocks("passengerID_seq", "AddPassenger.reserveIds",
+		Integer.getInteger("airbooking.ids.blockSize", 100));
+	private final SequenceBlocks _reviewIdSequence = new SequenceBlocks("reviewID_seq", "TakeCustomerReview.reserveIds",
+		Integer.getInteger("airbooking.ids.blockSize", 100));
+	//the menu operations without the prompts
+	private final AirBookingService _service = new AirBookingService(this);
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	static Scanner sc = new Scanner(System.in);
-	
+	//booking references tried before BookFlight gives up
+	static final int BOOKING_ATTEMPTS = 5;
+	//rows fetched per round trip by streamed queries
+	static final int DEFAULT_FETCH_SIZE = Integer.getInteger("airbooking.fetchSize", 1000);
+	//connections offered by option 5 when there is no direct flight
+	static final int CONNECTION_LEGS = 3;
+	static final int CONNECTION_RESULTS = 5;
+
 	public AirBooking(String dbname, String dbport, String user, String passwd) throws SQLException {
-		System.out.print("Connecting to database...");
+		// the banners go to standard error, standard out is left to the results (see Export)
+		System.err.print("Connecting to database...");
 		try{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-			System.out.println ("Connection URL: " + url + "\n");
-			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
+			System.err.println ("Connection URL: " + url + "\n");
+
+			if(Boolean.parseBoolean(System.getProperty("airbooking.metrics", "true"))){
+				this._metrics = QueryMetrics.fromProperties(dbname);
+			}
+			// pool size, wait time and statement cache size can be tuned with -D options
+			this._pool = new ConnectionPool(url, user, passwd,
+				Integer.getInteger("airbooking.pool.size", 8),
+				Long.getLong("airbooking.pool.waitMillis", 5000L),
+				Integer.getInteger("airbooking.pool.statementCache", 64),
+				this._metrics);
+
+			// obtain a first physical connection to make sure the database is reachable
+			this._pool.release(this._pool.acquire());
+			// replicas are optional, an unreachable one is only left out of the reads
+			this._replicas = ReplicaRouter.fromProperties(user, passwd, this._metrics);
+			if(this._replicas != null){
+				this._replicas.start(Long.getLong("airbooking.replicas.checkMillis", 1000L));
+			}
+	        System.err.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-	        System.out.println("Make sure you started postgres on this machine");
+	        System.err.println("Make sure you started postgres on this machine");
 	        System.exit(-1);
 		}
 	}
-	
+
+	/**
+	 * Method to run a unit of work on one pooled connection. The connection
+	 * goes back to the pool when the work is done.
+	 *
+	 * @param work the work to run
+	 * @return the value returned by the work
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	public <T> T withConnection (SqlWork<T> work) throws SQLException {
+		PooledConnection conn = this._pool.acquire ();
+		try{
+			return work.run (conn);
+		}finally{
+			this._pool.release (conn);
+		}
+	}//end withConnection
+
+	/**
+	 * Method to run a unit of read-only work, on a replica when one is up
+	 * to date enough (see ReplicaRouter) and on the primary otherwise. Work
+	 * that fails because of the replica runs again on the primary.
+	 *
+	 * @param work the work to run, which must not write
+	 * @return the value returned by the work
+	 * @throws java.sql.SQLException when the work failed
+	 */
+	public <T> T withReadConnection (SqlWork<T> work) throws SQLException {
+		ConnectionPool replica = this._replicas == null ? null : this._replicas.route ();
+		if (replica != null){
+			try{
+				PooledConnection conn = replica.acquire ();
+				try{
+					return work.run (conn);
+				}finally{
+					replica.release (conn);
+				}
+			}catch(SQLException e){
+				if (!ReplicaRouter.isReplicaFailure (e)){
+					throw e;
+				}
+				this._replicas.failed (replica, e);
+			}
+		}//end if
+		return withConnection (work);
+	}//end withReadConnection
+
+	/**
+	 * Method to keep the reads on the primary for a while after a write, so
+	 * that the write is read back even from a lagging replica.
+	 */
+	public void pinReads (){
+		if (this._replicas != null){
+			this._replicas.pin ();
+		}//end if
+	}//end pinReads
+
+	/**
+	 * Method to run a unit of work inside one transaction. The transaction
+	 * commits when the work returns and rolls back when it throws.
+	 *
+	 * @param work the work to run
+	 * @return the value returned by the work
+	 * @throws java.sql.SQLException when the work or the commit failed
+	 */
+	public <T> T inTransaction (final SqlWork<T> work) throws SQLException {
+		return withConnection (new SqlWork<T>(){
+			public T run (PooledConnection conn) throws SQLException {
+				Connection c = conn.getConnection ();
+				c.setAutoCommit (false);
+				T result = work.run (conn);
+				c.commit ();
+				c.setAutoCommit (true);
+				return result;
+			}
+		});
+	}//end inTransaction
+
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
-	 * 
-	 * @param sql the input SQL string
+	 *
+	 * @param sql the input SQL string, with ? for every parameter
+	 * @param params the values bound to the parameters
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+	public int executeUpdate (final String sql, final Object... params) throws SQLException {
+		return withConnection (new SqlWork<Integer>(){
+			public Integer run (PooledConnection conn) throws SQLException {
+				return conn.executeUpdate (sql, params);
+			}
+		});
 	}//end executeUpdate
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
-	 * 
-	 * @param query the input query string
+	 * standard out as an aligned table.
+	 *
+	 * @param query the input query string, with ? for every parameter
+	 * @param params the values bound to the parameters
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		//streams the result set to standard out, buffered; System.out itself is flushed, never closed
+		return (int) exportQuery (query, ResultWriter.Format.TABLE, new OutputStreamWriter (System.out, StandardCharsets.UTF_8), params);
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * write its result to out in the given format as it streams in (see
+	 * ResultWriter). out is flushed at the end but not closed.
+	 *
+	 * @param query the input query string, with ? for every parameter
+	 * @param format the format of the result
+	 * @param out where the result is written
+	 * @param params the values bound to the parameters
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to execute the query or to
+	 *         write its result
+	 */
+	public long exportQuery (String query, ResultWriter.Format format, Writer out, Object... params) throws SQLException {
+		ResultWriter writer = ResultWriter.create (format, out);
+		long rowCount = streamQuery (query, DEFAULT_FETCH_SIZE, writer, params);
+		try{
+			writer.flush ();
+		}catch(IOException e){
+			throw new SQLException ("Unable to write the result: " + e.getMessage (), e);
+		}
 		return rowCount;
-	}
-	
+	}//end exportQuery
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * hand every row to a callback as it arrives. The query runs inside a
+	 * transaction with the given fetch size, so the driver reads the result
+	 * through a server-side cursor fetchSize rows at a time and memory use
+	 * does not grow with the size of the result.
+	 *
+	 * @param query the input query string, with ? for every parameter
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param handler the callback called for every row
+	 * @param params the values bound to the parameters
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long streamQuery (final String query, final int fetchSize, final RowHandler handler, final Object... params) throws SQLException {
+		return inTransaction (new SqlWork<Long>(){
+			public Long run (PooledConnection conn) throws SQLException {
+				PreparedStatement stmt = conn.prepare (query, params);
+				stmt.setFetchSize (fetchSize);
+				ResultSet rs = stmt.executeQuery ();
+				try{
+					Row row = new Row (rs);
+					while (row.next ()){
+						handler.row (row);
+					}
+					return row.getNumber ();
+				}finally{
+					rs.close ();
+					stmt.setFetchSize (0);
+				}
+			}
+		});
+	}//end streamQuery
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
-	 * 
-	 * @param query the input query string
+	 *
+	 * @param query the input query string, with ? for every parameter
+	 * @param params the values bound to the parameters
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+	public List<List<String>> executeQueryAndReturnResult (final String query, final Object... params) throws SQLException {
+		return withConnection (new SqlWork<List<List<String>>>(){
+			public List<List<String>> run (PooledConnection conn) throws SQLException {
+				return conn.executeQueryAndReturnResult (query, params);
+			}
+		});
 	}//end executeQueryAndReturnResult
-	
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
-	 * 
-	 * @param query the input query string
+	 *
+	 * @param query the input query string, with ? for every parameter
+	 * @param params the values bound to the parameters
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
-
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	public int executeQuery (final String query, final Object... params) throws SQLException {
+		return withConnection (new SqlWork<Integer>(){
+			public Integer run (PooledConnection conn) throws SQLException {
+				return conn.executeQuery (query, params);
+			}
+		});
 	}
-	
+
 	/**
 	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
-	 * 
+	 * method issues the query to the DBMS and returns the current
+	 * value of sequence used for autogenerated keys. The value is only
+	 * defined on the connection that called nextval, so use it through
+	 * withConnection together with the insert.
+	 *
+	 * @param conn the connection that ran the insert
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+
+	public static int getCurrSeqVal(PooledConnection conn, String sequence) throws SQLException {
+		ResultSet rs = conn.prepare ("Select currval(?)", sequence).executeQuery ();
+		try{
+			if (rs.next()) return rs.getInt(1);
+			return -1;
+		}finally{
+			rs.close ();
+		}
+	}
+
+	/**
+	 * Method to get the cache of Flight and Airline rows. The cache and the
+	 * listener that keeps it in step with other clients are started on
+	 * first use.
+	 *
+	 * @return the reference data cache of this database
+	 */
+	public synchronized ReferenceDataCache getReferenceData(){
+		if(this._referenceData == null){
+			this._referenceData = new ReferenceDataCache(this,
+				Integer.getInteger("airbooking.cache.flights", 10000),
+				Integer.getInteger("airbooking.cache.airlines", 1000));
+			this._referenceData.start();
+		}
+		return this._referenceData;
+	}
+
+	/**
+	 * Method to get the cache of passenger ids by passport number. The
+	 * reference data listener, which keeps it in step with other clients,
+	 * is started with it.
+	 *
+	 * @return the passenger ids of this database
+	 */
+	public synchronized PassengerIds getPassengerIds(){
+		if(this._passengerIds == null){
+			this._passengerIds = new PassengerIds(this, Integer.getInteger("airbooking.cache.passengers", 100000));
+			getReferenceData();
+		}
+		return this._passengerIds;
+	}
+
+	/**
+	 * Method to get the passenger ids only if they were created already,
+	 * for the listener that invalidates them.
+	 *
+	 * @return the passenger ids, or null
+	 */
+	synchronized PassengerIds startedPassengerIds(){
+		return this._passengerIds;
+	}
+
+	/**
+	 * Method to get the seat maps of the flights. A map is used for up to
+	 * airbooking.seats.maxAgeMillis (1000 by default) before it is read
+	 * again, and up to airbooking.cache.seatMaps maps are kept (100000).
+	 * The reference data listener, which drops the maps of changed
+	 * flights, is started with them.
+	 *
+	 * @return the seat maps of this database
+	 */
+	public synchronized SeatMaps getSeatMaps(){
+		if(this._seatMaps == null){
+			this._seatMaps = new SeatMaps(this, Integer.getInteger("airbooking.cache.seatMaps", 100000),
+				Long.getLong("airbooking.seats.maxAgeMillis", 1000L));
+			getReferenceData();
+		}
+		return this._seatMaps;
+	}
+
+	/**
+	 * Method to get the seat maps only if they were created already, for
+	 * the listener that invalidates them.
+	 *
+	 * @return the seat maps, or null
+	 */
+	synchronized SeatMaps startedSeatMaps(){
+		return this._seatMaps;
+	}
+
+	/**
+	 * Method to get the destination rankings of option 6. They are loaded
+	 * on first use and then refreshed every airbooking.popularity.refreshSeconds
+	 * seconds (60 by default).
+	 *
+	 * @return the destination popularity counters of this database
+	 * @throws java.sql.SQLException when failed to load the counters
+	 */
+	public synchronized DestinationPopularity getDestinationPopularity() throws SQLException {
+		if(this._popularity == null){
+			DestinationPopularity popularity = new DestinationPopularity(this);
+			popularity.start(Long.getLong("airbooking.popularity.refreshSeconds", 60L));
+			this._popularity = popularity;
+		}
+		return this._popularity;
+	}
+
+	/**
+	 * Method to get the destination rankings only if they were loaded
+	 * already, for writers that keep them up to date.
+	 *
+	 * @return the destination popularity counters, or null
+	 */
+	synchronized DestinationPopularity startedDestinationPopularity(){
+		return this._popularity;
+	}
+
+	/**
+	 * Method to get the city names for autocomplete and for correcting the
+	 * cities typed, loaded on first use.
+	 *
+	 * @return the city index of this database
+	 * @throws java.sql.SQLException when failed to load the cities
+	 */
+	public synchronized CityIndex getCities() throws SQLException {
+		if(this._cities == null){
+			CityIndex cities = new CityIndex(this);
+			cities.refresh();
+			this._cities = cities;
+			// the listener adds the cities of flights and airlines other clients save
+			getReferenceData();
+		}
+		return this._cities;
+	}
+
+	/**
+	 * Method to get the city index only if it was loaded already, for
+	 * writers that keep it up to date.
+	 *
+	 * @return the city index, or null
+	 */
+	synchronized CityIndex startedCities(){
+		return this._cities;
+	}
+
+	/**
+	 * Method to get the load factor snapshot of the analytics reports. It is
+	 * built on first use and then refreshed every
+	 * airbooking.analytics.refreshSeconds seconds (60 by default).
+	 *
+	 * @return the load factor snapshot of this database
+	 * @throws java.sql.SQLException when failed to build the snapshot
+	 */
+	public synchronized LoadFactors getLoadFactors() throws SQLException {
+		if(this._loadFactors == null){
+			LoadFactors loadFactors = new LoadFactors(this);
+			loadFactors.start(Long.getLong("airbooking.analytics.refreshSeconds", 60L));
+			this._loadFactors = loadFactors;
+		}
+		return this._loadFactors;
+	}
+
+	/**
+	 * Method to get the route graph of the itinerary searches, loaded from
+	 * Flight on first use.
+	 *
+	 * @return the route graph of this database
+	 * @throws java.sql.SQLException when failed to load the flights
+	 */
+	public synchronized RouteGraph getRouteGraph() throws SQLException {
+		if(this._routes == null){
+			RouteGraph routes = new RouteGraph(this);
+			routes.refresh();
+			this._routes = routes;
+		}
+		return this._routes;
+	}
+
+	/**
+	 * Method to get the route graph only if it was loaded already, for
+	 * writers that keep it up to date.
+	 *
+	 * @return the route graph, or null
+	 */
+	synchronized RouteGraph startedRouteGraph(){
+		return this._routes;
+	}
+
+	/**
+	 * Method to get the router of the reads to the replicas.
+	 *
+	 * @return the replica router, or null without replicas
+	 */
+	public ReplicaRouter getReplicas(){
+		return this._replicas;
+	}
+
+	/**
+	 * Method to get the statement and connection wait metrics.
+	 *
+	 * @return the metrics of this database, or null when turned off
+	 */
+	public QueryMetrics getMetrics(){
+		return this._metrics;
+	}
+
+	/**
+	 * Method to get the upkeep of the monthly Booking partitions. Long
+	 * running clients start its timer, which keeps the coming months
+	 * created ahead of time.
+	 *
+	 * @return the booking partitions of this database
+	 */
+	public synchronized BookingPartitions getBookingPartitions(){
+		if(this._partitions == null){
+			this._partitions = new BookingPartitions(this);
+		}
+		return this._partitions;
+	}
+
+	/**
+	 * Method to get the review pipeline, which writes reviews in batches.
+	 * Its writer thread is started on first use; the queue holds
+	 * airbooking.reviews.queue reviews (10000 by default), a batch
+	 * airbooking.reviews.batch (500) and a batch waits up to
+	 * airbooking.reviews.lingerMillis (2) for more reviews.
+	 *
+	 * @return the review pipeline of this database
+	 */
+	public synchronized ReviewPipeline getReviewPipeline(){
+		if(this._reviews == null){
+			this._reviews = new ReviewPipeline(this,
+				Integer.getInteger("airbooking.reviews.queue", 10000),
+				Integer.getInteger("airbooking.reviews.batch", 500),
+				Long.getLong("airbooking.reviews.lingerMillis", 2L));
+			this._reviews.start();
+		}
+		return this._reviews;
+	}
+
+	/**
+	 * Method to get the generator of booking references of this database.
+	 *
+	 * @return the booking references
+	 */
+	public BookingReferences getBookingReferences(){
+		return this._references;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to get the ids reserved for new passengers.
+	 *
+	 * @return the blocks of passengerID_seq
+	 */
+	public SequenceBlocks getPassengerIdSequence(){
+		return this._passengerIdSequence;
+	}
+
+	/**
+	 * Method to get the ids reserved for new reviews.
+	 *
+	 * @return the blocks of reviewID_seq
+	 */
+	public SequenceBlocks getReviewIdSequence(){
+		return this._reviewIdSequence;
+	}
+
+	/**
+	 * Method to get the operations of the menu as a thread-safe service.
+	 *
+	 * @return the service of this database
+	 */
+	public AirBookingService getService(){
+		return this._service;
+	}
+
+	/**
+	 * Method to close the physical connections if they are open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
+		synchronized(this){
+			if (this._popularity != null){
+				this._popularity.stop ();
+			}//end if
+			if (this._loadFactors != null){
+				this._loadFactors.stop ();
+			}//end if
+			if (this._referenceData != null){
+				this._referenceData.stop ();
 			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+			if (this._partitions != null){
+				this._partitions.stop ();
+			}//end if
+			if (this._reviews != null){
+				this._reviews.stop ();
+			}//end if
+		}
+		if (this._replicas != null){
+			this._replicas.stop ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
+		if (this._metrics != null){
+			String file = System.getProperty ("airbooking.metrics.file");
+			if (file != null){
+				try{
+					this._metrics.dump (file);
+				}catch(IOException e){
+					System.err.println ("Unable to write the metrics to " + file + ": " + e.getMessage ());
+				}
+			}//end if
+			this._metrics.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -301,7 +722,7 @@ public class AirBooking{
 	}//end readChoice
 	
 	public static boolean isValidDate(int day, int month, int year){
-		if(month > 12 || month < 0 || day > 31 || day < 0 || year < 1900){
+		if(month > 12 || month < 1 || day > 31 || day < 1 || year < 1900){
 			return false;
 		}
 		if((month == 4 || month == 6 || month == 9 || month == 11) && day > 30){
@@ -318,6 +739,14 @@ public class AirBooking{
 		return true;
 	}
 
+	/**
+	 * Builds the SQL date bound to DATE parameters from a date already
+	 * checked by isValidDate.
+	 */
+	public static java.sql.Date makeDate(int day, int month, int year){
+		return java.sql.Date.valueOf(String.format("%04d-%02d-%02d", year, month, day));
+	}
+
 	public static void AddPassenger(AirBooking esql){//1
 		//Add a new passenger to the database
 	    //find a way to replace missing valuse that exist
@@ -395,35 +824,23 @@ public class AirBooking{
 		System.out.println("invalid input. Passenger not created");
 		return;
 	    }
-	    String Date = "";
+	    java.sql.Date bdate = null;
 	    if(isValidDate(day, month, year)){
-	    	Date = Integer.toString(month) + "-" + Integer.toString(day) + "-" + Integer.toString(year);
+	    	bdate = makeDate(day, month, year);
 	    }
 	    else{
 	    	System.out.println("Invalid input. Passenger not created");
 	    	return;
 	    }
 	    try{
-	        esql.executeQuery("INSERT INTO passenger (passnum, fullname, bdate, country) values('"+
-				  passportNum + "','" + name + "','"+ Date + "','" + country + "')");
+	        esql.getService().addPassenger(new PassengerRequest(passportNum, name, bdate, country));
+	    } catch(IllegalArgumentException e){
+		System.out.println(e.getMessage());
 	    } catch(SQLException e){
 		System.out.println(e);
 	    }
 	}
 	
-	public static String makeReference(){
-		String CharList = "ABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
-		Random pos = new Random();
-		String ref = "";
-		
-		while(ref.length() < 10)
-		{
-			ref += CharList.charAt(Math.abs(pos.nextInt() % CharList.length()));
-		}
-		
-		return ref;
-	}
-	
 	public static void BookFlight(AirBooking esql){//2
 		//Book Flight for an existing customer
 		//check passenger is not already booked for flight, loop invalid inputs
@@ -441,48 +858,30 @@ public class AirBooking{
 			return;
 		}
 		String Date = "";
+		java.sql.Date departure = null;
 	    if(isValidDate(day, month, year)){
 	    	Date = Integer.toString(month) + "-" + Integer.toString(day) + "-" + Integer.toString(year);
+	    	departure = makeDate(day, month, year);
 	    }
 	    else{
 	    	System.out.println("Invalid date. Flight not booked. Returning to home screen.");
 	    	return;
 	    }
 	    System.out.println(Date);
-		String bookRef = makeReference();
 		try{
 			System.out.println("Enter Passport number:");
 			String passportnum = sc.nextLine();
-			List<List<String>> results =  esql.executeQueryAndReturnResult("Select pid from passenger WHERE passnum = '" + passportnum + "'");
-			int passID = Integer.parseInt(results.get(0).get(0));
-			System.out.println(passID);
-			int bc = esql.executeQuery("SELECT * FROM flight WHERE flightnum = '" + fNum + "'");
-			if(bc == 0){
-				System.out.println("That is not a valid flight.");
-				return;
+			BookingResult booking = esql.getService().bookFlight(new BookingRequest(passportnum, fNum, departure));
+			switch(booking.status){
+				case NO_SUCH_PASSENGER: System.out.println("That is not a valid passenger."); return;
+				case NO_SUCH_FLIGHT: System.out.println("That is not a valid flight."); return;
+				case FULL: System.out.println("Flight is full. Please try to book anohter."); return;
+				case SEAT_TAKEN: System.out.println("That seat is taken. Please try again."); return;
+				case INVALID_SEAT: System.out.println("That is not a seat of this flight."); return;
+				case DUPLICATE: System.out.println("This passenger is already booked on this flight."); return;
+				default: break;
 			}
-			bc = esql.executeQuery("SELECT * FROM Passenger WHERE pID = " + passID);
-			if(bc == 0){
-				System.out.println("That is not a valid passenger.");
-			}
-			String query = "SELECT DISTINCT (SELECT COUNT(*) FROM Booking WHERE flightNum = '";
-			query += fNum;
-			query += "') AS booked, f.seats, (f.seats - (SELECT COUNT(*) FROM Booking WHERE flightNum = '";
-			query += fNum;
-			query += "')) AS open ";
-			query += "FROM Flight f, booking b ";
-			query += "WHERE b.flightNum = f.flightNum AND b.flightNum = '";
-			query += fNum;
-			query += "' AND b.departure = '";
-			query += Date;
-			query += "';";
-			results = esql.executeQueryAndReturnResult(query);
-			if(results.size() > 0 && Integer.parseInt(results.get(0).get(2)) <= 0){
-				System.out.println("Flight is full. Please try to book anohter.");
-				return;
-			}
-			esql.executeUpdate("INSERT INTO Booking(bookRef, departure, pID, flightNum) values('" + bookRef + "','" + Date + "'," + passID + ",'" + fNum + "')");
-			esql.executeQueryAndPrintResult("SELECT * FROM Booking b WHERE b.bookRef = '" + bookRef + "';");
+			esql.executeQueryAndPrintResult("SELECT * FROM Booking b WHERE b.bookRef = ? AND b.departure = ?", booking.bookRef, departure);
 		}
 		catch(SQLException e){
 			System.out.println(e);
@@ -502,37 +901,15 @@ public class AirBooking{
 	    sc.nextLine();
 	    String comment = sc.nextLine();;
 	    try{
-		int rc = 0;
-		int pid = 0;
-		List <List<String>> result = esql.executeQueryAndReturnResult("SELECT pid FROM passenger WHERE passnum = '" + passportnum + "'");
-		rc = result.size();
-		if(rc == 0){
-			System.out.println("Not a valid passenger");
-			return;
-		} else {
-			pid = Integer.parseInt(result.get(0).get(0));
-		}
-		rc = esql.executeQuery("SELECT * FROM flight WHERE flightnum = '" + flightnum + "'");
-		if(rc == 0){
-			System.out.println("Not A valid flight");
-			return;
-		}
-		rc = esql.executeQuery("SELECT * FROM BOOKING WHERE pid = " + pid + " and flightnum = '" + flightnum + "' and departure <= current_date");
-		if(rc == 0){
-		    System.out.println("This passenger has never taken this flight");
-		    return;
-		}
-		rc = esql.executeQuery("SELECT * FROM ratings WHERE pid = " + pid + " and flightnum = '" + flightnum + "'");
-		if(rc > 0){
-		    System.out.println("This passenger has already reviewed this flight");
-		    return;
+		switch(esql.getService().review(new ReviewRequest(passportnum, flightnum, score, comment))){
+			case NO_SUCH_PASSENGER: System.out.println("Not a valid passenger"); return;
+			case NO_SUCH_FLIGHT: System.out.println("Not A valid flight"); return;
+			case NOT_FLOWN: System.out.println("This passenger has never taken this flight"); return;
+			case ALREADY_RATED: System.out.println("This passenger has already reviewed this flight"); return;
+			default: break;
 		}
-		if(score > 5 || score < 0){
-		    System.out.println("Invalid Score Provided");
-		    return;
-		}
-		esql.executeQuery("Insert INTO ratings (pid, flightnum, score, comment) values(" + pid + ",'" + flightnum + "'," +
-			score + ",'" + comment + "')");
+	    } catch(IllegalArgumentException e){
+		System.out.println(e.getMessage());
 	    } catch(SQLException e){
 		System.out.println(e);
 	    }
@@ -547,8 +924,7 @@ public class AirBooking{
 			flightnumber = sc.nextLine();
 		}
 		try{
-			int count = esql.executeQuery("Select * from flight where flightnum = '" + flightnumber + "'");
-			if(count == 0)
+			if(esql.getReferenceData().getFlight(flightnumber) == null)
 				insertFlight(flightnumber, esql);
 			else
 				updateFlight(flightnumber, esql);
@@ -589,39 +965,43 @@ public class AirBooking{
 		int airid = sc.nextInt();
 		sc.nextLine();
 		try{
-			List< List <String> > defaults = esql.executeQueryAndReturnResult("Select * from flight where flightnum = '" + flightnumber + "'");
+			Flight defaults = esql.getReferenceData().getFlight(flightnumber);
+			if(defaults == null){
+				System.out.println("That is not a valid flight.");
+				return;
+			}
 			if(origin.length() == 0){
-				origin = defaults.get(0).get(2).trim();
+				origin = defaults.origin;
 			}
 			if(destination.length() == 0){
-				destination = defaults.get(0).get(3).trim();
+				destination = defaults.destination;
 			}
 			if(plane.length() == 0){
-				plane = defaults.get(0).get(4).trim();
+				plane = defaults.plane;
 			}
 			if(seats == -1){
-				seats = Integer.parseInt(defaults.get(0).get(5));
+				seats = defaults.seats;
 			}
 			if(time == -1){
-				time = Integer.parseInt(defaults.get(0).get(6));
-			}
-			for(int i = 0; i < defaults.size(); ++i){
-				for(int j = 0; j < defaults.get(i).size(); ++j){
-					System.out.println(defaults.get(i).get(j));
-				}
+				time = defaults.duration;
 			}
+			System.out.println(defaults.airId);
+			System.out.println(defaults.flightNum);
+			System.out.println(defaults.origin);
+			System.out.println(defaults.destination);
+			System.out.println(defaults.plane);
+			System.out.println(defaults.seats);
+			System.out.println(defaults.duration);
 			if(airid == -1){
-				airid = Integer.parseInt(defaults.get(0).get(0));
+				airid = defaults.airId;
 			}
-			else{
-				int count = esql.executeQuery("SELECT * FROM airline WHERE airid = " + airid);
-				if(count < 0){
-					System.out.println("Invalid airid");
-					return;
-				}
+			else if(esql.getReferenceData().getAirline(airid) == null){
+				System.out.println("Invalid airid");
+				return;
 			}
-			esql.executeQuery("UPDATE flight set airid = " + airid + ", origin = '" + origin + "', destination = '" + destination + "', plane = '" + plane + "', seats = " + seats + 
-				", duration = " + time +  " where flightnum = '" + flightnumber + "'");
+			esql.getService().saveFlight(new Flight(airid, flightnumber, origin, destination, plane, seats, time));
+		} catch(IllegalArgumentException e){
+			System.out.println(e.getMessage());
 		} catch(SQLException e){
 			System.out.println(e);
 		}
@@ -687,13 +1067,13 @@ public class AirBooking{
 		int airid = sc.nextInt();
 		sc.nextLine();
 		try{
-			int count = esql.executeQuery("SELECT * FROM airline WHERE airid = " + airid);
-			if(count < 0){
+			if(esql.getReferenceData().getAirline(airid) == null){
 				System.out.println("Invalid airid");
 				return;
 			}
-			esql.executeQuery("Insert into flight (airid, flightnum, origin, destination, plane, seats, duration)" + 
-				"values (" + airid + ",'" + flightnumber + "','" + origin + "','" + destination + "','" + plane + "'," + seats + "," + time +")");
+			esql.getService().saveFlight(new Flight(airid, flightnumber, origin, destination, plane, seats, time));
+		} catch(IllegalArgumentException e){
+			System.out.println(e.getMessage());
 		} catch(SQLException e){
 			System.out.println(e);
 		}
@@ -701,20 +1081,40 @@ public class AirBooking{
 	
 	public static void ListAvailableFlightsBetweenOriginAndDestination(AirBooking esql) throws Exception{//5
 		//List all flights between origin and distination (i.e. flightNum,origin,destination,plane,duration)
-		System.out.println("Enter Origin:");
-		String origin = sc.nextLine();
-		System.out.println("Enter Destination:");
-		String destination = sc.nextLine();
+		String origin = readCity(esql, "Enter Origin:");
+		if(origin == null){
+			return;
+		}
+		String destination = readCity(esql, "Enter Destination:");
+		if(destination == null){
+			return;
+		}
 		try{
-			int fc = esql.executeQuery("SELECT * FROM flight WHERE origin = '" + origin + "' and destination = '" + destination + "'");
-			if(fc == 0)
+			List<Flight> flights = esql.getService().listFlights(origin, destination);
+			if(flights.size() == 0)
 			{
 				System.out.println("There are no flights offered between these two cities.");
+				//offer the shortest connections instead
+				printItineraries(esql.getService().findTrips(origin, destination, CONNECTION_LEGS, CONNECTION_RESULTS, null));
 				return;
 			}
-			esql.executeQueryAndPrintResult("SELECT * FROM flight WHERE origin = '" + origin + "' and destination = '" + destination + "'");
+			Writer out = listing();
+			out.write("airid\tflightnum\torigin\tdestination\tplane\tseats\tduration\t\n");
+			for(Flight f : flights){
+				cell(out, f.airId);
+				cell(out, f.flightNum);
+				cell(out, f.origin);
+				cell(out, f.destination);
+				cell(out, f.plane);
+				cell(out, f.seats);
+				cell(out, f.duration);
+				out.write('\n');
+			}
+			out.flush();
 		} catch (SQLException e){
 			System.out.println(e);
+		} catch (IOException e){
+			System.out.println(e);
 		} 
 	}
 	
@@ -727,12 +1127,31 @@ public class AirBooking{
 			System.out.println("Cannot look for negative or zero destinations.");
 			return;
 		}
+		System.out.println("Rank by 1) flights offered 2) seats booked departing today 3) this week 4) this month:");
+		int choice = sc.nextInt();
+		sc.nextLine();
+		if(choice < 1 || choice > 4){
+			System.out.println("Invalid ranking.");
+			return;
+		}
+		DestinationPopularity.Ranking ranking = DestinationPopularity.Ranking.values()[choice - 1];
 		try{
-			esql.executeQueryAndPrintResult("SELECT destination, COUNT(*) FROM Flight GROUP BY destination ORDER BY COUNT(*) DESC LIMIT " + numDests);
+			List<DestinationPopularity.DestinationCount> top = esql.getService().popularDestinations(ranking, numDests);
+			Writer out = listing();
+			out.write(ranking == DestinationPopularity.Ranking.ROUTES ? "destination\tcount\t\n" : "destination\tbooked\t\n");
+			for(DestinationPopularity.DestinationCount d : top){
+				cell(out, d.destination);
+				cell(out, d.count);
+				out.write('\n');
+			}
+			out.flush();
 		}
 		catch(SQLException e){
 			System.out.println(e);
 		}
+		catch(IOException e){
+			System.out.println(e);
+		}
 	}
 	
 	public static void ListHighestRatedRoutes(AirBooking esql){//7
@@ -745,20 +1164,34 @@ public class AirBooking{
 			return;
 		}
 		try{
-			esql.executeQueryAndPrintResult("SELECT a.name, f.flightnum, avg_score From" +
-				" (Select (SUM(score)/count(score)) avg_score, flightnum From ratings Group By(flightnum)) as average , flight f, airline a" +
-				" WHERE f.flightnum = average.flightnum and a.airid = f.airid ORDER By avg_score DESC LIMIT " + numRoutes);
+			List<RatedRoute> routes = esql.getService().highestRatedRoutes(numRoutes);
+			Writer out = listing();
+			out.write("name\tflightnum\tavg_score\tratings\t\n");
+			for(RatedRoute route : routes){
+				cell(out, route.airline);
+				cell(out, route.flightNum);
+				cell(out, String.valueOf(route.avgScore));
+				cell(out, route.ratings);
+				out.write('\n');
+			}
+			out.flush();
 		} catch(SQLException e){
 			System.out.println(e);
+		} catch(IOException e){
+			System.out.println(e);
 		}
 	}
 	
 	public static void ListFlightFromOriginToDestinationInOrderOfDuration(AirBooking esql){//8
 		//List flight to destination in order of duration (i.e. Airline name, flightNum, origin, destination, duration, plane)
-		System.out.println("Enter Origin:");
-		String origin = sc.nextLine();
-		System.out.println("Enter Destination:");
-		String destination = sc.nextLine();
+		String origin = readCity(esql, "Enter Origin:");
+		if(origin == null){
+			return;
+		}
+		String destination = readCity(esql, "Enter Destination:");
+		if(destination == null){
+			return;
+		}
 		System.out.println("How many flights would you like to list?");
 		int numFlights = sc.nextInt();
 		sc.nextLine();
@@ -766,19 +1199,144 @@ public class AirBooking{
 			System.out.println("Cannot look for negative or zero flights.");
 			return;
 		}
+		System.out.println("Most flights per trip (1 for direct flights only):");
+		int maxLegs = sc.nextInt();
+		sc.nextLine();
+		if(maxLegs < 1){
+			System.out.println("Cannot look for trips of less than one flight.");
+			return;
+		}
+		if(maxLegs > 1){
+			ListItineraries(esql, origin, destination, maxLegs, numFlights);
+			return;
+		}
 		try{
-			int fc = esql.executeQuery("SELECT * FROM flight WHERE origin = '" + origin + "' and destination = '" + destination + "'");
-			if(fc == 0)
+			List<Flight> flights = esql.getService().listFlightsByDuration(origin, destination, numFlights);
+			if(flights.size() == 0)
 			{
 				System.out.println("There are no flights offered between these two cities.");
 				return;
 			}
-			esql.executeQueryAndPrintResult("SELECT a.name, f.flightNum, f.origin, f.destination, f.duration " +
-			"FROM Airline a, Flight f WHERE a.airid = f.airid AND f.origin = '" + origin + "' AND f.destination = '" + destination + "' ORDER BY duration DESC LIMIT " + numFlights);
+			//airline names come from the reference data cache instead of a join
+			Writer out = listing();
+			out.write("name\tflightnum\torigin\tdestination\tduration\t\n");
+			for(Flight f : flights){
+				Airline airline = esql.getReferenceData().getAirline(f.airId);
+				cell(out, airline == null ? "" : airline.name);
+				cell(out, f.flightNum);
+				cell(out, f.origin);
+				cell(out, f.destination);
+				cell(out, f.duration);
+				out.write('\n');
+			}
+			out.flush();
 		}
 		catch(SQLException e){
 			System.out.println(e);
 		}
+		catch(IOException e){
+			System.out.println(e);
+		}
+	}
+	
+	/**
+	 * Reads a city and returns it as spelled in the database, telling the
+	 * user when it was corrected. A city that is not known is returned as
+	 * typed, as it may be new, after telling the user the closest cities.
+	 */
+	public static String readCity(AirBooking esql, String prompt){
+		System.out.println(prompt);
+		String typed = sc.nextLine();
+		try{
+			String city = esql.getService().resolveCity(typed);
+			if(city == null){
+				List<String> near = esql.getService().completeCity(typed, 5);
+				if(!near.isEmpty()){
+					System.out.println("Looking for " + typed.trim() + " as typed. Did you mean " + String.join(", ", near) + "?");
+				}
+				return typed;
+			}else if(!city.equals(typed.trim())){
+				System.out.println("Using " + city + ".");
+			}
+			return city;
+		}catch(SQLException e){
+			System.out.println(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Lists the numItineraries shortest trips of up to maxLegs flights,
+	 * optionally only over flights with open seats on a departure date.
+	 */
+	public static void ListItineraries(AirBooking esql, String origin, String destination, int maxLegs, int numItineraries){
+		System.out.println("Departure date to only use flights with open seats (M/D/YYYY, enter to skip):");
+		String date = sc.nextLine().trim();
+		java.sql.Date departure = null;
+		try{
+			if(date.length() > 0){
+				String[] mdy = date.split("/");
+				int month = mdy.length == 3 ? Integer.parseInt(mdy[0].trim()) : 0;
+				int day = mdy.length == 3 ? Integer.parseInt(mdy[1].trim()) : 0;
+				int year = mdy.length == 3 ? Integer.parseInt(mdy[2].trim()) : 0;
+				if(!isValidDate(day, month, year)){
+					System.out.println("Invalid date. Returning to home screen.");
+					return;
+				}
+				departure = makeDate(day, month, year);
+			}
+			List<Itinerary> trips = esql.getService().findTrips(origin, destination, maxLegs, numItineraries, departure);
+			if(trips.size() == 0){
+				System.out.println("There are no trips offered between these two cities.");
+				return;
+			}
+			printItineraries(trips);
+		}
+		catch(NumberFormatException e){
+			System.out.println("Invalid date. Returning to home screen.");
+		}
+		catch(SQLException e){
+			System.out.println(e);
+		}
+	}
+
+	static void printItineraries(List<Itinerary> trips){
+		if(trips.size() == 0){
+			return;
+		}
+		try{
+			Writer out = listing();
+			out.write("duration\tflights\titinerary\t\n");
+			for(Itinerary trip : trips){
+				cell(out, trip.duration);
+				cell(out, trip.legs.size());
+				cell(out, trip.toString());
+				out.write('\n');
+			}
+			out.flush();
+		}catch(IOException e){
+			System.out.println(e);
+		}
+	}
+
+	/**
+	 * Returns a writer for the rows of one listing, which reach standard
+	 * out in one write when it is flushed instead of a println per row.
+	 * It is flushed but never closed, as that would close System.out.
+	 */
+	static Writer listing(){
+		return new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	//one column of a listing row and the tab after it
+	static void cell(Writer out, String value) throws IOException {
+		out.write(value == null ? "" : value);
+		out.write('\t');
+	}
+
+	static void cell(Writer out, long value) throws IOException {
+		out.write(Long.toString(value));
+		out.write('\t');
 	}
 	
 	public static void FindNumberOfAvailableSeatsForFlight(AirBooking esql){//9
@@ -793,8 +1351,10 @@ public class AirBooking{
 		System.out.println("Please enter the year (numerical) of your flight:");
 		int year = sc.nextInt();
 		String Date = "";
+		java.sql.Date departure = null;
 	    if(isValidDate(day, month, year)){
 	    	Date = Integer.toString(month) + "-" + Integer.toString(day) + "-" + Integer.toString(year);
+	    	departure = makeDate(day, month, year);
 	    }
 	    else{
 	    	System.out.println("Invalid date. Returning to home screen.");
@@ -802,18 +1362,14 @@ public class AirBooking{
 	    }
 	    System.out.println(Date);
 	    try{
-			String query = "SELECT DISTINCT f.flightNum, f.origin, f.destination, b.departure, (SELECT COUNT(*) FROM Booking WHERE flightNum = '";
-			query += fNum;
-			query += "') AS booked, f.seats, (f.seats - (SELECT COUNT(*) FROM Booking WHERE flightNum = '";
-			query += fNum;
-			query += "')) AS open ";
-			query += "FROM Flight f, booking b ";
-			query += "WHERE b.flightNum = f.flightNum AND b.flightNum = '";
-			query += fNum;
-			query += "' AND b.departure = '";
-			query += Date;
-			query += "';";
-			esql.executeQueryAndPrintResult(query);
+			SeatAvailability seats = esql.getService().getAvailability(fNum, departure);
+			if(seats == null){
+				System.out.println("That is not a valid flight.");
+				return;
+			}
+			System.out.println("flightnum\torigin\tdestination\tdeparture\tbooked\tseats\topen\t");
+			System.out.println(seats.flightNum + "\t" + seats.origin + "\t" + seats.destination + "\t" + seats.departure + "\t" +
+				seats.booked + "\t" + seats.seats + "\t" + seats.open() + "\t");
 		}
 		catch(SQLException e){
 			System.out.println(e);
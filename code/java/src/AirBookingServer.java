@@ -0,0 +1,486 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves AirBookingService over HTTP with the server built into the JDK, so
+ * any number of clients can use one JVM at the same time. Parameters come
+ * from the query string, or for POST from a form encoded body, dates are
+ * YYYY-MM-DD, and every response is a JSON object.
+ *
+ *   POST /passengers   passNum, fullName, bdate, country
+ *   POST /bookings     passNum, flightNum, departure [seat]
+ *   POST /reviews      passNum, flightNum, score, comment
+ *   GET  /reviews/search q [flightNum] [airId] [minScore] [maxScore] [limit=20] [after]
+ *   POST /flights      airId, flightNum, origin, destination, plane, seats, duration
+ *   GET  /flights      origin, destination
+ *   GET  /cities       prefix [k=10]
+ *   GET  /destinations [ranking=ROUTES|DAY|WEEK|MONTH] [k=10]
+ *   GET  /routes       [k=10]
+ *   GET  /trips        origin, destination [maxLegs=3] [k=10] [departure]
+ *   GET  /seats        flightNum, departure
+ *   GET  /calendar     flightNums (comma separated), from, to
+ *   GET  /loadfactors  [by=route,airline,month] [from] [to]
+ *   GET  /metrics      statement timings in the Prometheus text format (see QueryMetrics)
+ *
+ * Invalid input is answered with 400, a taken key with 409 and any other
+ * database error with 500. Requests run on virtual threads when the JVM
+ * has them (Java 21 and later), otherwise on a fixed pool of
+ * airbooking.server.threads threads; either way the connection pool bounds
+ * how many of them reach the database at once.
+ *
+ * Usage: AirBookingServer <dbname> <port> <user> [http port]
+ */
+
+public class AirBookingServer{
+	private static final String UNIQUE_VIOLATION = "23505";
+
+	/**
+	 * One endpoint: checks the method, parses the parameters, runs the
+	 * operation and writes its JSON answer or the error.
+	 */
+	private static abstract class Endpoint implements HttpHandler{
+		private final String method;
+
+		Endpoint(String method){
+			this.method = method;
+		}
+
+		/**
+		 * Runs the operation and appends its JSON answer.
+		 *
+		 * @return the HTTP status of the answer
+		 */
+		abstract int handle(Map<String, String> params, StringBuilder json) throws SQLException;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			int status;
+			StringBuilder json = new StringBuilder();
+			try{
+				if(!exchange.getRequestMethod().equals(this.method)){
+					status = 405;
+					error(json, "Use " + this.method);
+				}else{
+					Map<String, String> params = parse(exchange.getRequestURI().getRawQuery());
+					if(this.method.equals("POST")){
+						params.putAll(parse(read(exchange.getRequestBody())));
+					}
+					status = handle(params, json);
+				}
+			}catch(IllegalArgumentException e){
+				status = 400;
+				json.setLength(0);
+				error(json, e.getMessage());
+			}catch(SQLException e){
+				status = UNIQUE_VIOLATION.equals(e.getSQLState()) ? 409 : 500;
+				json.setLength(0);
+				error(json, e.getMessage());
+			}catch(RuntimeException e){
+				status = 500;
+				json.setLength(0);
+				error(json, e.toString());
+			}
+			byte[] body = json.toString().getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(status, body.length);
+			OutputStream out = exchange.getResponseBody();
+			try{
+				out.write(body);
+			}finally{
+				out.close();
+			}
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	public AirBookingServer(final AirBookingService service, int port) throws IOException {
+		// without TCP_NODELAY every answer waits ~40ms for the client's delayed ACK
+		if(System.getProperty("sun.net.httpserver.nodelay") == null){
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		this.server = HttpServer.create(new InetSocketAddress(port), Integer.getInteger("airbooking.server.backlog", 256));
+		this.executor = newExecutor(Integer.getInteger("airbooking.server.threads", 64));
+		this.server.setExecutor(this.executor);
+
+		this.server.createContext("/passengers", new Endpoint("POST"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				int pid = service.addPassenger(new PassengerRequest(required(p, "passNum"), required(p, "fullName"),
+					date(required(p, "bdate")), required(p, "country")));
+				json.append("{\"pID\":").append(pid).append(",\"passNum\":").append(quote(p.get("passNum").trim())).append('}');
+				return 201;
+			}
+		});
+		this.server.createContext("/bookings", new Endpoint("POST"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				BookingResult booking = service.bookFlight(new BookingRequest(required(p, "passNum"), required(p, "flightNum"),
+					date(required(p, "departure")), p.containsKey("seat") ? Integer.parseInt(p.get("seat").trim()) : 0));
+				json.append("{\"status\":").append(quote(booking.status.name()))
+					.append(",\"bookRef\":").append(quote(booking.bookRef))
+					.append(",\"seat\":").append(booking.seat).append('}');
+				return booking.isBooked() ? 201 : 200;
+			}
+		});
+		this.server.createContext("/reviews", new Endpoint("POST"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				ReviewResult review = service.review(new ReviewRequest(required(p, "passNum"), required(p, "flightNum"),
+					Integer.parseInt(required(p, "score")), p.containsKey("comment") ? p.get("comment") : ""));
+				json.append("{\"status\":").append(quote(review.name())).append('}');
+				return review == ReviewResult.RATED ? 201 : 200;
+			}
+		});
+		this.server.createContext("/flights", new HttpHandler(){
+			private final Endpoint save = new Endpoint("POST"){
+				int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+					boolean inserted = service.saveFlight(new Flight(Integer.parseInt(required(p, "airId")), required(p, "flightNum"),
+						required(p, "origin"), required(p, "destination"), required(p, "plane"),
+						Integer.parseInt(required(p, "seats")), Integer.parseInt(required(p, "duration"))));
+					json.append("{\"inserted\":").append(inserted).append('}');
+					return inserted ? 201 : 200;
+				}
+			};
+			private final Endpoint list = new Endpoint("GET"){
+				int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+					List<Flight> flights = service.listFlights(required(p, "origin"), required(p, "destination"));
+					json.append("{\"flights\":[");
+					for(int i = 0; i < flights.size(); ++i){
+						flight(json.append(i == 0 ? "" : ","), flights.get(i));
+					}
+					json.append("]}");
+					return 200;
+				}
+			};
+
+			public void handle(HttpExchange exchange) throws IOException {
+				(exchange.getRequestMethod().equals("POST") ? this.save : this.list).handle(exchange);
+			}
+		});
+		this.server.createContext("/cities", new Endpoint("GET"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				List<String> cities = service.completeCity(optional(p, "prefix", ""), Integer.parseInt(optional(p, "k", "10")));
+				json.append("{\"cities\":[");
+				for(int i = 0; i < cities.size(); ++i){
+					json.append(i == 0 ? "" : ",").append(quote(cities.get(i)));
+				}
+				json.append("]}");
+				return 200;
+			}
+		});
+		this.server.createContext("/destinations", new Endpoint("GET"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				DestinationPopularity.Ranking ranking = DestinationPopularity.Ranking.valueOf(optional(p, "ranking", "ROUTES").toUpperCase());
+				List<DestinationPopularity.DestinationCount> top = service.popularDestinations(ranking, Integer.parseInt(optional(p, "k", "10")));
+				json.append("{\"ranking\":").append(quote(ranking.name())).append(",\"destinations\":[");
+				for(int i = 0; i < top.size(); ++i){
+					json.append(i == 0 ? "{" : ",{").append("\"destination\":").append(quote(top.get(i).destination))
+						.append(",\"count\":").append(top.get(i).count).append('}');
+				}
+				json.append("]}");
+				return 200;
+			}
+		});
+		this.server.createContext("/routes", new Endpoint("GET"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				List<RatedRoute> routes = service.highestRatedRoutes(Integer.parseInt(optional(p, "k", "10")));
+				json.append("{\"routes\":[");
+				for(int i = 0; i < routes.size(); ++i){
+					RatedRoute r = routes.get(i);
+					json.append(i == 0 ? "{" : ",{").append("\"airline\":").append(quote(r.airline))
+						.append(",\"flightNum\":").append(quote(r.flightNum))
+						.append(",\"avgScore\":").append(r.avgScore)
+						.append(",\"ratings\":").append(r.ratings).append('}');
+				}
+				json.append("]}");
+				return 200;
+			}
+		});
+		this.server.createContext("/trips", new Endpoint("GET"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				String departure = p.get("departure");
+				List<Itinerary> trips = service.findTrips(required(p, "origin"), required(p, "destination"),
+					Integer.parseInt(optional(p, "maxLegs", "3")), Integer.parseInt(optional(p, "k", "10")),
+					departure == null ? null : date(departure));
+				json.append("{\"trips\":[");
+				for(int i = 0; i < trips.size(); ++i){
+					Itinerary trip = trips.get(i);
+					json.append(i == 0 ? "{" : ",{").append("\"duration\":").append(trip.duration).append(",\"legs\":[");
+					for(int l = 0; l < trip.legs.size(); ++l){
+						flight(json.append(l == 0 ? "" : ","), trip.legs.get(l));
+					}
+					json.append("]}");
+				}
+				json.append("]}");
+				return 200;
+			}
+		});
+		this.server.createContext("/seats", new Endpoint("GET"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				SeatAvailability seats = service.getAvailability(required(p, "flightNum"), date(required(p, "departure")));
+				if(seats == null){
+					error(json, "That is not a valid flight.");
+					return 404;
+				}
+				json.append("{\"flightNum\":").append(quote(seats.flightNum))
+					.append(",\"origin\":").append(quote(seats.origin))
+					.append(",\"destination\":").append(quote(seats.destination))
+					.append(",\"departure\":").append(quote(seats.departure.toString()))
+					.append(",\"booked\":").append(seats.booked)
+					.append(",\"seats\":").append(seats.seats)
+					.append(",\"capacity\":").append(seats.capacity)
+					.append(",\"open\":").append(seats.open()).append('}');
+				return 200;
+			}
+		});
+		this.server.createContext("/reviews/search", new Endpoint("GET"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				ReviewSearch.Page page = service.searchReviews(required(p, "q"), new ReviewSearch.Filter(p.get("flightNum"),
+					integer(p.get("airId")), integer(p.get("minScore")), integer(p.get("maxScore"))),
+					Integer.parseInt(optional(p, "limit", "20")), p.get("after"));
+				json.append("{\"reviews\":[");
+				for(int i = 0; i < page.matches.size(); ++i){
+					ReviewSearch.Match m = page.matches.get(i);
+					json.append(i == 0 ? "{" : ",{").append("\"rID\":").append(m.rID)
+						.append(",\"flightNum\":").append(quote(m.flightNum))
+						.append(",\"score\":").append(m.score)
+						.append(",\"rank\":").append(m.rank)
+						.append(",\"snippet\":").append(quote(m.snippet))
+						.append(",\"comment\":").append(quote(m.comment)).append('}');
+				}
+				json.append("],\"next\":").append(page.next == null ? "null" : quote(page.next)).append('}');
+				return 200;
+			}
+		});
+		this.server.createContext("/loadfactors", new Endpoint("GET"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				String from = p.get("from");
+				String to = p.get("to");
+				List<LoadFactor> factors = service.loadFactors(LoadFactors.dimensions(optional(p, "by", "")),
+					from == null ? null : date(from), to == null ? null : date(to));
+				json.append("{\"loadFactors\":[");
+				for(int i = 0; i < factors.size(); ++i){
+					LoadFactor f = factors.get(i);
+					json.append(i == 0 ? "{" : ",{");
+					if(f.origin != null){
+						json.append("\"origin\":").append(quote(f.origin)).append(",\"destination\":").append(quote(f.destination)).append(',');
+					}
+					if(f.airId != null){
+						json.append("\"airId\":").append(f.airId).append(',');
+					}
+					if(f.month != null){
+						json.append("\"month\":").append(quote(f.month)).append(',');
+					}
+					json.append("\"bookings\":").append(f.bookings)
+						.append(",\"seats\":").append(f.seats)
+						.append(",\"departures\":").append(f.departures)
+						.append(",\"loadFactor\":").append(f.loadFactor()).append('}');
+				}
+				json.append("]}");
+				return 200;
+			}
+		});
+		this.server.createContext("/calendar", new Endpoint("GET"){
+			int handle(Map<String, String> p, StringBuilder json) throws SQLException {
+				List<String> flightNums = new ArrayList<String>();
+				for(String flightNum : required(p, "flightNums").split(",")){
+					if(!flightNum.trim().isEmpty()){
+						flightNums.add(flightNum.trim());
+					}
+				}
+				Map<String, List<SeatAvailability>> calendar = service.getCalendar(flightNums, date(required(p, "from")),
+					date(required(p, "to")));
+				json.append("{\"flights\":[");
+				boolean first = true;
+				for(Map.Entry<String, List<SeatAvailability>> entry : calendar.entrySet()){
+					json.append(first ? "{" : ",{").append("\"flightNum\":").append(quote(entry.getKey())).append(",\"days\":[");
+					first = false;
+					List<SeatAvailability> days = entry.getValue();
+					for(int i = 0; i < days.size(); ++i){
+						SeatAvailability day = days.get(i);
+						json.append(i == 0 ? "{" : ",{").append("\"departure\":").append(quote(day.departure.toString()))
+							.append(",\"booked\":").append(day.booked)
+							.append(",\"capacity\":").append(day.capacity)
+							.append(",\"open\":").append(day.open()).append('}');
+					}
+					json.append("]}");
+				}
+				json.append("]}");
+				return 200;
+			}
+		});
+	}
+
+	/**
+	 * Serves the given metrics on GET /metrics, for Prometheus to scrape.
+	 */
+	public void serveMetrics(final QueryMetrics metrics){
+		this.server.createContext("/metrics", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				StringWriter text = new StringWriter();
+				metrics.writePrometheus(text);
+				byte[] body = text.toString().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try{
+					out.write(body);
+				}finally{
+					out.close();
+				}
+			}
+		});
+	}
+
+	public void start(){
+		this.server.start();
+	}
+
+	/**
+	 * Stops accepting requests, waits up to the given number of seconds for
+	 * the running ones and stops the request threads.
+	 */
+	public void stop(int delaySeconds){
+		this.server.stop(delaySeconds);
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Returns an executor starting one virtual thread per task when the JVM
+	 * has virtual threads, and a fixed pool of the given size otherwise.
+	 */
+	static ExecutorService newExecutor(int threads){
+		if(Boolean.parseBoolean(System.getProperty("airbooking.server.virtualThreads", "true"))){
+			try{
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}catch(Exception e){
+				// older JVM, fall through to the thread pool
+			}
+		}
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	private static Map<String, String> parse(String encoded) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		if(encoded == null || encoded.length() == 0){
+			return params;
+		}
+		for(String pair : encoded.split("&")){
+			int eq = pair.indexOf('=');
+			if(eq > 0){
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while((n = in.read(buffer)) > 0){
+			bytes.write(buffer, 0, n);
+		}
+		return bytes.toString("UTF-8");
+	}
+
+	private static String required(Map<String, String> params, String name){
+		String value = params.get(name);
+		if(value == null || value.trim().length() == 0){
+			throw new IllegalArgumentException("Missing parameter " + name);
+		}
+		return value.trim();
+	}
+
+	private static String optional(Map<String, String> params, String name, String defaultValue){
+		String value = params.get(name);
+		return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+	}
+
+	private static Integer integer(String value){
+		return value == null ? null : Integer.valueOf(value);
+	}
+
+	private static java.sql.Date date(String value){
+		try{
+			return java.sql.Date.valueOf(value);
+		}catch(IllegalArgumentException e){
+			throw new IllegalArgumentException("Invalid date " + value + ", use YYYY-MM-DD");
+		}
+	}
+
+	private static void flight(StringBuilder json, Flight f){
+		json.append("{\"airId\":").append(f.airId)
+			.append(",\"flightNum\":").append(quote(f.flightNum))
+			.append(",\"origin\":").append(quote(f.origin))
+			.append(",\"destination\":").append(quote(f.destination))
+			.append(",\"plane\":").append(quote(f.plane))
+			.append(",\"seats\":").append(f.seats)
+			.append(",\"duration\":").append(f.duration).append('}');
+	}
+
+	private static void error(StringBuilder json, String message){
+		json.append("{\"error\":").append(quote(message)).append('}');
+	}
+
+	static String quote(String s){
+		if(s == null){
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for(int i = 0; i < s.length(); ++i){
+			char c = s.charAt(i);
+			switch(c){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if(c < 0x20){
+						sb.append(String.format("\\u%04x", (int) c));
+					}else{
+						sb.append(c);
+					}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + AirBookingServer.class.getName() +
+					" <dbname> <port> <user> [http port]");
+			return;
+		}
+		final AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		final AirBookingServer server = new AirBookingServer(esql.getService(), args.length > 3 ? Integer.parseInt(args[3]) : 8080);
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				server.stop(1);
+				esql.cleanup();
+			}
+		});
+		if(esql.getMetrics() != null){
+			server.serveMetrics(esql.getMetrics());
+		}
+		esql.getBookingPartitions().start(Integer.getInteger("airbooking.partitions.monthsAhead", 12));
+		server.start();
+		System.out.println("Serving on port " + (args.length > 3 ? args[3] : "8080"));
+	}
+}
@@ -0,0 +1,376 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The operations of the AirBooking menu without the prompts: every method
+ * takes its input as arguments and returns typed results instead of
+ * reading from the shared scanner and printing. The menu and the
+ * AirBookingServer both go through this class.
+ *
+ * The service keeps no state of its own; connections come from the pool
+ * and the caches it uses are thread-safe, so one instance serves any number
+ * of threads. Invalid input is reported with IllegalArgumentException.
+ */
+
+public class AirBookingService{
+	private static final String FLIGHT_COLUMNS = "airId, flightNum, origin, destination, plane, seats, duration";
+	static final String FLIGHTS = QueryMetrics.named("ListAvailableFlights.flights",
+		"SELECT " + FLIGHT_COLUMNS + " FROM Flight WHERE origin = ? AND destination = ?");
+	static final String FLIGHTS_BY_DURATION = QueryMetrics.named("ListFlightsByDuration.flights",
+		"SELECT " + FLIGHT_COLUMNS + " FROM Flight WHERE origin = ? AND destination = ? ORDER BY duration DESC LIMIT ?");
+	private static final String RATED_ROUTES = QueryMetrics.named("ListHighestRatedRoutes.routes",
+		"SELECT flightNum, ROUND(avgScore, 2), scoreCount FROM RouteRating ORDER BY avgScore DESC, flightNum LIMIT ?");
+	private static final int MAX_CALENDAR_DAYS = 366;
+
+	private final AirBooking esql;
+	private final BookingEngine engine;
+	private final ReviewSearch reviewSearch;
+
+	public AirBookingService(AirBooking esql){
+		this.esql = esql;
+		this.engine = new BookingEngine(esql, AirBooking.BOOKING_ATTEMPTS);
+		this.reviewSearch = new ReviewSearch(esql);
+	}
+
+	/**
+	 * Adds a passenger (option 1).
+	 *
+	 * @return the id given to the passenger
+	 * @throws java.sql.SQLException when the insert failed, e.g. for a
+	 *         passport number that is taken
+	 */
+	public int addPassenger(final PassengerRequest request) throws SQLException {
+		if(request.passNum == null || request.passNum.length() != 10){
+			throw new IllegalArgumentException("Invalid passport number. A passport number has 10 characters.");
+		}
+		if(isEmpty(request.fullName) || isEmpty(request.country) || request.bdate == null){
+			throw new IllegalArgumentException("Name, country and birth date are required.");
+		}
+		//the id is reserved here, so the getPassengerID trigger does not fire
+		int pid = esql.withConnection(new SqlWork<Integer>(){
+			public Integer run(PooledConnection conn) throws SQLException {
+				int pid = esql.getPassengerIdSequence().next(conn);
+				conn.executeUpdate("INSERT INTO passenger (pid, passnum, fullname, bdate, country) values(?, ?, ?, ?, ?)",
+					pid, request.passNum, request.fullName, request.bdate, request.country);
+				return pid;
+			}
+		});
+		esql.pinReads();
+		esql.getPassengerIds().put(request.passNum, pid);
+		return pid;
+	}
+
+	/**
+	 * Books a seat (option 2).
+	 */
+	public BookingResult bookFlight(BookingRequest request) throws SQLException {
+		if(request.flightNum == null || request.passNum == null || request.departure == null){
+			throw new IllegalArgumentException("Passport number, flight number and departure are required.");
+		}
+		return this.engine.book(request.passNum, request.flightNum, request.departure, request.seat);
+	}
+
+	/**
+	 * Takes the review of a passenger who has flown the flight and not
+	 * reviewed it yet (option 3). The review goes through the review
+	 * pipeline, which checks and writes concurrent reviews together; this
+	 * waits until the batch of the review has committed.
+	 */
+	public ReviewResult review(ReviewRequest request) throws SQLException {
+		try{
+			return esql.getReviewPipeline().submit(request).get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the review", e);
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof SQLException){
+				throw (SQLException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException) e.getCause();
+			}
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	/**
+	 * Inserts a flight, or updates the flight with the same number
+	 * (option 4), and brings the caches, route graph and destination
+	 * rankings of this client up to date.
+	 *
+	 * @return true when the flight was inserted, false when it was updated
+	 */
+	public boolean saveFlight(Flight flight) throws SQLException {
+		if(flight.flightNum == null || flight.flightNum.length() < 5 || isEmpty(flight.origin) || isEmpty(flight.destination)
+			|| isEmpty(flight.plane) || flight.seats < 1 || flight.duration < 1){
+			throw new IllegalArgumentException("Invalid flight.");
+		}
+		ReferenceDataCache cache = esql.getReferenceData();
+		if(cache.getAirline(flight.airId) == null){
+			throw new IllegalArgumentException("Invalid airid");
+		}
+		Flight old = cache.getFlight(flight.flightNum);
+		if(old == null){
+			esql.executeUpdate("Insert into flight (airid, flightnum, origin, destination, plane, seats, duration) values (?, ?, ?, ?, ?, ?, ?)",
+				flight.airId, flight.flightNum, flight.origin, flight.destination, flight.plane, flight.seats, flight.duration);
+		}else{
+			esql.executeUpdate("UPDATE flight set airid = ?, origin = ?, destination = ?, plane = ?, seats = ?, duration = ? where flightnum = ?",
+				flight.airId, flight.origin, flight.destination, flight.plane, flight.seats, flight.duration, flight.flightNum);
+		}
+		cache.invalidateFlight(flight.flightNum);
+		RouteGraph routes = esql.startedRouteGraph();
+		if(routes != null){
+			routes.put(new Flight(flight.airId, flight.flightNum.trim(), flight.origin.trim(), flight.destination.trim(),
+				flight.plane.trim(), flight.seats, flight.duration));
+		}
+		CityIndex cities = esql.startedCities();
+		if(cities != null){
+			cities.add(flight.origin, flight.destination);
+		}
+		DestinationPopularity popularity = esql.startedDestinationPopularity();
+		if(popularity != null && (old == null || !old.destination.equals(flight.destination.trim()))){
+			popularity.recordRoute(old == null ? null : old.destination, flight.destination);
+		}
+		return old == null;
+	}
+
+	/**
+	 * Lists the direct flights between two cities (option 5).
+	 */
+	public List<Flight> listFlights(String origin, String destination) throws SQLException {
+		return flights(FLIGHTS, origin, destination);
+	}
+
+	/**
+	 * Returns the k most popular destinations in a ranking (option 6).
+	 */
+	public List<DestinationPopularity.DestinationCount> popularDestinations(DestinationPopularity.Ranking ranking, int k) throws SQLException {
+		if(k < 1){
+			throw new IllegalArgumentException("Cannot look for negative or zero destinations.");
+		}
+		return esql.getDestinationPopularity().topK(ranking, k);
+	}
+
+	/**
+	 * Returns the k highest rated routes (option 7).
+	 */
+	public List<RatedRoute> highestRatedRoutes(final int k) throws SQLException {
+		if(k < 1){
+			throw new IllegalArgumentException("Cannot look for negative or 0 routes");
+		}
+		//top k straight from the route_rating_avg index, airline names from the reference data cache
+		List<RatedRoute> routes = new ArrayList<RatedRoute>();
+		List<Object[]> rows = esql.withReadConnection(new SqlWork<List<Object[]>>(){
+			public List<Object[]> run(PooledConnection conn) throws SQLException {
+				List<Object[]> rows = new ArrayList<Object[]>();
+				ResultSet rs = conn.prepare(RATED_ROUTES, k).executeQuery();
+				try{
+					while(rs.next()){
+						rows.add(new Object[]{rs.getString(1).trim(), rs.getBigDecimal(2), rs.getInt(3)});
+					}
+				}finally{
+					rs.close();
+				}
+				return rows;
+			}
+		});
+		for(Object[] row : rows){
+			Flight flight = esql.getReferenceData().getFlight((String) row[0]);
+			Airline airline = flight == null ? null : esql.getReferenceData().getAirline(flight.airId);
+			routes.add(new RatedRoute(airline == null ? "" : airline.name, (String) row[0], (java.math.BigDecimal) row[1], (Integer) row[2]));
+		}
+		return routes;
+	}
+
+	/**
+	 * Lists up to k direct flights between two cities by duration, longest
+	 * first (option 8).
+	 */
+	public List<Flight> listFlightsByDuration(String origin, String destination, int k) throws SQLException {
+		if(k < 1){
+			throw new IllegalArgumentException("Cannot look for negative or zero flights.");
+		}
+		return flights(FLIGHTS_BY_DURATION, origin, destination, k);
+	}
+
+	/**
+	 * Finds the k shortest trips of up to maxLegs flights between two cities
+	 * (option 8 with connections).
+	 *
+	 * @param departure when set, only flights with open seats on this date
+	 *        are used
+	 */
+	public List<Itinerary> findTrips(String origin, String destination, int maxLegs, int k, java.sql.Date departure) throws SQLException {
+		if(k < 1 || maxLegs < 1){
+			throw new IllegalArgumentException("Cannot look for less than one trip of at least one flight.");
+		}
+		RouteGraph.LegFilter filter = null;
+		if(departure != null){
+			final Set<String> full = SeatInventory.getFullFlights(esql, departure);
+			filter = new RouteGraph.LegFilter(){
+				public boolean accept(Flight leg){
+					return !full.contains(leg.flightNum);
+				}
+			};
+		}
+		return esql.getRouteGraph().search(origin, destination, maxLegs, k, filter);
+	}
+
+	/**
+	 * Looks up the seats of a flight on a departure date (option 9), from
+	 * its seat map.
+	 *
+	 * @return the seat availability, or null when the flight does not exist
+	 */
+	public SeatAvailability getAvailability(String flightNum, java.sql.Date departure) throws SQLException {
+		Flight flight = esql.getReferenceData().getFlight(flightNum);
+		SeatMap map = flight == null ? null : esql.getSeatMaps().get(flightNum, departure);
+		return map == null ? null : availability(flight, map);
+	}
+
+	/**
+	 * Looks up the seats of a flight on every day from from through to, in
+	 * order of departure, from its seat maps.
+	 *
+	 * @return the seat availability of every day, or an empty list when the
+	 *         flight does not exist
+	 */
+	public List<SeatAvailability> getAvailability(String flightNum, java.sql.Date from, java.sql.Date to) throws SQLException {
+		if(from.after(to)){
+			throw new IllegalArgumentException("The range of dates ends before it starts.");
+		}
+		List<SeatAvailability> days = new ArrayList<SeatAvailability>();
+		Flight flight = esql.getReferenceData().getFlight(flightNum);
+		if(flight == null){
+			return days;
+		}
+		for(SeatMap map : esql.getSeatMaps().getRange(flightNum, from, to)){
+			days.add(availability(flight, map));
+		}
+		return days;
+	}
+
+	/**
+	 * Looks up the seats of the given flights on every day from from through
+	 * to, up to a year of days, from their seat maps. The flights with days
+	 * that are not cached are read with one query.
+	 *
+	 * @return the seat availability of every day, in order of departure,
+	 *         keyed by flight number in the order of the flights; flights
+	 *         that do not exist are left out
+	 */
+	public Map<String, List<SeatAvailability>> getCalendar(List<String> flightNums, java.sql.Date from, java.sql.Date to)
+			throws SQLException {
+		if(flightNums.isEmpty()){
+			throw new IllegalArgumentException("At least one flight number is required.");
+		}
+		if(from.after(to)){
+			throw new IllegalArgumentException("The range of dates ends before it starts.");
+		}
+		if(from.toLocalDate().plusDays(MAX_CALENDAR_DAYS).isBefore(to.toLocalDate().plusDays(1))){
+			throw new IllegalArgumentException("Cannot look up more than " + MAX_CALENDAR_DAYS + " days at once.");
+		}
+		//the flights not cached yet are read with one query
+		Map<String, Flight> known = esql.getReferenceData().getFlights(flightNums);
+		List<String> flights = new ArrayList<String>();
+		for(String flightNum : flightNums){
+			Flight flight = known.get(flightNum.trim());
+			if(flight != null && !flights.contains(flight.flightNum)){
+				flights.add(flight.flightNum);
+			}
+		}
+		Map<String, List<SeatAvailability>> calendar = new LinkedHashMap<String, List<SeatAvailability>>();
+		if(flights.isEmpty()){
+			return calendar;
+		}
+		for(Map.Entry<String, List<SeatMap>> entry : esql.getSeatMaps().getCalendar(flights, from, to).entrySet()){
+			Flight flight = known.get(entry.getKey());
+			List<SeatAvailability> days = new ArrayList<SeatAvailability>(entry.getValue().size());
+			for(SeatMap map : entry.getValue()){
+				days.add(availability(flight, map));
+			}
+			calendar.put(entry.getKey(), days);
+		}
+		return calendar;
+	}
+
+	/**
+	 * Returns the city typed as it is spelled in the database, whatever its
+	 * case and with one letter wrong at most, or null when it is no known
+	 * city (see CityIndex). Nothing is read from the database once the
+	 * cities are loaded. The listings take the cities as given; only the
+	 * menu corrects them, telling the user.
+	 */
+	public String resolveCity(String typed) throws SQLException {
+		return esql.getCities().resolve(typed);
+	}
+
+	/**
+	 * Returns up to k cities starting with what was typed, or near it.
+	 */
+	public List<String> completeCity(String typed, int k) throws SQLException {
+		if(k < 1){
+			throw new IllegalArgumentException("Cannot look for negative or zero cities.");
+		}
+		return esql.getCities().complete(typed, k);
+	}
+
+	/**
+	 * Searches the comments of the reviews (see ReviewSearch), one page of
+	 * up to limit matches at a time.
+	 *
+	 * @param after the cursor of the previous page, or null for the first
+	 */
+	public ReviewSearch.Page searchReviews(String text, ReviewSearch.Filter filter, int limit, String after) throws SQLException {
+		if(filter != null && ((filter.minScore != null && (filter.minScore < 0 || filter.minScore > 5)) ||
+				(filter.maxScore != null && (filter.maxScore < 0 || filter.maxScore > 5)))){
+			throw new IllegalArgumentException("Scores are 0 to 5.");
+		}
+		return this.reviewSearch.search(text, filter, limit, after);
+	}
+
+	/**
+	 * Returns the load factors of the departures from from through to,
+	 * either of which may be null, grouped by the given dimensions, from
+	 * the analytics snapshot rather than the database.
+	 */
+	public List<LoadFactor> loadFactors(Set<LoadFactors.Dimension> by, java.sql.Date from, java.sql.Date to) throws SQLException {
+		if(from != null && to != null && from.after(to)){
+			throw new IllegalArgumentException("The range of dates ends before it starts.");
+		}
+		return esql.getLoadFactors().report(by, from, to);
+	}
+
+	private static SeatAvailability availability(Flight flight, SeatMap map){
+		return new SeatAvailability(flight.flightNum, flight.origin, flight.destination, map.departure, map.booked(),
+			map.seats(), map.capacity());
+	}
+
+	private List<Flight> flights(final String query, final Object... params) throws SQLException {
+		return esql.withReadConnection(new SqlWork<List<Flight>>(){
+			public List<Flight> run(PooledConnection conn) throws SQLException {
+				List<Flight> flights = new ArrayList<Flight>();
+				ResultSet rs = conn.prepare(query, params).executeQuery();
+				try{
+					while(rs.next()){
+						flights.add(new Flight(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getString(4).trim(),
+							rs.getString(5).trim(), rs.getInt(6), rs.getInt(7)));
+					}
+				}finally{
+					rs.close();
+				}
+				return flights;
+			}
+		});
+	}
+
+	private static boolean isEmpty(String s){
+		return s == null || s.trim().length() == 0;
+	}
+}
@@ -0,0 +1,19 @@
+/**
+ * One row of the Airline table, with the CHAR padding trimmed.
+ */
+
+public class Airline{
+	public final int airId;
+	public final String name;
+	public final int founded;
+	public final String country;
+	public final String hub;
+
+	public Airline(int airId, String name, int founded, String country, String hub){
+		this.airId = airId;
+		this.name = name;
+		this.founded = founded;
+		this.country = country;
+		this.hub = hub;
+	}
+}
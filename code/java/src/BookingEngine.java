@@ -0,0 +1,444 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.ServerErrorMessage;
+
+/**
+ * Books seats without overselling. A booking is a single INSERT INTO
+ * Booking; the seatInventory trigger claims the seat in the same statement
+ * with a conditional update of the SeatInventory row, which holds the row
+ * lock until commit. Concurrent bookings of the same flight and date are
+ * therefore serialized on that row, and the one that would go past the
+ * capacity fails with check_violation instead of being inserted.
+ *
+ * The seat is picked from the seat map of the flight (see SeatMaps) before
+ * the insert: the seat asked for, or else the first free one, or none when
+ * only overbooked bookings are left. A seat another client took meanwhile
+ * fails with exclusion_violation; the map is read again and, when no seat
+ * was asked for, the next free seat is tried.
+ *
+ * Booking references come from BookingReferences; one that is already
+ * taken by a loaded booking is retried with the next one. A booking for a
+ * month that Booking has no partition for yet creates the partition and is
+ * retried (see BookingPartitions).
+ *
+ * Large numbers of bookings go through bookAll, which checks passengers,
+ * seats and duplicates for the whole list in three set-based queries and
+ * inserts the accepted bookings as JDBC batches.
+ */
+
+public class BookingEngine{
+	//SQL states raised by the insert
+	private static final String CHECK_VIOLATION = "23514";
+	private static final String EXCLUSION_VIOLATION = "23P01";
+	private static final String UNIQUE_VIOLATION = "23505";
+	private static final String FOREIGN_KEY_VIOLATION = "23503";
+	//every monthly partition of Booking has its own primary key, booking_YYYY_MM_pkey
+	private static final String BOOKING_PKEY_PREFIX = "booking_";
+	private static final String BOOKING_PKEY_SUFFIX = "_pkey";
+	//the foreign key of Booking on Passenger, booking_pid_fkey on Booking and on every partition
+	private static final String PASSENGER_FKEY_SUFFIX = "_pid_fkey";
+
+	private static final String INSERT_BOOKING = QueryMetrics.named("BookFlight.insert",
+		"INSERT INTO Booking(bookRef, departure, pID, flightNum, seat) values(?, ?, ?, ?, ?)");
+
+	private static final String EXISTING_BOOKINGS = QueryMetrics.named("BookAll.duplicateCheck",
+		"SELECT b.flightNum, b.departure, b.pID " +
+		"FROM unnest(?::bpchar[], ?::date[], ?::int[]) AS d(flightNum, departure, pID) " +
+		"JOIN Booking b ON b.departure = d.departure AND b.flightNum = d.flightNum AND b.pID = d.pID " +
+		"WHERE b.departure BETWEEN ? AND ?");
+
+	private final AirBooking esql;
+	private final int maxAttempts;
+
+	/**
+	 * @param esql the database to book on
+	 * @param maxAttempts how many booking references to try before giving up
+	 */
+	public BookingEngine(AirBooking esql, int maxAttempts){
+		this.esql = esql;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Books a seat for the passenger with the given passport number.
+	 *
+	 * @param passNum the passport number of the passenger
+	 * @param flightNum the flight number
+	 * @param departure the departure date
+	 * @param seat the seat number, or 0 for the first free seat
+	 * @return the outcome of the booking
+	 * @throws java.sql.SQLException when the booking failed for another reason
+	 */
+	public BookingResult book(String passNum, String flightNum, java.sql.Date departure, int seat) throws SQLException {
+		if(esql.getReferenceData().getFlight(flightNum) == null){
+			return new BookingResult(BookingResult.Status.NO_SUCH_FLIGHT, null);
+		}
+		Integer pid = esql.getPassengerIds().getPid(passNum);
+		if(pid == null){
+			return new BookingResult(BookingResult.Status.NO_SUCH_PASSENGER, null);
+		}
+		return book(pid, flightNum, departure, seat);
+	}
+
+	/**
+	 * Books a seat for the passenger with the given id.
+	 *
+	 * @param pid the id of the passenger
+	 * @param flightNum the flight number
+	 * @param departure the departure date
+	 * @param seat the seat number, or 0 for the first free seat
+	 * @return the outcome of the booking
+	 * @throws java.sql.SQLException when the booking failed for another reason
+	 */
+	public BookingResult book(final int pid, final String flightNum, final java.sql.Date departure, final int seat) throws SQLException {
+		return esql.withConnection(new SqlWork<BookingResult>(){
+			public BookingResult run(PooledConnection conn) throws SQLException {
+				return book(conn, pid, flightNum, departure, seat);
+			}
+		});
+	}
+
+	/**
+	 * Books a seat on the given connection. The connection must be in
+	 * autocommit mode, so that the insert and its seat claim commit together.
+	 */
+	public BookingResult book(PooledConnection conn, int pid, String flightNum, java.sql.Date departure, int seat) throws SQLException {
+		SeatMaps seatMaps = esql.getSeatMaps();
+		boolean reread = false;
+		for(int attempt = 1; ; ++attempt){
+			SeatMap map = seatMaps.get(conn, flightNum, departure);
+			if(map == null){
+				return new BookingResult(BookingResult.Status.NO_SUCH_FLIGHT, null);
+			}
+			if(!isSeat(map, seat)){
+				return new BookingResult(BookingResult.Status.INVALID_SEAT, null);
+			}
+			int claimed = claim(map, seat);
+			if(claimed < 0){
+				// the map may not have the cancellations of other clients yet
+				if(!reread){
+					reread = true;
+					seatMaps.invalidate(flightNum, departure);
+					continue;
+				}
+				return new BookingResult(map.open() == 0 ? BookingResult.Status.FULL : BookingResult.Status.SEAT_TAKEN, null);
+			}
+			String bookRef = esql.getBookingReferences().next(conn);
+			try{
+				conn.executeUpdate(INSERT_BOOKING, bookRef, departure, pid, flightNum, claimed == 0 ? null : claimed);
+				esql.pinReads();
+				booked(flightNum, departure);
+				return new BookingResult(BookingResult.Status.BOOKED, bookRef, claimed == 0 ? null : claimed);
+			}catch(SQLException e){
+				map.release(claimed);
+				if(isMissingPartition(e) && attempt < this.maxAttempts){
+					BookingPartitions.create(conn, departure, departure);
+					continue;
+				}
+				if(isSeatTaken(e) || CHECK_VIOLATION.equals(e.getSQLState())){
+					seatMaps.invalidate(flightNum, departure);
+					if(isSeatTaken(e) && seat == 0 && attempt < this.maxAttempts){
+						continue;
+					}
+				}
+				BookingResult.Status status = classify(e);
+				if(status != null){
+					return new BookingResult(status, null);
+				}
+				if(!isReferenceCollision(e) || attempt >= this.maxAttempts){
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Books a list of seats, in order, and reports the outcome of each one.
+	 *
+	 * @param requests the seats to book
+	 * @param chunkSize how many bookings are inserted per batch and transaction
+	 * @return the outcome of every request, in the order of the requests
+	 * @throws java.sql.SQLException when the bookings failed for another reason
+	 */
+	public List<BookingResult> bookAll(final List<BookingRequest> requests, final int chunkSize) throws SQLException {
+		return esql.withConnection(new SqlWork<List<BookingResult>>(){
+			public List<BookingResult> run(PooledConnection conn) throws SQLException {
+				return bookAll(conn, requests, chunkSize);
+			}
+		});
+	}
+
+	/**
+	 * Books a list of seats on the given connection, see bookAll above.
+	 */
+	public List<BookingResult> bookAll(PooledConnection conn, List<BookingRequest> requests, int chunkSize) throws SQLException {
+		BookingResult[] results = new BookingResult[requests.size()];
+		int[] pids = new int[requests.size()];
+		int[] seats = new int[requests.size()];
+		Map<String, Integer> passengers = passengerIds(conn, requests);
+		Map<String, SeatMap> maps = seatMaps(conn, requests);
+		Set<String> booked = existingBookings(conn, requests, passengers);
+
+		List<Integer> accepted = new ArrayList<Integer>();
+		for(int i = 0; i < requests.size(); ++i){
+			BookingRequest r = requests.get(i);
+			Integer pid = passengers.get(r.passNum.trim());
+			String slot = slot(r.flightNum, r.departure);
+			SeatMap map = maps.get(slot);
+			if(pid == null){
+				results[i] = new BookingResult(BookingResult.Status.NO_SUCH_PASSENGER, null);
+			}else if(map == null){
+				results[i] = new BookingResult(BookingResult.Status.NO_SUCH_FLIGHT, null);
+			}else if(!isSeat(map, r.seat)){
+				results[i] = new BookingResult(BookingResult.Status.INVALID_SEAT, null);
+			}else if(!booked.add(slot + "|" + pid)){
+				results[i] = new BookingResult(BookingResult.Status.DUPLICATE, null);
+			}else if((seats[i] = claim(map, r.seat)) < 0){
+				results[i] = new BookingResult(map.open() == 0 ? BookingResult.Status.FULL : BookingResult.Status.SEAT_TAKEN, null);
+			}else{
+				pids[i] = pid;
+				accepted.add(i);
+			}
+		}
+
+		for(int from = 0; from < accepted.size(); from += chunkSize){
+			insertChunk(conn, requests, pids, seats, maps, accepted.subList(from, Math.min(from + chunkSize, accepted.size())), results);
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Inserts one chunk of accepted bookings, with the seats claimed for
+	 * them, as a single batch and transaction. When the batch fails, because
+	 * another client took the last seats or one of the seats or a booking
+	 * reference clashed, the chunk is rolled back, its seats are given back
+	 * and its bookings are made one by one instead.
+	 */
+	private void insertChunk(PooledConnection conn, List<BookingRequest> requests, int[] pids, int[] seats, Map<String, SeatMap> maps,
+			List<Integer> chunk, BookingResult[] results) throws SQLException {
+		Connection c = conn.getConnection();
+		String[] refs = new String[chunk.size()];
+		PreparedStatement stmt = conn.prepare(INSERT_BOOKING);
+		c.setAutoCommit(false);
+		try{
+			for(int k = 0; k < chunk.size(); ++k){
+				BookingRequest r = requests.get(chunk.get(k));
+				refs[k] = esql.getBookingReferences().next(conn);
+				stmt.setString(1, refs[k]);
+				stmt.setDate(2, r.departure);
+				stmt.setInt(3, pids[chunk.get(k)]);
+				stmt.setString(4, r.flightNum);
+				if(seats[chunk.get(k)] == 0){
+					stmt.setNull(5, Types.SMALLINT);
+				}else{
+					stmt.setInt(5, seats[chunk.get(k)]);
+				}
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			c.commit();
+			esql.pinReads();
+			for(int k = 0; k < chunk.size(); ++k){
+				BookingRequest r = requests.get(chunk.get(k));
+				booked(r.flightNum, r.departure);
+				int seat = seats[chunk.get(k)];
+				results[chunk.get(k)] = new BookingResult(BookingResult.Status.BOOKED, refs[k], seat == 0 ? null : seat);
+			}
+			return;
+		}catch(SQLException e){
+			stmt.clearBatch();
+			c.rollback();
+		}finally{
+			c.setAutoCommit(true);
+		}
+		for(int k = 0; k < chunk.size(); ++k){
+			BookingRequest r = requests.get(chunk.get(k));
+			maps.get(slot(r.flightNum, r.departure)).release(seats[chunk.get(k)]);
+			esql.getSeatMaps().invalidate(r.flightNum, r.departure);
+		}
+		for(int k = 0; k < chunk.size(); ++k){
+			BookingRequest r = requests.get(chunk.get(k));
+			results[chunk.get(k)] = book(conn, pids[chunk.get(k)], r.flightNum, r.departure, r.seat);
+		}
+	}
+
+	/**
+	 * Tells whether seat is a seat of the plane of the map, or 0 for the
+	 * first free one.
+	 */
+	private static boolean isSeat(SeatMap map, int seat){
+		return seat >= 0 && seat <= map.seats();
+	}
+
+	/**
+	 * Takes the given seat, or the first free one when seat is 0, from the
+	 * seat map.
+	 *
+	 * @return the seat taken, 0 for an overbooked booking without a seat,
+	 *         or -1 when the seat is taken or the flight is sold out
+	 */
+	private static int claim(SeatMap map, int seat){
+		if(seat == 0){
+			return map.claim();
+		}
+		return map.take(seat) ? seat : -1;
+	}
+
+	/**
+	 * Adds a new booking to the destination rankings, if they are loaded.
+	 */
+	private void booked(String flightNum, java.sql.Date departure) throws SQLException {
+		DestinationPopularity popularity = esql.startedDestinationPopularity();
+		if(popularity == null){
+			return;
+		}
+		Flight flight = esql.getReferenceData().getFlight(flightNum);
+		if(flight != null){
+			popularity.recordBooking(flight.destination, departure);
+		}
+	}
+
+	/**
+	 * Looks up the id of every passenger in the requests, by passport
+	 * number, through the passenger id cache.
+	 */
+	private Map<String, Integer> passengerIds(PooledConnection conn, List<BookingRequest> requests) throws SQLException {
+		Set<String> passNums = new LinkedHashSet<String>();
+		for(BookingRequest r : requests){
+			passNums.add(r.passNum.trim());
+		}
+		return esql.getPassengerIds().getPids(conn, passNums);
+	}
+
+	/**
+	 * Returns the seat map of every flight and date in the requests, keyed
+	 * by slot, read afresh with one query. Unknown flights are left out.
+	 */
+	private Map<String, SeatMap> seatMaps(PooledConnection conn, List<BookingRequest> requests) throws SQLException {
+		List<String> flights = new ArrayList<String>(requests.size());
+		List<java.sql.Date> dates = new ArrayList<java.sql.Date>(requests.size());
+		for(BookingRequest r : requests){
+			flights.add(r.flightNum);
+			dates.add(r.departure);
+		}
+		return esql.getSeatMaps().getAll(conn, flights, dates, true);
+	}
+
+	/**
+	 * Returns the requests already booked, as slot|pid keys.
+	 */
+	private static Set<String> existingBookings(PooledConnection conn, List<BookingRequest> requests, Map<String, Integer> passengers) throws SQLException {
+		List<String> flights = new ArrayList<String>();
+		List<String> dates = new ArrayList<String>();
+		List<Integer> pids = new ArrayList<Integer>();
+		java.sql.Date first = null;
+		java.sql.Date last = null;
+		for(BookingRequest r : requests){
+			Integer pid = passengers.get(r.passNum.trim());
+			if(pid != null){
+				flights.add(r.flightNum.trim());
+				dates.add(r.departure.toString());
+				pids.add(pid);
+				first = first == null || r.departure.before(first) ? r.departure : first;
+				last = last == null || r.departure.after(last) ? r.departure : last;
+			}
+		}
+		Set<String> booked = new HashSet<String>();
+		if(pids.isEmpty()){
+			return booked;
+		}
+		Connection c = conn.getConnection();
+		ResultSet rs = conn.prepare(EXISTING_BOOKINGS, c.createArrayOf("varchar", flights.toArray()),
+			c.createArrayOf("varchar", dates.toArray()), c.createArrayOf("int4", pids.toArray()), first, last).executeQuery();
+		try{
+			while(rs.next()){
+				booked.add(slot(rs.getString(1), rs.getDate(2)) + "|" + rs.getInt(3));
+			}
+		}finally{
+			rs.close();
+		}
+		return booked;
+	}
+
+	private static String slot(String flightNum, java.sql.Date departure){
+		return SeatMaps.slot(flightNum, departure);
+	}
+
+	/**
+	 * Maps a failed booking insert to the outcome it stands for, or null
+	 * when it is not an expected booking outcome.
+	 */
+	static BookingResult.Status classify(SQLException e){
+		String state = e.getSQLState();
+		if(CHECK_VIOLATION.equals(state) && !isMissingPartition(e)){
+			return BookingResult.Status.FULL;
+		}
+		if(FOREIGN_KEY_VIOLATION.equals(state)){
+			return isMissingPassenger(e) ? BookingResult.Status.NO_SUCH_PASSENGER : BookingResult.Status.NO_SUCH_FLIGHT;
+		}
+		if(UNIQUE_VIOLATION.equals(state) && !isReferenceCollision(e)){
+			return BookingResult.Status.DUPLICATE;
+		}
+		if(isSeatTaken(e)){
+			return BookingResult.Status.SEAT_TAKEN;
+		}
+		return null;
+	}
+
+	/**
+	 * Tells whether an insert failed because the seatInventory trigger found
+	 * its seat taken.
+	 */
+	static boolean isSeatTaken(SQLException e){
+		return EXCLUSION_VIOLATION.equals(e.getSQLState());
+	}
+
+	/**
+	 * Tells whether an insert failed because its passenger does not exist,
+	 * rather than its flight.
+	 */
+	static boolean isMissingPassenger(SQLException e){
+		if(!FOREIGN_KEY_VIOLATION.equals(e.getSQLState()) || !(e instanceof PSQLException)){
+			return false;
+		}
+		ServerErrorMessage msg = ((PSQLException) e).getServerErrorMessage();
+		String constraint = msg == null ? null : msg.getConstraint();
+		return constraint != null && constraint.endsWith(PASSENGER_FKEY_SUFFIX);
+	}
+
+	static boolean isReferenceCollision(SQLException e){
+		if(!UNIQUE_VIOLATION.equals(e.getSQLState()) || !(e instanceof PSQLException)){
+			return false;
+		}
+		ServerErrorMessage msg = ((PSQLException) e).getServerErrorMessage();
+		String constraint = msg == null ? null : msg.getConstraint();
+		return constraint != null && constraint.startsWith(BOOKING_PKEY_PREFIX) && constraint.endsWith(BOOKING_PKEY_SUFFIX);
+	}
+
+	/**
+	 * Tells whether an insert failed because Booking has no partition for
+	 * the month of its departure yet. Postgres raises check_violation for
+	 * it, like the seatInventory trigger for a full flight, but names the
+	 * table.
+	 */
+	static boolean isMissingPartition(SQLException e){
+		if(!CHECK_VIOLATION.equals(e.getSQLState()) || !(e instanceof PSQLException)){
+			return false;
+		}
+		ServerErrorMessage msg = ((PSQLException) e).getServerErrorMessage();
+		return msg != null && ("booking".equalsIgnoreCase(msg.getTable()) ||
+			(msg.getMessage() != null && msg.getMessage().startsWith("no partition of relation")));
+	}
+}
@@ -0,0 +1,241 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Upkeep of the monthly partitions of Booking (see schema.sql). Every month
+ * of departures is a partition booking_YYYY_MM, so queries bounded by
+ * departure only read the months they name and an old month can be dropped
+ * as a whole instead of deleting its rows.
+ *
+ * Partitions for the coming months are created ahead of time, by
+ * createAhead or by the timer of start, so that bookings do not wait for
+ * the lock that creating a partition takes on Booking. A booking for a
+ * month without a partition creates it on demand (see BookingEngine).
+ *
+ * Old months are archived to gzip compressed CSV files in the format of
+ * bookings.csv, with ISO dates, and then dropped together with their
+ * SeatInventory rows. An archive is read back with
+ * COPY Booking FROM STDIN WITH DELIMITER ',' once the partition of the
+ * month exists again.
+ *
+ * Usage: BookingPartitions <dbname> <port> <user> create <months ahead>
+ *        BookingPartitions <dbname> <port> <user> archive <months kept> <folder>
+ */
+
+public class BookingPartitions{
+	private static final String CREATE_PARTITIONS = QueryMetrics.named("BookingPartitions.create", "SELECT bookingPartitions(?, ?)");
+	private static final String ARCHIVE_PARTITION = "SELECT archiveBookingPartition(?, ?)";
+	private static final String PARTITIONS =
+		"SELECT c.relname FROM pg_inherits h, pg_class c " +
+		"WHERE h.inhparent = to_regclass('booking') AND c.oid = h.inhrelid ORDER BY c.relname";
+	private static final String PREFIX = "booking_";
+
+	private final AirBooking esql;
+	private ScheduledExecutorService timer = null;
+
+	public BookingPartitions(AirBooking esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Creates the missing partitions from this month through the given
+	 * number of months ahead.
+	 *
+	 * @return the number of partitions created
+	 * @throws java.sql.SQLException when failed to create a partition
+	 */
+	public int createAhead(final int months) throws SQLException {
+		return esql.withConnection(new SqlWork<Integer>(){
+			public Integer run(PooledConnection conn) throws SQLException {
+				Calendar day = Calendar.getInstance();
+				java.sql.Date today = new java.sql.Date(day.getTimeInMillis());
+				day.add(Calendar.MONTH, months);
+				return create(conn, today, new java.sql.Date(day.getTimeInMillis()));
+			}
+		});
+	}
+
+	/**
+	 * Creates the missing partitions from the month of from through the
+	 * month of to, on the given connection.
+	 *
+	 * @return the number of partitions created
+	 * @throws java.sql.SQLException when failed to create a partition
+	 */
+	public static int create(PooledConnection conn, java.sql.Date from, java.sql.Date to) throws SQLException {
+		List<List<String>> created = conn.executeQueryAndReturnResult(CREATE_PARTITIONS, from, to);
+		return Integer.parseInt(created.get(0).get(0));
+	}
+
+	/**
+	 * Returns the first day of every month that has a partition, oldest
+	 * first.
+	 *
+	 * @throws java.sql.SQLException when failed to list the partitions
+	 */
+	public List<java.sql.Date> months() throws SQLException {
+		List<java.sql.Date> months = new ArrayList<java.sql.Date>();
+		for(List<String> row : esql.executeQueryAndReturnResult(PARTITIONS)){
+			String name = row.get(0).trim();
+			if(name.matches(PREFIX + "\\d{4}_\\d{2}")){
+				months.add(java.sql.Date.valueOf(name.substring(PREFIX.length()).replace('_', '-') + "-01"));
+			}
+		}
+		return months;
+	}
+
+	/**
+	 * Archives every month before the month of the given day.
+	 *
+	 * @param before the first day that is kept
+	 * @param folder where the archives are written
+	 * @return the archives written
+	 * @throws java.sql.SQLException when failed to archive a month; the
+	 *         months archived before it stay archived
+	 * @throws java.io.IOException when failed to write an archive
+	 */
+	public List<File> archiveBefore(java.sql.Date before, File folder) throws SQLException, IOException {
+		List<File> archives = new ArrayList<File>();
+		java.sql.Date first = firstOfMonth(before);
+		for(java.sql.Date month : months()){
+			if(month.before(first)){
+				archives.add(archive(month, folder));
+			}
+		}
+		return archives;
+	}
+
+	/**
+	 * Exports the partition of one month to folder/booking_YYYY_MM.csv.gz
+	 * and drops it, in one transaction. When the export misses rows booked
+	 * meanwhile, nothing is dropped and the archive is removed again.
+	 *
+	 * @param month any day of the month
+	 * @param folder where the archive is written
+	 * @return the archive
+	 * @throws java.sql.SQLException when failed to export or drop the month
+	 * @throws java.io.IOException when failed to write the archive
+	 */
+	public File archive(java.sql.Date month, File folder) throws SQLException, IOException {
+		final java.sql.Date from = firstOfMonth(month);
+		Calendar next = Calendar.getInstance();
+		next.setTime(from);
+		next.add(Calendar.MONTH, 1);
+		final java.sql.Date to = new java.sql.Date(next.getTimeInMillis());
+		final File archive = new File(folder, PREFIX + new SimpleDateFormat("yyyy_MM").format(from) + ".csv.gz");
+		final File partial = new File(folder, archive.getName() + ".part");
+		folder.mkdirs();
+		try{
+			esql.inTransaction(new SqlWork<Void>(){
+				public Void run(PooledConnection conn) throws SQLException {
+					conn.executeUpdate("SET LOCAL DateStyle TO 'ISO, MDY'");
+					CopyManager copyManager = conn.getConnection().unwrap(PGConnection.class).getCopyAPI();
+					long rows;
+					try{
+						OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(partial), 1 << 16), 1 << 16);
+						try{
+							// the dates come from java.sql.Date.toString, so they are safe to inline
+							rows = copyManager.copyOut("COPY (SELECT bookRef, departure, flightNum, pID FROM Booking " +
+								"WHERE departure >= '" + from + "' AND departure < '" + to + "') TO STDOUT WITH DELIMITER ','", out);
+						}finally{
+							out.close();
+						}
+					}catch(IOException e){
+						throw new SQLException("Unable to write " + partial + ": " + e.getMessage(), e);
+					}
+					conn.executeQueryAndReturnResult(ARCHIVE_PARTITION, from, rows);
+					return null;
+				}
+			});
+		}catch(SQLException e){
+			partial.delete();
+			throw e;
+		}
+		if(!partial.renameTo(archive)){
+			throw new IOException("Month " + from + " was dropped but its archive is left at " + partial);
+		}
+		return archive;
+	}
+
+	/**
+	 * Creates the coming partitions now and then once every day, so there
+	 * are always partitions for the given number of months ahead.
+	 *
+	 * @throws java.sql.SQLException when the first run failed
+	 */
+	public synchronized void start(final int monthsAhead) throws SQLException {
+		createAhead(monthsAhead);
+		if(this.timer != null){
+			return;
+		}
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "booking-partitions");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.timer.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					createAhead(monthsAhead);
+				}catch(SQLException e){
+					System.err.println("Creating booking partitions failed: " + e.getMessage());
+				}
+			}
+		}, 1, 1, TimeUnit.DAYS);
+	}
+
+	public synchronized void stop(){
+		if(this.timer != null){
+			this.timer.shutdownNow();
+			this.timer = null;
+		}
+	}
+
+	private static java.sql.Date firstOfMonth(java.sql.Date day){
+		Calendar first = Calendar.getInstance();
+		first.setTime(day);
+		first.set(Calendar.DAY_OF_MONTH, 1);
+		return new java.sql.Date(first.getTimeInMillis());
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 5 || !(args[3].equals("create") || (args[3].equals("archive") && args.length > 5))){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + BookingPartitions.class.getName() +
+					" <dbname> <port> <user> create <months ahead> | archive <months kept> <folder>");
+			return;
+		}
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			BookingPartitions partitions = new BookingPartitions(esql);
+			if(args[3].equals("create")){
+				System.out.println(partitions.createAhead(Integer.parseInt(args[4])) + " partitions created");
+			}else{
+				Calendar kept = Calendar.getInstance();
+				kept.add(Calendar.MONTH, -Integer.parseInt(args[4]));
+				for(File archive : partitions.archiveBefore(new java.sql.Date(kept.getTimeInMillis()), new File(args[5]))){
+					System.out.println("Archived " + archive);
+				}
+			}
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
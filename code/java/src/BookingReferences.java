@@ -0,0 +1,146 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out unique booking references without a database round trip per
+ * reference. A reference is a number written as 10 base-36 digits, so it
+ * fits Booking.bookRef CHAR(10).
+ *
+ * The numbers are leased in blocks of BLOCK_SIZE from the bookRef_block_seq
+ * sequence (see triggers.sql), so two clients or two runs of the same
+ * client never get the same block. The block is cut into stripes of
+ * STRIPE_SIZE numbers, handed to a fixed set of slots (twice the
+ * processors, rounded down to a power of two), and every thread counts
+ * through the stripe of the slot its id hashes to. The slots are shared,
+ * not owned by a thread, so the short-lived threads of the server use up
+ * their stripes instead of leaving them behind; threads only meet on the
+ * block once every STRIPE_SIZE references per slot and the database is
+ * asked once every BLOCK_SIZE.
+ *
+ * References loaded from the csv files were random, so a new reference can
+ * still equal an old one; BookingEngine retries those with the next one.
+ */
+
+public class BookingReferences{
+	/**
+	 * Where blocks come from: the sequence, or a counter in benchmarks.
+	 */
+	public interface BlockSource{
+		long nextBlock(PooledConnection conn) throws SQLException;
+	}
+
+	public static final int LENGTH = 10;
+	static final int BLOCK_BITS = 20;
+	static final long BLOCK_SIZE = 1L << BLOCK_BITS;
+	static final long STRIPE_SIZE = 1L << 12;
+	private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+	//36^10, the first number that does not fit in 10 digits
+	private static final long LIMIT = 3656158440062976L;
+	//longs between two slots, so that every slot has a cache line of its own
+	private static final int SLOT_STRIDE = 8;
+	private static final String NEXT_BLOCK = QueryMetrics.named("BookFlight.referenceBlock", "SELECT nextval('bookRef_block_seq')");
+
+	private final BlockSource source;
+	//next free number of the current block and the end of the block
+	private long next = 0;
+	private long end = 0;
+	//the last number handed out from the stripe of every slot; the stripe is used up once the number after it starts a
+	//stripe, as the -1 of a slot that has none yet does
+	private final AtomicLongArray slots;
+	private final int slotMask;
+
+	public BookingReferences(BlockSource source){
+		this.source = source;
+		int count = Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors());
+		this.slots = new AtomicLongArray(count * SLOT_STRIDE);
+		for(int i = 0; i < count; ++i){
+			this.slots.set(i * SLOT_STRIDE, -1);
+		}
+		this.slotMask = count - 1;
+	}
+
+	/**
+	 * Returns references leased from the bookRef_block_seq sequence.
+	 */
+	public static BookingReferences forDatabase(){
+		return new BookingReferences(new BlockSource(){
+			public long nextBlock(PooledConnection conn) throws SQLException {
+				// nextval is never rolled back, so this is safe inside the caller's transaction
+				ResultSet rs = conn.prepare(NEXT_BLOCK).executeQuery();
+				try{
+					rs.next();
+					return rs.getLong(1);
+				}finally{
+					rs.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns a reference no other call, thread or client has been given.
+	 *
+	 * @param conn the connection of the caller, used when a new block has
+	 *        to be leased
+	 * @throws java.sql.SQLException when failed to lease a new block
+	 */
+	public String next(PooledConnection conn) throws SQLException {
+		int slot = slot();
+		while(true){
+			long last = this.slots.get(slot);
+			if((last + 1) % STRIPE_SIZE != 0){
+				if(this.slots.compareAndSet(slot, last, last + 1)){
+					return encode(last + 1);
+				}
+				continue;
+			}
+			synchronized(this){
+				// another thread of the slot may have taken the next stripe meanwhile
+				if(this.slots.get(slot) == last){
+					long first = takeStripe(conn);
+					this.slots.set(slot, first);
+					return encode(first);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the index in slots of the slot of the current thread.
+	 */
+	private int slot(){
+		long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return ((int) (id >>> 32) & this.slotMask) * SLOT_STRIDE;
+	}
+
+	/**
+	 * Returns the first number of a new stripe, leasing a new block when
+	 * the current one is used up. Called with the lock held.
+	 */
+	private long takeStripe(PooledConnection conn) throws SQLException {
+		if(this.next == this.end){
+			long block = this.source.nextBlock(conn);
+			if(block < 0 || block >= LIMIT >> BLOCK_BITS){
+				throw new SQLException("Booking references used up: block " + block);
+			}
+			this.next = block << BLOCK_BITS;
+			this.end = this.next + BLOCK_SIZE;
+		}
+		long first = this.next;
+		this.next += STRIPE_SIZE;
+		return first;
+	}
+
+	/**
+	 * Writes a number below 36^10 as 10 base-36 digits.
+	 */
+	static String encode(long value){
+		char[] chars = new char[LENGTH];
+		for(int i = LENGTH - 1; i >= 0; --i){
+			chars[i] = DIGITS[(int) (value % 36)];
+			value /= 36;
+		}
+		return new String(chars);
+	}
+}
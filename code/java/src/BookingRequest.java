@@ -0,0 +1,23 @@
+/**
+ * One seat to book: which passenger, on which flight and date, and which
+ * seat when the passenger chose one.
+ */
+
+public class BookingRequest{
+	public final String passNum;
+	public final String flightNum;
+	public final java.sql.Date departure;
+	//seat number from 1, or 0 for the first free seat
+	public final int seat;
+
+	public BookingRequest(String passNum, String flightNum, java.sql.Date departure){
+		this(passNum, flightNum, departure, 0);
+	}
+
+	public BookingRequest(String passNum, String flightNum, java.sql.Date departure, int seat){
+		this.passNum = passNum;
+		this.flightNum = flightNum;
+		this.departure = departure;
+		this.seat = seat;
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * Outcome of one booking attempt made through the BookingEngine.
+ */
+
+public class BookingResult{
+	public enum Status{
+		BOOKED,
+		FULL,
+		SEAT_TAKEN,
+		//the seat asked for is not a seat of the plane
+		INVALID_SEAT,
+		DUPLICATE,
+		NO_SUCH_FLIGHT,
+		NO_SUCH_PASSENGER
+	}
+
+	public final Status status;
+	//booking reference, only set when the status is BOOKED
+	public final String bookRef;
+	//seat number, only set when booked with a seat; overbooked bookings get none
+	public final Integer seat;
+
+	public BookingResult(Status status, String bookRef){
+		this(status, bookRef, null);
+	}
+
+	public BookingResult(Status status, String bookRef, Integer seat){
+		this.status = status;
+		this.bookRef = bookRef;
+		this.seat = seat;
+	}
+
+	public boolean isBooked(){
+		return this.status == Status.BOOKED;
+	}
+
+	@Override
+	public String toString(){
+		if(!this.isBooked()){
+			return this.status.toString();
+		}
+		return this.status + " " + this.bookRef + (this.seat == null ? "" : " seat " + this.seat);
+	}
+}
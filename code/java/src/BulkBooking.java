@@ -0,0 +1,63 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Books every seat listed in a file in one go, for group sales and schedule
+ * migrations. Each line of the file holds a passport number, a flight
+ * number and a departure date as month/day/year, separated by commas:
+ *
+ *   UKXRHGPOLG,IB903,10/23/2017
+ *
+ * The outcome of every line is printed in the same order.
+ */
+
+public class BulkBooking{
+	public static void main(String[] args) throws Exception {
+		if(args.length < 4){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + BulkBooking.class.getName() +
+					" <dbname> <port> <user> <file> [chunk size]");
+			return;
+		}
+		int chunkSize = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+
+		List<BookingRequest> requests = new ArrayList<BookingRequest>();
+		BufferedReader reader = new BufferedReader(new FileReader(args[3]));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				line = line.trim();
+				if(line.length() == 0){
+					continue;
+				}
+				String[] fields = line.split(",");
+				String[] date = fields[2].trim().split("/");
+				requests.add(new BookingRequest(fields[0].trim(), fields[1].trim(),
+					AirBooking.makeDate(Integer.parseInt(date[1]), Integer.parseInt(date[0]), Integer.parseInt(date[2]))));
+			}
+		}finally{
+			reader.close();
+		}
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			long begin = System.currentTimeMillis();
+			List<BookingResult> results = new BookingEngine(esql, AirBooking.BOOKING_ATTEMPTS).bookAll(requests, chunkSize);
+			long millis = System.currentTimeMillis() - begin;
+			int[] counts = new int[BookingResult.Status.values().length];
+			for(int i = 0; i < results.size(); ++i){
+				BookingRequest r = requests.get(i);
+				System.out.println(r.passNum + "," + r.flightNum + "," + r.departure + "," + results.get(i));
+				counts[results.get(i).status.ordinal()]++;
+			}
+			for(BookingResult.Status status : BookingResult.Status.values()){
+				System.out.println(status + ": " + counts[status.ordinal()]);
+			}
+			System.out.println(results.size() + " requests in " + millis + " ms");
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
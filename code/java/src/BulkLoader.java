@@ -0,0 +1,192 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Loads the CSV files of the data folder from the client with
+ * COPY ... FROM STDIN, so the files do not have to be on the database host
+ * and no superuser rights are needed.
+ *
+ * The load runs in three steps:
+ *   1) schema.sql recreates the tables, without their keys,
+ *   2) the CSV files are streamed in, tables without a foreign key between
+ *      them in parallel (Airline and Passenger, then Flight, then Ratings and
+ *      Booking),
+ *   3) triggers.sql adds the primary, unique and foreign keys, sets the
+ *      sequences and triggers, fills SeatInventory, builds the secondary
+ *      indexes and clusters the tables, once all rows are in.
+ *
+ * Usage: BulkLoader <dbname> <port> <user> [data folder] [sql folder]
+ */
+
+public class BulkLoader{
+	private static final String[][] PHASES = {
+		{"Airline", "Passenger"},
+		{"Flight"},
+		{"Ratings", "Booking"}
+	};
+
+	private final AirBooking esql;
+	private final File dataDir;
+	private final File sqlDir;
+
+	public BulkLoader(AirBooking esql, File dataDir, File sqlDir){
+		this.esql = esql;
+		this.dataDir = dataDir;
+		this.sqlDir = sqlDir;
+	}
+
+	/**
+	 * Returns the COPY statement and the CSV file name of a table.
+	 */
+	static String[] copyOf(String table){
+		if(table.equals("Airline"))
+			return new String[]{"COPY Airline (airId, name, founded, country, hub) FROM STDIN WITH DELIMITER ','", "airline.csv"};
+		if(table.equals("Passenger"))
+			return new String[]{"COPY Passenger (pID, passNum, fullName, bdate, country) FROM STDIN WITH DELIMITER ','", "passenger.csv"};
+		if(table.equals("Flight"))
+			return new String[]{"COPY Flight (airId, flightNum, origin, destination, plane, seats, duration) FROM STDIN WITH DELIMITER ','", "flights.csv"};
+		if(table.equals("Ratings"))
+			return new String[]{"COPY Ratings (rID, pID, flightNum, score, comment) FROM STDIN WITH DELIMITER ','", "ratings.csv"};
+		if(table.equals("Booking"))
+			return new String[]{"COPY Booking (bookRef, departure, flightNum, pID) FROM STDIN WITH DELIMITER ','", "bookings.csv"};
+		throw new IllegalArgumentException("Unknown table " + table);
+	}
+
+	/**
+	 * Runs the whole load and prints rows/sec per table and in total.
+	 */
+	public void load() throws Exception {
+		long begin = System.nanoTime();
+		runScript(new File(this.sqlDir, "schema.sql"));
+
+		long rows = 0;
+		long copyBegin = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try{
+			for(String[] phase : PHASES){
+				List<Future<Long>> loads = new ArrayList<Future<Long>>();
+				for(final String table : phase){
+					loads.add(pool.submit(new Callable<Long>(){
+						public Long call() throws Exception {
+							return copy(table);
+						}
+					}));
+				}
+				for(Future<Long> load : loads){
+					try{
+						rows += load.get();
+					}catch(ExecutionException e){
+						throw (Exception) e.getCause();
+					}
+				}
+			}
+		}finally{
+			pool.shutdown();
+		}
+		long copyNanos = System.nanoTime() - copyBegin;
+		System.out.println("COPY: " + rows + " rows in " + (copyNanos / 1000000) + " ms, " + rate(rows, copyNanos) + " rows/sec");
+
+		long indexBegin = System.nanoTime();
+		runScript(new File(this.sqlDir, "triggers.sql"));
+		System.out.println("Keys, sequences, triggers, indexes and cluster: " + ((System.nanoTime() - indexBegin) / 1000000) + " ms");
+		long nanos = System.nanoTime() - begin;
+		System.out.println("Total: " + rows + " rows in " + (nanos / 1000000) + " ms, " + rate(rows, nanos) + " rows/sec");
+	}
+
+	/**
+	 * Streams the CSV file of one table into it.
+	 *
+	 * @return the number of rows copied
+	 */
+	private long copy(final String table) throws SQLException {
+		final String[] copy = copyOf(table);
+		return this.esql.withConnection(new SqlWork<Long>(){
+			public Long run(PooledConnection conn) throws SQLException {
+				long begin = System.nanoTime();
+				conn.executeUpdate("SET DateStyle TO 'ISO, MDY'");
+				CopyManager copyManager = conn.getConnection().unwrap(PGConnection.class).getCopyAPI();
+				long rows;
+				try{
+					BufferedReader reader = new BufferedReader(new InputStreamReader(
+						new FileInputStream(new File(dataDir, copy[1])), StandardCharsets.UTF_8), 1 << 16);
+					try{
+						rows = copyManager.copyIn(copy[0], reader, 1 << 16);
+					}finally{
+						reader.close();
+					}
+				}catch(IOException e){
+					throw new SQLException("Unable to read " + copy[1] + ": " + e.getMessage(), e);
+				}
+				long nanos = System.nanoTime() - begin;
+				System.out.println(table + ": " + rows + " rows in " + (nanos / 1000000) + " ms, " + rate(rows, nanos) + " rows/sec");
+				return rows;
+			}
+		});
+	}
+
+	/**
+	 * Runs every statement of a SQL script file.
+	 */
+	private void runScript(File script) throws SQLException, IOException {
+		StringBuilder sql = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(script));
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				sql.append(line).append('\n');
+			}
+		}finally{
+			reader.close();
+		}
+		final String text = sql.toString();
+		this.esql.withConnection(new SqlWork<Void>(){
+			public Void run(PooledConnection conn) throws SQLException {
+				Statement stmt = conn.getConnection().createStatement();
+				try{
+					stmt.execute(text);
+				}finally{
+					stmt.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	private static long rate(long rows, long nanos){
+		return nanos == 0 ? 0 : (long) (rows / (nanos / 1e9));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + BulkLoader.class.getName() +
+					" <dbname> <port> <user> [data folder] [sql folder]");
+			return;
+		}
+		File dataDir = new File(args.length > 3 ? args[3] : "../data");
+		File sqlDir = new File(args.length > 4 ? args[4] : "../sql");
+
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			new BulkLoader(esql, dataDir, sqlDir).load();
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
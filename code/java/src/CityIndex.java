@@ -0,0 +1,262 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The city names of Flight.origin, Flight.destination and Airline.hub, in
+ * memory, for autocomplete and for correcting the cities typed into
+ * options 5 and 8 before any query runs.
+ *
+ * Names are matched without regard to case or repeated blanks. They are
+ * kept as a sorted array of those keys, so the completions of a prefix are
+ * a binary search and a scan. Near misses, one letter added, dropped or
+ * changed, are found through every key with one letter deleted: two
+ * strings one edit apart share such a deletion, and the candidates this
+ * gives are checked for the edit distance.
+ *
+ * Every change builds a new snapshot and swaps it in, so lookups take no
+ * lock. Cities are added as this client writes flights and as the flight
+ * and airline changes of other clients arrive (see ReferenceDataCache);
+ * cities no longer flown to stay until refresh.
+ */
+
+public class CityIndex{
+	private static final String CITIES_QUERY = QueryMetrics.named("CityIndex.load",
+		"SELECT origin FROM Flight UNION SELECT destination FROM Flight UNION SELECT hub FROM Airline WHERE hub IS NOT NULL");
+	private static final String FLIGHT_CITIES = "SELECT origin, destination FROM Flight WHERE flightNum = ?";
+	private static final String AIRLINE_HUB = "SELECT hub FROM Airline WHERE airId = ?";
+	private static final Pattern BLANKS = Pattern.compile("\\s+");
+
+	/**
+	 * The keys in order, the name of every key, and the keys of every
+	 * deletion of one letter. Never changed once built.
+	 */
+	private static class Snapshot{
+		final String[] keys;
+		final Map<String, String> names;
+		final Map<String, String[]> deletions;
+
+		Snapshot(Map<String, String> names){
+			this.names = names;
+			this.keys = names.keySet().toArray(new String[0]);
+			Arrays.sort(this.keys);
+			Map<String, List<String>> deletions = new HashMap<String, List<String>>();
+			for(String key : this.keys){
+				for(int i = 0; i < key.length(); ++i){
+					String deletion = key.substring(0, i) + key.substring(i + 1);
+					List<String> list = deletions.get(deletion);
+					if(list == null){
+						list = new ArrayList<String>(1);
+						deletions.put(deletion, list);
+					}
+					if(!list.contains(key)){
+						list.add(key);
+					}
+				}
+			}
+			this.deletions = new HashMap<String, String[]>();
+			for(Map.Entry<String, List<String>> entry : deletions.entrySet()){
+				this.deletions.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+			}
+		}
+	}
+
+	private final AirBooking esql;
+	private volatile Snapshot snapshot = new Snapshot(new HashMap<String, String>());
+
+	public CityIndex(AirBooking esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Returns the name of the city typed, spelled as in the database: the
+	 * city with the same key, or else the only city one edit away. Returns
+	 * null when there is none, or more than one near miss.
+	 */
+	public String resolve(String typed){
+		if(typed == null){
+			return null;
+		}
+		Snapshot s = this.snapshot;
+		String key = key(typed);
+		String name = s.names.get(key);
+		if(name != null){
+			return name;
+		}
+		List<String> near = near(s, key, 2);
+		return near.size() == 1 ? s.names.get(near.get(0)) : null;
+	}
+
+	/**
+	 * Returns up to k cities for what was typed so far: those starting with
+	 * it in alphabetical order, or when there are none, those one edit away
+	 * from it.
+	 */
+	public List<String> complete(String typed, int k){
+		Snapshot s = this.snapshot;
+		String prefix = key(typed);
+		List<String> names = new ArrayList<String>();
+		int at = Arrays.binarySearch(s.keys, prefix);
+		for(int i = at < 0 ? -at - 1 : at; i < s.keys.length && names.size() < k && s.keys[i].startsWith(prefix); ++i){
+			names.add(s.names.get(s.keys[i]));
+		}
+		if(names.isEmpty()){
+			for(String near : near(s, prefix, k)){
+				names.add(s.names.get(near));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Adds cities that are not known yet.
+	 */
+	public synchronized void add(String... cities){
+		Snapshot s = this.snapshot;
+		Map<String, String> names = null;
+		for(String city : cities){
+			if(city == null || city.trim().isEmpty() || s.names.containsKey(key(city))){
+				continue;
+			}
+			if(names == null){
+				names = new HashMap<String, String>(s.names);
+			}
+			names.put(key(city), city.trim());
+		}
+		if(names != null){
+			this.snapshot = new Snapshot(names);
+		}
+	}
+
+	/**
+	 * Adds the cities of a flight that changed, read on the given
+	 * connection.
+	 *
+	 * @throws java.sql.SQLException when failed to read the flight
+	 */
+	public void reloadFlight(PooledConnection conn, String flightNum) throws SQLException {
+		ResultSet rs = conn.prepare(FLIGHT_CITIES, flightNum).executeQuery();
+		try{
+			if(rs.next()){
+				add(rs.getString(1), rs.getString(2));
+			}
+		}finally{
+			rs.close();
+		}
+	}
+
+	/**
+	 * Adds the hub of an airline that changed, read on the given
+	 * connection.
+	 *
+	 * @throws java.sql.SQLException when failed to read the airline
+	 */
+	public void reloadAirline(PooledConnection conn, int airId) throws SQLException {
+		ResultSet rs = conn.prepare(AIRLINE_HUB, airId).executeQuery();
+		try{
+			if(rs.next()){
+				add(rs.getString(1));
+			}
+		}finally{
+			rs.close();
+		}
+	}
+
+	/**
+	 * Reads every city again, dropping those no longer in the database.
+	 *
+	 * @throws java.sql.SQLException when failed to read the cities
+	 */
+	public void refresh() throws SQLException {
+		final Map<String, String> names = new HashMap<String, String>();
+		esql.withReadConnection(new SqlWork<Void>(){
+			public Void run(PooledConnection conn) throws SQLException {
+				ResultSet rs = conn.prepare(CITIES_QUERY).executeQuery();
+				try{
+					while(rs.next()){
+						String city = rs.getString(1);
+						if(!city.trim().isEmpty()){
+							names.put(key(city), city.trim());
+						}
+					}
+				}finally{
+					rs.close();
+				}
+				return null;
+			}
+		});
+		synchronized(this){
+			this.snapshot = new Snapshot(names);
+		}
+	}
+
+	public int size(){
+		return this.snapshot.keys.length;
+	}
+
+	/**
+	 * Returns up to k keys one edit away from key, in alphabetical order.
+	 */
+	private static List<String> near(Snapshot s, String key, int k){
+		List<String> near = new ArrayList<String>();
+		// a letter added to key, or changed or dropped in it, or one dropped from key
+		collect(s, key, key, near);
+		for(int i = 0; i < key.length(); ++i){
+			String deletion = key.substring(0, i) + key.substring(i + 1);
+			if(s.names.containsKey(deletion) && !near.contains(deletion)){
+				near.add(deletion);
+			}
+			collect(s, deletion, key, near);
+		}
+		near.remove(key);
+		Collections.sort(near);
+		return near.size() > k ? near.subList(0, k) : near;
+	}
+
+	private static void collect(Snapshot s, String deletion, String key, Collection<String> near){
+		String[] candidates = s.deletions.get(deletion);
+		if(candidates == null){
+			return;
+		}
+		for(String candidate : candidates){
+			if(!near.contains(candidate) && withinOneEdit(candidate, key)){
+				near.add(candidate);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether a and b differ by at most one letter added, dropped or
+	 * changed.
+	 */
+	static boolean withinOneEdit(String a, String b){
+		if(Math.abs(a.length() - b.length()) > 1){
+			return false;
+		}
+		if(a.length() < b.length()){
+			String t = a;
+			a = b;
+			b = t;
+		}
+		int i = 0;
+		while(i < b.length() && a.charAt(i) == b.charAt(i)){
+			++i;
+		}
+		if(a.length() == b.length()){
+			return a.regionMatches(i + 1, b, i + 1, a.length() - i - 1);
+		}
+		return a.regionMatches(i + 1, b, i, b.length() - i);
+	}
+
+	static String key(String city){
+		return BLANKS.matcher(city.trim()).replaceAll(" ").toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,158 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of physical connections to one database. Connections are
+ * opened lazily up to the maximum size; once every connection is in use,
+ * callers wait for one to be released.
+ */
+
+public class ConnectionPool{
+	private final String _url;
+	private final Properties _props;
+	private final int _maxSize;
+	private final long _waitMillis;
+	private final int _statementCacheSize;
+	//timing of the statements and of acquire, or null
+	private final QueryMetrics _metrics;
+
+	private final LinkedBlockingQueue<PooledConnection> _idle = new LinkedBlockingQueue<PooledConnection>();
+	private final List<PooledConnection> _all = new ArrayList<PooledConnection>();
+	private boolean _closed = false;
+
+	/**
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the password of the user
+	 * @param maxSize the maximum number of open connections
+	 * @param waitMillis how long acquire waits for a free connection
+	 * @param statementCacheSize prepared statements cached per connection
+	 * @param metrics where statements and waits are timed, or null
+	 */
+	public ConnectionPool(String url, String user, String passwd, int maxSize, long waitMillis, int statementCacheSize, QueryMetrics metrics){
+		this._url = url;
+		this._props = new Properties();
+		this._props.setProperty("user", user);
+		this._props.setProperty("password", passwd);
+		// use a named server-side statement from the first execution on
+		this._props.setProperty("prepareThreshold", "1");
+		// let the server type string parameters, so CHAR keys like flightNum still use their index
+		this._props.setProperty("stringtype", "unspecified");
+		// send batched inserts as multi-row INSERT ... VALUES statements
+		this._props.setProperty("reWriteBatchedInserts", "true");
+		this._maxSize = maxSize;
+		this._waitMillis = waitMillis;
+		this._statementCacheSize = statementCacheSize;
+		this._metrics = metrics;
+	}
+
+	/**
+	 * Takes a connection out of the pool, opening a new one if the pool has
+	 * not reached its maximum size yet.
+	 *
+	 * @return a connection for the exclusive use of the caller
+	 * @throws java.sql.SQLException when no connection could be obtained in time
+	 */
+	public PooledConnection acquire() throws SQLException {
+		if(this._metrics == null){
+			return take();
+		}
+		long begin = System.nanoTime();
+		try{
+			PooledConnection conn = take();
+			this._metrics.recordWait(System.nanoTime() - begin);
+			return conn;
+		}catch(SQLException e){
+			this._metrics.recordWaitError();
+			throw e;
+		}
+	}
+
+	private PooledConnection take() throws SQLException {
+		PooledConnection conn = this._idle.poll();
+		if(conn != null){
+			return conn;
+		}
+		conn = open();
+		if(conn != null){
+			return conn;
+		}
+		try{
+			conn = this._idle.poll(this._waitMillis, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		if(conn == null){
+			throw new SQLException("Timed out waiting for a database connection");
+		}
+		return conn;
+	}
+
+	/**
+	 * Gives a connection back to the pool. A connection left inside a
+	 * transaction is rolled back, and a broken one is dropped.
+	 *
+	 * @param conn the connection obtained from acquire
+	 */
+	public void release(PooledConnection conn){
+		try{
+			Connection c = conn.getConnection();
+			if(!c.getAutoCommit()){
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+			synchronized(this){
+				if(!this._closed){
+					this._idle.offer(conn);
+					return;
+				}
+			}
+		}catch(SQLException e){
+			// broken connection, dropped below.
+		}
+		discard(conn);
+	}
+
+	/**
+	 * Closes every connection of the pool.
+	 */
+	public void close(){
+		List<PooledConnection> all;
+		synchronized(this){
+			this._closed = true;
+			all = new ArrayList<PooledConnection>(this._all);
+			this._all.clear();
+		}
+		this._idle.clear();
+		for(PooledConnection conn : all){
+			conn.close();
+		}
+	}
+
+	private PooledConnection open() throws SQLException {
+		synchronized(this){
+			if(this._closed){
+				throw new SQLException("Connection pool is closed");
+			}
+			if(this._all.size() >= this._maxSize){
+				return null;
+			}
+			PooledConnection conn = new PooledConnection(DriverManager.getConnection(this._url, this._props), this._statementCacheSize, this._metrics);
+			this._all.add(conn);
+			return conn;
+		}
+	}
+
+	private void discard(PooledConnection conn){
+		synchronized(this){
+			this._all.remove(conn);
+		}
+		conn.close();
+	}
+}
@@ -0,0 +1,309 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory popularity counters per destination, for option 6. Four
+ * rankings are kept: the number of routes flying to a destination, and the
+ * number of seats booked on flights to it departing within the next day,
+ * week and month.
+ *
+ * refresh reads the counters from Flight and SeatInventory with two grouped
+ * queries, and runs on a timer to pick up changes made by other clients.
+ * Between refreshes, bookings and route changes made by this client are
+ * added as they happen. Every ranking is kept as an array of destinations
+ * sorted by count; a change moves one destination to its new place, and a
+ * top-k query copies the first k entries without touching the database.
+ */
+
+public class DestinationPopularity{
+	public enum Ranking{
+		ROUTES(0),
+		DAY(1),
+		WEEK(7),
+		MONTH(31);
+
+		//length of the booking window in days, 0 for the route count
+		final int days;
+
+		Ranking(int days){
+			this.days = days;
+		}
+	}
+
+	/**
+	 * A destination and its count in one ranking.
+	 */
+	public static class DestinationCount{
+		public final String destination;
+		public final long count;
+
+		DestinationCount(String destination, long count){
+			this.destination = destination;
+			this.count = count;
+		}
+	}
+
+	private static final int WINDOW_DAYS = 31;
+	private static final String ROUTES = QueryMetrics.named("DestinationPopularity.routes",
+		"SELECT destination, COUNT(*) FROM Flight GROUP BY destination");
+	private static final String BOOKINGS = QueryMetrics.named("DestinationPopularity.bookings",
+		"SELECT f.destination, s.departure, SUM(s.booked) FROM SeatInventory s, Flight f" +
+		" WHERE f.flightNum = s.flightNum AND s.departure >= ? AND s.departure < ? GROUP BY f.destination, s.departure");
+	//the whole rankings, counted as the counters are, for Export
+	static final String ROUTE_RANKING = QueryMetrics.named("Export.routeRanking",
+		"SELECT destination, COUNT(*) AS flights FROM Flight GROUP BY destination ORDER BY flights DESC, destination LIMIT ?");
+	static final String BOOKING_RANKING = QueryMetrics.named("Export.bookingRanking",
+		"SELECT f.destination, COALESCE(SUM(s.booked), 0) AS booked FROM Flight f LEFT JOIN SeatInventory s" +
+		" ON s.flightNum = f.flightNum AND s.departure >= ? AND s.departure < ? GROUP BY f.destination ORDER BY booked DESC, f.destination LIMIT ?");
+
+	/**
+	 * Counters of one destination as read by refresh.
+	 */
+	private static class Counters{
+		int routes;
+		//seats booked per departure day, index 0 is today
+		final int[] booked = new int[WINDOW_DAYS];
+
+		long count(Ranking ranking){
+			if(ranking == Ranking.ROUTES){
+				return this.routes;
+			}
+			long sum = 0;
+			for(int d = 0; d < ranking.days; ++d){
+				sum += this.booked[d];
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Destinations sorted by count, highest first and by name on ties, with
+	 * the position of every destination.
+	 */
+	private static class SortedRanking{
+		String[] destinations;
+		long[] counts;
+		int size;
+		final Map<String, Integer> positions = new HashMap<String, Integer>();
+
+		SortedRanking(Map<String, Counters> counters, final Ranking ranking){
+			final String[] names = counters.keySet().toArray(new String[0]);
+			final Map<String, Long> values = new HashMap<String, Long>();
+			for(String name : names){
+				values.put(name, counters.get(name).count(ranking));
+			}
+			Arrays.sort(names, new Comparator<String>(){
+				public int compare(String a, String b){
+					long ca = values.get(a);
+					long cb = values.get(b);
+					if(ca != cb){
+						return ca > cb ? -1 : 1;
+					}
+					return a.compareTo(b);
+				}
+			});
+			this.size = names.length;
+			this.destinations = Arrays.copyOf(names, Math.max(16, names.length));
+			this.counts = new long[this.destinations.length];
+			for(int i = 0; i < this.size; ++i){
+				this.counts[i] = values.get(names[i]);
+				this.positions.put(names[i], i);
+			}
+		}
+
+		/**
+		 * Adds delta to the count of a destination and moves it to its new
+		 * place, one neighbour at a time.
+		 */
+		void add(String destination, long delta){
+			Integer at = this.positions.get(destination);
+			int i;
+			if(at == null){
+				if(this.size == this.destinations.length){
+					this.destinations = Arrays.copyOf(this.destinations, this.size * 2);
+					this.counts = Arrays.copyOf(this.counts, this.size * 2);
+				}
+				i = this.size++;
+				this.destinations[i] = destination;
+				this.counts[i] = 0;
+			}else{
+				i = at;
+			}
+			this.counts[i] += delta;
+			while(i > 0 && before(i, i - 1)){
+				swap(i, i - 1);
+				--i;
+			}
+			while(i < this.size - 1 && before(i + 1, i)){
+				swap(i, i + 1);
+				++i;
+			}
+			this.positions.put(destination, i);
+		}
+
+		private boolean before(int a, int b){
+			if(this.counts[a] != this.counts[b]){
+				return this.counts[a] > this.counts[b];
+			}
+			return this.destinations[a].compareTo(this.destinations[b]) < 0;
+		}
+
+		private void swap(int a, int b){
+			String d = this.destinations[a];
+			long c = this.counts[a];
+			this.destinations[a] = this.destinations[b];
+			this.counts[a] = this.counts[b];
+			this.destinations[b] = d;
+			this.counts[b] = c;
+			this.positions.put(this.destinations[a], a);
+		}
+	}
+
+	private final AirBooking esql;
+	private long today;
+	private final SortedRanking[] rankings = new SortedRanking[Ranking.values().length];
+	private ScheduledExecutorService timer = null;
+
+	public DestinationPopularity(AirBooking esql){
+		this.esql = esql;
+		setCounters(new HashMap<String, Counters>(), java.time.LocalDate.now().toEpochDay());
+	}
+
+	/**
+	 * Returns the k most popular destinations in the given ranking.
+	 */
+	public synchronized List<DestinationCount> topK(Ranking ranking, int k){
+		SortedRanking sorted = this.rankings[ranking.ordinal()];
+		int n = Math.min(k, sorted.size);
+		List<DestinationCount> top = new ArrayList<DestinationCount>(n);
+		for(int i = 0; i < n; ++i){
+			top.add(new DestinationCount(sorted.destinations[i], sorted.counts[i]));
+		}
+		return top;
+	}
+
+	/**
+	 * Counts a seat booked on a flight to the given destination.
+	 */
+	public synchronized void recordBooking(String destination, java.sql.Date departure){
+		long offset = departure.toLocalDate().toEpochDay() - this.today;
+		if(offset < 0 || offset >= WINDOW_DAYS){
+			return;
+		}
+		for(Ranking ranking : Ranking.values()){
+			if(offset < ranking.days){
+				this.rankings[ranking.ordinal()].add(destination.trim(), 1);
+			}
+		}
+	}
+
+	/**
+	 * Counts a route moving from one destination to another. Either one
+	 * may be null, for a route that is added or removed.
+	 */
+	public synchronized void recordRoute(String oldDestination, String newDestination){
+		if(oldDestination != null){
+			this.rankings[Ranking.ROUTES.ordinal()].add(oldDestination.trim(), -1);
+		}
+		if(newDestination != null){
+			this.rankings[Ranking.ROUTES.ordinal()].add(newDestination.trim(), 1);
+		}
+	}
+
+	/**
+	 * Reloads every counter from the database.
+	 *
+	 * @throws java.sql.SQLException when failed to read the counters
+	 */
+	public void refresh() throws SQLException {
+		final long day = java.time.LocalDate.now().toEpochDay();
+		final Map<String, Counters> fresh = new HashMap<String, Counters>();
+		esql.withReadConnection(new SqlWork<Void>(){
+			public Void run(PooledConnection conn) throws SQLException {
+				ResultSet rs = conn.prepare(ROUTES).executeQuery();
+				try{
+					while(rs.next()){
+						counters(fresh, rs.getString(1)).routes = rs.getInt(2);
+					}
+				}finally{
+					rs.close();
+				}
+				rs = conn.prepare(BOOKINGS, java.sql.Date.valueOf(java.time.LocalDate.ofEpochDay(day)),
+					java.sql.Date.valueOf(java.time.LocalDate.ofEpochDay(day + WINDOW_DAYS))).executeQuery();
+				try{
+					while(rs.next()){
+						int offset = (int) (rs.getDate(2).toLocalDate().toEpochDay() - day);
+						counters(fresh, rs.getString(1)).booked[offset] = rs.getInt(3);
+					}
+				}finally{
+					rs.close();
+				}
+				return null;
+			}
+		});
+		setCounters(fresh, day);
+	}
+
+	private synchronized void setCounters(Map<String, Counters> counters, long day){
+		this.today = day;
+		for(Ranking ranking : Ranking.values()){
+			this.rankings[ranking.ordinal()] = new SortedRanking(counters, ranking);
+		}
+	}
+
+	/**
+	 * Refreshes now and then every given number of seconds on a daemon
+	 * thread.
+	 *
+	 * @throws java.sql.SQLException when the first refresh failed
+	 */
+	public synchronized void start(long refreshSeconds) throws SQLException {
+		refresh();
+		if(this.timer != null){
+			return;
+		}
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "destination-popularity-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.timer.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					refresh();
+				}catch(SQLException e){
+					System.err.println("Destination popularity refresh failed: " + e.getMessage());
+				}
+			}
+		}, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop(){
+		if(this.timer != null){
+			this.timer.shutdownNow();
+			this.timer = null;
+		}
+	}
+
+	private static Counters counters(Map<String, Counters> map, String destination){
+		String key = destination.trim();
+		Counters c = map.get(key);
+		if(c == null){
+			c = new Counters();
+			map.put(key, c);
+		}
+		return c;
+	}
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Exports a whole table, or the full result of a report option of the menu,
+ * as an aligned table, CSV or JSON Lines (see ResultWriter). The result is
+ * streamed from a cursor (see AirBooking.streamQuery) into the file through
+ * a file channel, or to standard out for -, so any size of result takes the
+ * same memory.
+ *
+ * The options take their input as arguments instead of prompts:
+ *
+ *   5 origin destination        direct flights
+ *   6 [ranking] [k]             destinations by the number of flights to them (routes, the default), or by
+ *                               the seats booked on flights to them in the next day, week or month
+ *   7 [k]                       routes by average score
+ *   8 origin destination [k]    direct flights by duration, longest first
+ *   9 flightNum from [to]       booked and open seats on every day from from to to
+ *
+ * Without k the whole ranking is exported.
+ *
+ * Usage: Export <dbname> <port> <user> <table|csv|jsonl> <file|-> table <name>
+ *        Export <dbname> <port> <user> <table|csv|jsonl> <file|-> option <5-9> [input...]
+ */
+
+public class Export{
+	//the tables that may be exported, also what keeps the name out of the SQL otherwise
+	private static final List<String> TABLES = Arrays.asList("Airline", "Passenger", "Flight", "Ratings", "Booking",
+		"SeatInventory", "RouteRating");
+	//options 5, 6 and 8 run the queries of AirBookingService and DestinationPopularity; these two name the airline and
+	//list the days without bookings, which the menu takes from its caches
+	private static final String RATED_ROUTES = QueryMetrics.named("Export.ratedRoutes",
+		"SELECT a.name AS airline, r.flightNum, ROUND(r.avgScore, 2) AS avgScore, " +
+		"r.scoreCount AS ratings FROM RouteRating r JOIN Flight f ON f.flightNum = r.flightNum JOIN Airline a ON a.airId = f.airId " +
+		"ORDER BY r.avgScore DESC, r.flightNum LIMIT ?");
+	private static final String SEATS = QueryMetrics.named("Export.seats", "SELECT f.flightNum, d.departure, COALESCE(s.booked, 0) AS booked, f.seats, " +
+		"COALESCE(s.capacity, CAST(FLOOR(f.seats * f.overbooking) AS INTEGER)) AS capacity FROM Flight f " +
+		"CROSS JOIN (SELECT CAST(g AS DATE) FROM generate_series(CAST(? AS DATE), CAST(? AS DATE), interval '1 day') g) AS d(departure) " +
+		"LEFT JOIN SeatInventory s ON s.flightNum = f.flightNum AND s.departure = d.departure " +
+		"WHERE f.flightNum = ? ORDER BY d.departure");
+
+	private Export(){
+	}
+
+	/**
+	 * Writes every row of a table to out.
+	 *
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to read or write the rows
+	 */
+	public static long table(AirBooking esql, String name, ResultWriter.Format format, Writer out) throws SQLException {
+		for(String table : TABLES){
+			if(table.equalsIgnoreCase(name)){
+				//Ratings.search is derived from the comment
+				String columns = table.equals("Ratings") ? "rID, pID, flightNum, score, comment" : "*";
+				return esql.exportQuery("SELECT " + columns + " FROM " + table, format, out);
+			}
+		}
+		throw new IllegalArgumentException("There is no table " + name + "; use one of " + TABLES + ".");
+	}
+
+	/**
+	 * Writes the result of a report option, 5 to 9, to out.
+	 *
+	 * @param input the input of the option, see the class comment
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to read or write the rows
+	 */
+	public static long option(AirBooking esql, int option, List<String> input, ResultWriter.Format format, Writer out)
+			throws SQLException {
+		switch(option){
+			case 5:
+				return esql.exportQuery(AirBookingService.FLIGHTS, format, out, arg(input, 0, option), arg(input, 1, option));
+			case 6:
+				return destinations(esql, input, format, out);
+			case 7:
+				return esql.exportQuery(RATED_ROUTES, format, out, limit(input, 0));
+			case 8:
+				return esql.exportQuery(AirBookingService.FLIGHTS_BY_DURATION, format, out, arg(input, 0, option), arg(input, 1, option),
+					limit(input, 2));
+			case 9:
+				java.sql.Date from = java.sql.Date.valueOf(arg(input, 1, option));
+				java.sql.Date to = input.size() > 2 ? java.sql.Date.valueOf(input.get(2)) : from;
+				return esql.exportQuery(SEATS, format, out, from, to, arg(input, 0, option));
+			default:
+				throw new IllegalArgumentException("Only the report options 5 to 9 can be exported.");
+		}
+	}
+
+	private static String arg(List<String> input, int i, int option){
+		if(input.size() <= i){
+			throw new IllegalArgumentException("Option " + option + " needs more input; see the usage of Export.");
+		}
+		return input.get(i);
+	}
+
+	//option 6, the ranking named by input[0] when it is not a number
+	private static long destinations(AirBooking esql, List<String> input, ResultWriter.Format format, Writer out)
+			throws SQLException {
+		DestinationPopularity.Ranking ranking = DestinationPopularity.Ranking.ROUTES;
+		int at = 0;
+		if(!input.isEmpty() && !input.get(0).isEmpty() && !Character.isDigit(input.get(0).charAt(0))){
+			try{
+				ranking = DestinationPopularity.Ranking.valueOf(input.get(0).toUpperCase());
+			}catch(IllegalArgumentException e){
+				throw new IllegalArgumentException("There is no ranking " + input.get(0) + "; use one of " +
+					Arrays.toString(DestinationPopularity.Ranking.values()).toLowerCase() + ".");
+			}
+			at = 1;
+		}
+		if(ranking == DestinationPopularity.Ranking.ROUTES){
+			return esql.exportQuery(DestinationPopularity.ROUTE_RANKING, format, out, limit(input, at));
+		}
+		java.time.LocalDate today = java.time.LocalDate.now();
+		return esql.exportQuery(DestinationPopularity.BOOKING_RANKING, format, out, java.sql.Date.valueOf(today),
+			java.sql.Date.valueOf(today.plusDays(ranking.days)), limit(input, at));
+	}
+
+	//the k at input[i] for a LIMIT, every row when it is not given
+	private static int limit(List<String> input, int i){
+		if(input.size() <= i){
+			return Integer.MAX_VALUE;
+		}
+		int k = Integer.parseInt(input.get(i));
+		if(k < 1){
+			throw new IllegalArgumentException("Cannot export negative or zero rows.");
+		}
+		return k;
+	}
+
+	/**
+	 * Opens file for writing through a file channel, or standard out for -.
+	 */
+	static Writer open(String file) throws IOException {
+		if(file.equals("-")){
+			return new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+		}
+		return Channels.newWriter(FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING), StandardCharsets.UTF_8.newEncoder(), 1 << 16);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 7 || !(args[5].equals("table") || args[5].equals("option"))){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + Export.class.getName() +
+					" <dbname> <port> <user> <table|csv|jsonl> <file|-> table <name>\n" +
+				"       " + "java [-classpath <classpath>] " + Export.class.getName() +
+					" <dbname> <port> <user> <table|csv|jsonl> <file|-> option <5-9> [input...]");
+			return;
+		}
+		ResultWriter.Format format = ResultWriter.Format.valueOf(args[3].toUpperCase());
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		Writer out = open(args[4]);
+		try{
+			long begin = System.nanoTime();
+			long rows = args[5].equals("table") ? table(esql, args[6], format, out)
+				: option(esql, Integer.parseInt(args[6]), Arrays.asList(args).subList(7, args.length), format, out);
+			long nanos = System.nanoTime() - begin;
+			System.err.println(rows + " rows in " + nanos / 1000000 + " ms, " + (nanos == 0 ? 0 : rows * 1000000000L / nanos) + " rows/s");
+		}finally{
+			if(args[4].equals("-")){
+				out.flush();
+			}else{
+				out.close();
+			}
+			esql.cleanup();
+		}
+	}
+}
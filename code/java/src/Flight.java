@@ -0,0 +1,23 @@
+/**
+ * One row of the Flight table, with the CHAR padding trimmed.
+ */
+
+public class Flight{
+	public final int airId;
+	public final String flightNum;
+	public final String origin;
+	public final String destination;
+	public final String plane;
+	public final int seats;
+	public final int duration;
+
+	public Flight(int airId, String flightNum, String origin, String destination, String plane, int seats, int duration){
+		this.airId = airId;
+		this.flightNum = flightNum;
+		this.origin = origin;
+		this.destination = destination;
+		this.plane = plane;
+		this.seats = seats;
+		this.duration = duration;
+	}
+}
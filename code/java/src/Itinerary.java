@@ -0,0 +1,28 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A trip of one or more connecting flights, as found by RouteGraph.search.
+ */
+
+public class Itinerary{
+	public final List<Flight> legs;
+	//sum of the leg durations
+	public final int duration;
+
+	public Itinerary(List<Flight> legs, int duration){
+		this.legs = Collections.unmodifiableList(legs);
+		this.duration = duration;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		for(Flight leg : this.legs){
+			if(sb.length() == 0){
+				sb.append(leg.origin);
+			}
+			sb.append(" -").append(leg.flightNum).append("-> ").append(leg.destination);
+		}
+		return sb.toString();
+	}
+}
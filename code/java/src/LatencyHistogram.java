@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in the manner of HdrHistogram: every power of two is
+ * split into 2^SUB_BITS linear buckets, so any recorded value is kept to
+ * within 1% of itself over the whole range of a long, in a fixed array of
+ * counters. Recording is lock free and safe from any number of threads;
+ * percentiles are read from a moment's counts and report the highest value
+ * of their bucket.
+ */
+
+public class LatencyHistogram{
+	private static final int SUB_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one value, e.g. a duration in nanoseconds. Negative values
+	 * are recorded as 0.
+	 */
+	public void record(long value){
+		value = Math.max(0, value);
+		this.counts.incrementAndGet(bucketOf(value));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		long seen = this.max.get();
+		while(value > seen && !this.max.compareAndSet(seen, value)){
+			seen = this.max.get();
+		}
+	}
+
+	public long count(){
+		return this.count.get();
+	}
+
+	public long sum(){
+		return this.sum.get();
+	}
+
+	public long max(){
+		return this.max.get();
+	}
+
+	public double mean(){
+		long n = this.count.get();
+		return n == 0 ? 0 : (double) this.sum.get() / n;
+	}
+
+	/**
+	 * Returns the value below which the given percentile (0-100) of the
+	 * recorded values fall, or 0 when nothing was recorded.
+	 */
+	public long percentile(double percentile){
+		long n = this.count.get();
+		if(n == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; ++i){
+			seen += this.counts.get(i);
+			if(seen >= rank){
+				return Math.min(highestOf(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	static int bucketOf(long value){
+		if(value < SUB_BUCKETS){
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	static long highestOf(int bucket){
+		if(bucket < SUB_BUCKETS){
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * The load factor of one group of flights: the bookings sold against the
+ * seats flown, the seats of the plane times the departures with bookings.
+ * origin and destination are set when grouped by route, airId when grouped
+ * by airline and month (YYYY-MM) when grouped by month; the others are null.
+ */
+
+public class LoadFactor{
+	public final String origin;
+	public final String destination;
+	public final Integer airId;
+	public final String month;
+	public final long bookings;
+	public final long seats;
+	public final long departures;
+
+	public LoadFactor(String origin, String destination, Integer airId, String month, long bookings, long seats, long departures){
+		this.origin = origin;
+		this.destination = destination;
+		this.airId = airId;
+		this.month = month;
+		this.bookings = bookings;
+		this.seats = seats;
+		this.departures = departures;
+	}
+
+	/**
+	 * Returns the bookings per seat flown, above 1 on overbooked flights.
+	 */
+	public double loadFactor(){
+		return this.seats == 0 ? 0 : (double) this.bookings / this.seats;
+	}
+}
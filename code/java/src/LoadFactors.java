@@ -0,0 +1,476 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Columnar in-memory snapshot of the bookings, for load factor reports by
+ * route, airline and month (see LoadFactor) that would otherwise be grouped
+ * queries over Booking on the primary.
+ *
+ * The snapshot has a row per flight and departure date, read from
+ * SeatInventory, in three int columns held off the heap: the flight, the
+ * departure as epoch day and the bookings. Flights are numbered as they are
+ * first read, and their airline, origin, destination and seats are int
+ * arrays by number, the cities numbered through a dictionary. The seats
+ * flown are those of the plane the flight has now.
+ *
+ * refresh reads the flights, and of SeatInventory only the rows changed
+ * since the previous refresh: SeatInventory.changed is the transaction that
+ * last changed a row, and every transaction that had not committed by the
+ * previous refresh has an id of at least the xmin of its snapshot. A row
+ * read twice simply replaces itself. The column is not indexed, so that the
+ * bookings keep their HOT updates; the refresh scans SeatInventory but only
+ * sends the rows that changed. Refreshes read from a replica when there is
+ * one (see ReplicaRouter). The months dropped by archiveBookingPartition
+ * stay in the snapshot until it is built again.
+ *
+ * A report splits the rows among the threads of the common fork-join pool;
+ * each task sums bookings, seats and departures into arrays indexed by
+ * group and month, which are added up as the tasks join.
+ *
+ * Usage: LoadFactors <dbname> <port> <user> <route|airline|month[,...]> [from] [to]
+ */
+
+public class LoadFactors{
+	public enum Dimension{
+		ROUTE,
+		AIRLINE,
+		MONTH
+	}
+
+	private static final String XMIN = QueryMetrics.named("LoadFactors.xmin",
+		"SELECT txid_snapshot_xmin(txid_current_snapshot())");
+	private static final String FLIGHTS = QueryMetrics.named("LoadFactors.flights",
+		"SELECT airId, flightNum, origin, destination, plane, seats, duration FROM Flight");
+	private static final String CHANGED = QueryMetrics.named("LoadFactors.changed",
+		"SELECT flightNum, departure, booked FROM SeatInventory WHERE changed >= ?");
+	//the fewest rows a report task splits further
+	private static final int LEAF_ROWS = 1 << 14;
+
+	/**
+	 * What a report sums: the rows from lo through hi day, the group of
+	 * every flight and the month of every day counted from lo.
+	 */
+	private static class Report{
+		IntBuffer flights;
+		IntBuffer days;
+		IntBuffer bookings;
+		int[] seats;
+		int[] groups;
+		int[] months;
+		int monthCount;
+		int width;
+		int lo;
+		int hi;
+		int leafRows;
+	}
+
+	/**
+	 * Sums the rows from begin up to end into bookings, seats and
+	 * departures per group and month.
+	 */
+	private static class Sum extends RecursiveTask<long[][]>{
+		private static final long serialVersionUID = 1L;
+		private final Report report;
+		private final int begin;
+		private final int end;
+
+		Sum(Report report, int begin, int end){
+			this.report = report;
+			this.begin = begin;
+			this.end = end;
+		}
+
+		protected long[][] compute(){
+			Report r = this.report;
+			if(this.end - this.begin <= r.leafRows){
+				long[][] sums = new long[3][r.width];
+				for(int row = this.begin; row < this.end; ++row){
+					int booked = r.bookings.get(row);
+					int day = r.days.get(row);
+					if(booked == 0 || day < r.lo || day > r.hi){
+						continue;
+					}
+					int flight = r.flights.get(row);
+					int at = r.groups[flight] * r.monthCount + (r.months == null ? 0 : r.months[day - r.lo]);
+					sums[0][at] += booked;
+					sums[1][at] += r.seats[flight];
+					++sums[2][at];
+				}
+				return sums;
+			}
+			int middle = (this.begin + this.end) >>> 1;
+			Sum left = new Sum(r, this.begin, middle);
+			left.fork();
+			long[][] sums = new Sum(r, middle, this.end).compute();
+			long[][] other = left.join();
+			for(int i = 0; i < sums.length; ++i){
+				for(int at = 0; at < r.width; ++at){
+					sums[i][at] += other[i][at];
+				}
+			}
+			return sums;
+		}
+	}
+
+	private final AirBooking esql;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	//flights by number, and their columns; only refresh reads flightIds and cityIds
+	private final Map<String, Integer> flightIds = new HashMap<String, Integer>();
+	private int[] airIds = new int[16];
+	private int[] origins = new int[16];
+	private int[] destinations = new int[16];
+	private int[] seats = new int[16];
+	private int flightCount = 0;
+	private final Map<String, Integer> cityIds = new HashMap<String, Integer>();
+	private final List<String> cities = new ArrayList<String>();
+	//rows by flight and day, and their columns
+	private final Map<Long, Integer> rowIds = new HashMap<Long, Integer>();
+	private IntBuffer rowFlights = column(1024);
+	private IntBuffer rowDays = column(1024);
+	private IntBuffer rowBookings = column(1024);
+	private int rowCount = 0;
+	private int minDay = Integer.MAX_VALUE;
+	private int maxDay = Integer.MIN_VALUE;
+	//xmin of the snapshot of the last refresh, 0 before the first one
+	private long watermark = 0;
+	private ScheduledExecutorService timer = null;
+
+	public LoadFactors(AirBooking esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Reads the flights and the SeatInventory rows changed since the last
+	 * refresh, all of them the first time.
+	 *
+	 * @throws java.sql.SQLException when failed to read them
+	 */
+	public synchronized void refresh() throws SQLException {
+		final long since = this.watermark;
+		final long[] xmin = new long[1];
+		final List<Flight> flights = new ArrayList<Flight>();
+		final List<String> changedFlights = new ArrayList<String>();
+		final List<int[]> changed = new ArrayList<int[]>();
+		esql.withReadConnection(new SqlWork<Void>(){
+			public Void run(PooledConnection conn) throws SQLException {
+				// before the rows, so that a transaction the rows miss is at least xmin
+				ResultSet rs = conn.prepare(XMIN).executeQuery();
+				try{
+					rs.next();
+					xmin[0] = rs.getLong(1);
+				}finally{
+					rs.close();
+				}
+				rs = conn.prepare(FLIGHTS).executeQuery();
+				try{
+					while(rs.next()){
+						flights.add(new Flight(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getString(4).trim(),
+							rs.getString(5).trim(), rs.getInt(6), rs.getInt(7)));
+					}
+				}finally{
+					rs.close();
+				}
+				rs = conn.prepare(CHANGED, since).executeQuery();
+				try{
+					while(rs.next()){
+						changedFlights.add(rs.getString(1).trim());
+						changed.add(new int[]{ (int) rs.getDate(2).toLocalDate().toEpochDay(), rs.getInt(3) });
+					}
+				}finally{
+					rs.close();
+				}
+				return null;
+			}
+		});
+		this.lock.writeLock().lock();
+		try{
+			for(Flight flight : flights){
+				putFlight(flight);
+			}
+			for(int i = 0; i < changed.size(); ++i){
+				// a flight added after the flights were read; its rows are past the new watermark
+				Integer id = this.flightIds.get(changedFlights.get(i));
+				if(id != null){
+					putRow(id, changed.get(i)[0], changed.get(i)[1]);
+				}
+			}
+			this.watermark = xmin[0];
+		}finally{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private void putFlight(Flight flight){
+		Integer id = this.flightIds.get(flight.flightNum);
+		if(id == null){
+			if(this.flightCount == this.seats.length){
+				int size = 2 * this.flightCount;
+				this.airIds = Arrays.copyOf(this.airIds, size);
+				this.origins = Arrays.copyOf(this.origins, size);
+				this.destinations = Arrays.copyOf(this.destinations, size);
+				this.seats = Arrays.copyOf(this.seats, size);
+			}
+			id = this.flightCount++;
+			this.flightIds.put(flight.flightNum, id);
+		}
+		this.airIds[id] = flight.airId;
+		this.origins[id] = city(flight.origin);
+		this.destinations[id] = city(flight.destination);
+		this.seats[id] = flight.seats;
+	}
+
+	private int city(String name){
+		Integer id = this.cityIds.get(name);
+		if(id == null){
+			id = this.cities.size();
+			this.cities.add(name);
+			this.cityIds.put(name, id);
+		}
+		return id;
+	}
+
+	private void putRow(int flight, int day, int booked){
+		Long key = ((long) flight << 32) | (day & 0xffffffffL);
+		Integer row = this.rowIds.get(key);
+		if(row == null){
+			if(this.rowCount == this.rowDays.capacity()){
+				this.rowFlights = grow(this.rowFlights, this.rowCount);
+				this.rowDays = grow(this.rowDays, this.rowCount);
+				this.rowBookings = grow(this.rowBookings, this.rowCount);
+			}
+			row = this.rowCount++;
+			this.rowIds.put(key, row);
+			this.rowFlights.put(row, flight);
+			this.rowDays.put(row, day);
+			this.minDay = Math.min(this.minDay, day);
+			this.maxDay = Math.max(this.maxDay, day);
+		}
+		this.rowBookings.put(row, booked);
+	}
+
+	/**
+	 * Returns the load factors of the departures from from through to,
+	 * either of which may be null for no bound, grouped by the given
+	 * dimensions, in order of route, airline and month. Only departures
+	 * with bookings count.
+	 */
+	public List<LoadFactor> report(Set<Dimension> by, java.sql.Date from, java.sql.Date to){
+		boolean byRoute = by.contains(Dimension.ROUTE);
+		boolean byAirline = by.contains(Dimension.AIRLINE);
+		List<LoadFactor> factors = new ArrayList<LoadFactor>();
+		this.lock.readLock().lock();
+		try{
+			Report r = new Report();
+			r.lo = Math.max(this.minDay, from == null ? Integer.MIN_VALUE : (int) from.toLocalDate().toEpochDay());
+			r.hi = Math.min(this.maxDay, to == null ? Integer.MAX_VALUE : (int) to.toLocalDate().toEpochDay());
+			if(r.lo > r.hi){
+				return factors;
+			}
+			// the flights of a group have the same route and airline, whichever of them count
+			Map<Long, Integer> groupIds = new HashMap<Long, Integer>();
+			List<Integer> firstFlights = new ArrayList<Integer>();
+			r.groups = new int[this.flightCount];
+			for(int f = 0; f < this.flightCount; ++f){
+				long route = byRoute ? (long) this.origins[f] * this.cities.size() + this.destinations[f] : 0;
+				Long key = (route << 32) | (byAirline ? this.airIds[f] & 0xffffffffL : 0);
+				Integer group = groupIds.get(key);
+				if(group == null){
+					group = firstFlights.size();
+					firstFlights.add(f);
+					groupIds.put(key, group);
+				}
+				r.groups[f] = group;
+			}
+			int firstMonth = month(r.lo);
+			r.monthCount = 1;
+			if(by.contains(Dimension.MONTH)){
+				r.monthCount = month(r.hi) - firstMonth + 1;
+				r.months = new int[r.hi - r.lo + 1];
+				for(int day = r.lo; day <= r.hi; ++day){
+					r.months[day - r.lo] = month(day) - firstMonth;
+				}
+			}
+			r.width = firstFlights.size() * r.monthCount;
+			r.flights = this.rowFlights;
+			r.days = this.rowDays;
+			r.bookings = this.rowBookings;
+			r.seats = this.seats;
+			r.leafRows = Math.max(LEAF_ROWS, this.rowCount / (4 * ForkJoinPool.getCommonPoolParallelism()) + 1);
+			long[][] sums = ForkJoinPool.commonPool().invoke(new Sum(r, 0, this.rowCount));
+			for(int group = 0; group < firstFlights.size(); ++group){
+				int f = firstFlights.get(group);
+				for(int m = 0; m < r.monthCount; ++m){
+					int at = group * r.monthCount + m;
+					if(sums[2][at] == 0){
+						continue;
+					}
+					int month = firstMonth + m;
+					factors.add(new LoadFactor(byRoute ? this.cities.get(this.origins[f]) : null,
+						byRoute ? this.cities.get(this.destinations[f]) : null, byAirline ? Integer.valueOf(this.airIds[f]) : null,
+						r.months != null ? String.format("%04d-%02d", month / 12, month % 12 + 1) : null,
+						sums[0][at], sums[1][at], sums[2][at]));
+				}
+			}
+		}finally{
+			this.lock.readLock().unlock();
+		}
+		Collections.sort(factors, new Comparator<LoadFactor>(){
+			public int compare(LoadFactor a, LoadFactor b){
+				int c = compareNullable(a.origin, b.origin);
+				if(c == 0){
+					c = compareNullable(a.destination, b.destination);
+				}
+				if(c == 0){
+					c = compareNullable(a.airId, b.airId);
+				}
+				return c != 0 ? c : compareNullable(a.month, b.month);
+			}
+		});
+		return factors;
+	}
+
+	/**
+	 * Parses dimensions written as a comma separated list, e.g. route,month.
+	 */
+	public static Set<Dimension> dimensions(String list){
+		Set<Dimension> by = EnumSet.noneOf(Dimension.class);
+		for(String name : list.split(",")){
+			if(name.trim().isEmpty()){
+				continue;
+			}
+			try{
+				by.add(Dimension.valueOf(name.trim().toUpperCase()));
+			}catch(IllegalArgumentException e){
+				throw new IllegalArgumentException("Cannot group by " + name.trim() + "; use route, airline or month.");
+			}
+		}
+		return by;
+	}
+
+	/**
+	 * Refreshes now and then every given number of seconds on a daemon
+	 * thread.
+	 *
+	 * @throws java.sql.SQLException when the first refresh failed
+	 */
+	public synchronized void start(long refreshSeconds) throws SQLException {
+		refresh();
+		if(this.timer != null){
+			return;
+		}
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "load-factors-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.timer.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					refresh();
+				}catch(SQLException e){
+					System.err.println("Load factor refresh failed: " + e.getMessage());
+				}
+			}
+		}, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop(){
+		if(this.timer != null){
+			this.timer.shutdownNow();
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * Returns how many flight and departure date rows the snapshot holds.
+	 */
+	public int size(){
+		this.lock.readLock().lock();
+		try{
+			return this.rowCount;
+		}finally{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString(){
+		this.lock.readLock().lock();
+		try{
+			return "rows=" + this.rowCount + " flights=" + this.flightCount + " cities=" + this.cities.size() +
+				" offHeapBytes=" + 3L * 4 * this.rowDays.capacity();
+		}finally{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	private static IntBuffer column(int capacity){
+		return ByteBuffer.allocateDirect(4 * capacity).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	private static IntBuffer grow(IntBuffer column, int rows){
+		IntBuffer bigger = column(2 * column.capacity());
+		IntBuffer used = column.duplicate();
+		used.position(0).limit(rows);
+		bigger.put(used);
+		return bigger;
+	}
+
+	//months since year 0, January
+	private static int month(int epochDay){
+		java.time.LocalDate day = java.time.LocalDate.ofEpochDay(epochDay);
+		return 12 * day.getYear() + day.getMonthValue() - 1;
+	}
+
+	private static <T extends Comparable<T>> int compareNullable(T a, T b){
+		if(a == null || b == null){
+			return a == null ? (b == null ? 0 : -1) : 1;
+		}
+		return a.compareTo(b);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 4){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + LoadFactors.class.getName() +
+					" <dbname> <port> <user> <route|airline|month[,...]> [from] [to]");
+			return;
+		}
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			long begin = System.nanoTime();
+			LoadFactors snapshot = esql.getLoadFactors();
+			System.out.println("snapshot " + snapshot + " built in " + (System.nanoTime() - begin) / 1000000 + " ms");
+			for(LoadFactor factor : snapshot.report(dimensions(args[3]), args.length > 4 ? java.sql.Date.valueOf(args[4]) : null,
+					args.length > 5 ? java.sql.Date.valueOf(args[5]) : null)){
+				System.out.println(String.format("%-16s %-16s %6s %7s %8d %8d %6d %6.3f",
+					factor.origin == null ? "" : factor.origin, factor.destination == null ? "" : factor.destination,
+					factor.airId == null ? "" : factor.airId.toString(), factor.month == null ? "" : factor.month,
+					factor.bookings, factor.seats, factor.departures, factor.loadFactor()));
+			}
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe map that evicts the least recently used entry once
+ * it is full, and counts hits and misses.
+ */
+
+public class LruCache<K, V>{
+	private final LinkedHashMap<K, V> map;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public LruCache(final int maxSize){
+		this.map = new LinkedHashMap<K, V>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest){
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached value, or null when the key is not cached.
+	 */
+	public synchronized V get(K key){
+		V value = this.map.get(key);
+		if(value == null){
+			this.misses.incrementAndGet();
+		}else{
+			this.hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	public synchronized void put(K key, V value){
+		this.map.put(key, value);
+	}
+
+	public synchronized void invalidate(K key){
+		this.map.remove(key);
+	}
+
+	public synchronized void clear(){
+		this.map.clear();
+	}
+
+	public synchronized int size(){
+		return this.map.size();
+	}
+
+	public long getHits(){
+		return this.hits.get();
+	}
+
+	public long getMisses(){
+		return this.misses.get();
+	}
+
+	@Override
+	public String toString(){
+		long h = getHits();
+		long m = getMisses();
+		return "size=" + size() + " hits=" + h + " misses=" + m +
+			" hitRate=" + (h + m == 0 ? 0 : (100 * h / (h + m))) + "%";
+	}
+}
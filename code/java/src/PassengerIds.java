@@ -0,0 +1,122 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of passport number to passenger id, for the booking
+ * and review paths. Passport numbers that do not exist are cached as well.
+ * Lookups that miss read the covering passenger_passnum_key index (see
+ * triggers.sql), so they are index-only scans.
+ *
+ * Passengers added by this client are put in the cache as they are
+ * inserted. Passengers added, changed or removed by any client are sent on
+ * the passenger_changed channel by the passengerChanged trigger (see
+ * triggers.sql), and the ReferenceDataCache listener invalidates them. A
+ * lookup that raced with an invalidation is not cached, so a passenger
+ * added meanwhile is not hidden by a stale negative entry.
+ */
+
+public class PassengerIds{
+	private static final Integer NO_PASSENGER = -1;
+	private static final String PASSENGER_IDS = QueryMetrics.named("PassengerIds.lookup",
+		"SELECT passNum, pID FROM Passenger WHERE passNum = ANY(?::bpchar[])");
+
+	private final AirBooking esql;
+	private final LruCache<String, Integer> ids;
+	//bumped by every invalidation
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public PassengerIds(AirBooking esql, int maxPassengers){
+		this.esql = esql;
+		this.ids = new LruCache<String, Integer>(maxPassengers);
+	}
+
+	/**
+	 * Returns the id of the passenger with the given passport number, or
+	 * null when there is none.
+	 *
+	 * @throws java.sql.SQLException when failed to read the passenger
+	 */
+	public Integer getPid(final String passNum) throws SQLException {
+		Integer pid = this.ids.get(passNum.trim());
+		if(pid == null){
+			pid = esql.withConnection(new SqlWork<Integer>(){
+				public Integer run(PooledConnection conn) throws SQLException {
+					List<String> one = new ArrayList<String>(1);
+					one.add(passNum.trim());
+					return getPids(conn, one).get(passNum.trim());
+				}
+			});
+		}
+		return NO_PASSENGER.equals(pid) ? null : pid;
+	}
+
+	/**
+	 * Returns the ids of the passengers with the given passport numbers,
+	 * keyed by trimmed passport number. Numbers without a passenger are
+	 * left out. Only the numbers missing from the cache are read, with one
+	 * query.
+	 *
+	 * @throws java.sql.SQLException when failed to read the passengers
+	 */
+	public Map<String, Integer> getPids(PooledConnection conn, Collection<String> passNums) throws SQLException {
+		Map<String, Integer> found = new HashMap<String, Integer>();
+		List<String> missing = new ArrayList<String>();
+		for(String passNum : passNums){
+			String key = passNum.trim();
+			Integer pid = this.ids.get(key);
+			if(pid == null){
+				missing.add(key);
+			}else if(!NO_PASSENGER.equals(pid)){
+				found.put(key, pid);
+			}
+		}
+		if(missing.isEmpty()){
+			return found;
+		}
+		long generation = this.invalidations.get();
+		Map<String, Integer> read = new HashMap<String, Integer>();
+		ResultSet rs = conn.prepare(PASSENGER_IDS, conn.getConnection().createArrayOf("varchar", missing.toArray())).executeQuery();
+		try{
+			while(rs.next()){
+				read.put(rs.getString(1).trim(), rs.getInt(2));
+			}
+		}finally{
+			rs.close();
+		}
+		found.putAll(read);
+		if(this.invalidations.get() == generation){
+			for(String key : missing){
+				Integer pid = read.get(key);
+				this.ids.put(key, pid == null ? NO_PASSENGER : pid);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Records a passenger this client has just inserted.
+	 */
+	public void put(String passNum, int pid){
+		this.ids.put(passNum.trim(), pid);
+	}
+
+	public void invalidate(String passNum){
+		this.invalidations.incrementAndGet();
+		this.ids.invalidate(passNum.trim());
+	}
+
+	public void clear(){
+		this.invalidations.incrementAndGet();
+		this.ids.clear();
+	}
+
+	public LruCache<String, Integer> getCache(){
+		return this.ids;
+	}
+}
@@ -0,0 +1,17 @@
+/**
+ * A new passenger to add: passport number, name, birth date and country.
+ */
+
+public class PassengerRequest{
+	public final String passNum;
+	public final String fullName;
+	public final java.sql.Date bdate;
+	public final String country;
+
+	public PassengerRequest(String passNum, String fullName, java.sql.Date bdate, String country){
+		this.passNum = passNum;
+		this.fullName = fullName;
+		this.bdate = bdate;
+		this.country = country;
+	}
+}
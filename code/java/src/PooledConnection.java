@@ -0,0 +1,163 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A physical database connection handed out by the ConnectionPool. Every
+ * connection keeps its own cache of prepared statements keyed by the SQL
+ * text, so a query shape is parsed and planned by the server only once per
+ * connection and later calls just bind new parameter values.
+ *
+ * A PooledConnection is used by one thread at a time, between acquire and
+ * release on the pool. With QueryMetrics, the cached statements are timed.
+ */
+
+public class PooledConnection{
+	//reference to physical database connection
+	private final Connection _connection;
+	//prepared statements by SQL text, least recently used first
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+	//times the statements prepared here, or null
+	private final QueryMetrics _metrics;
+
+	public PooledConnection(Connection connection, final int cacheSize, QueryMetrics metrics){
+		this._connection = connection;
+		this._metrics = metrics;
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if(size() <= cacheSize){
+					return false;
+				}
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the underlying JDBC connection.
+	 */
+	public Connection getConnection(){
+		return this._connection;
+	}
+
+	/**
+	 * Returns the cached prepared statement for the given SQL text, preparing
+	 * it on first use, with the given parameters bound in order.
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the prepared statement ready to execute
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public PreparedStatement prepare(String sql, Object... params) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if(stmt == null || stmt.isClosed()){
+			stmt = this._connection.prepareStatement(sql);
+			if(this._metrics != null){
+				stmt = this._metrics.instrument(stmt, sql);
+			}
+			this._statements.put(sql, stmt);
+		}else{
+			stmt.clearParameters();
+		}
+		for(int i = 0; i < params.length; ++i){
+			if(params[i] == null){
+				stmt.setNull(i + 1, Types.NULL);
+			}else{
+				stmt.setObject(i + 1, params[i]);
+			}
+		}
+		return stmt;
+	}
+
+	/**
+	 * Executes an INSERT, UPDATE or DELETE statement with bind parameters.
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when the update failed
+	 */
+	public int executeUpdate(String sql, Object... params) throws SQLException {
+		return prepare(sql, params).executeUpdate();
+	}
+
+	/**
+	 * Executes a query with bind parameters and tells whether it returned
+	 * any row (1) or not (0).
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return 1 when at least one row matched, 0 otherwise
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery(String sql, Object... params) throws SQLException {
+		ResultSet rs = prepare(sql, params).executeQuery();
+		try{
+			return rs.next() ? 1 : 0;
+		}finally{
+			rs.close();
+		}
+	}
+
+	/**
+	 * Executes a query with bind parameters and returns the rows as a list of
+	 * records, each record being the list of its column values.
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult(String sql, Object... params) throws SQLException {
+		ResultSet rs = prepare(sql, params).executeQuery();
+		try{
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			List<List<String>> result = new ArrayList<List<String>>();
+			while(rs.next()){
+				List<String> record = new ArrayList<String>(numCol);
+				for(int i = 1; i <= numCol; ++i)
+					record.add(rs.getString(i));
+				result.add(record);
+			}
+			return result;
+		}finally{
+			rs.close();
+		}
+	}
+
+	/**
+	 * Closes every cached statement and the physical connection.
+	 */
+	public void close(){
+		Iterator<PreparedStatement> it = this._statements.values().iterator();
+		while(it.hasNext()){
+			closeQuietly(it.next());
+		}
+		this._statements.clear();
+		try{
+			this._connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement stmt){
+		try{
+			stmt.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+}
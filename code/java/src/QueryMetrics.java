@@ -0,0 +1,439 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timing of every statement run through the connection pool, by logical
+ * operation. PooledConnection hands out its prepared statements wrapped by
+ * instrument, which times every execute, counts the rows returned or
+ * changed and the errors, and keeps the bound parameters for the slow query
+ * log. Waiting for a pooled connection is timed as well.
+ *
+ * The operation of a statement is the name it was given with named, e.g.
+ * BookFlight.insert, or else the Class.method that first prepared it.
+ *
+ * The numbers are exposed as MXBeans under airbooking:type=Query and
+ * airbooking:type=Pool, in the Prometheus text format by writePrometheus
+ * (GET /metrics of AirBookingServer, and the file named by
+ * airbooking.metrics.file when the client exits), and statements slower than
+ * airbooking.metrics.slowMillis (200) or failing are logged with their
+ * parameters to the file named by airbooking.metrics.slowLog, or stderr.
+ */
+
+public class QueryMetrics{
+	/**
+	 * The numbers of one operation, as seen through JMX.
+	 */
+	public interface OperationMXBean{
+		long getCount();
+		long getErrors();
+		long getRows();
+		long getSlow();
+		double getMeanMillis();
+		double getP50Millis();
+		double getP90Millis();
+		double getP99Millis();
+		double getP999Millis();
+		double getMaxMillis();
+	}
+
+	/**
+	 * Latencies and counters of one operation.
+	 */
+	public static class Operation implements OperationMXBean{
+		final String name;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong slow = new AtomicLong();
+
+		Operation(String name){
+			this.name = name;
+		}
+
+		public long getCount(){ return this.latency.count(); }
+		public long getErrors(){ return this.errors.get(); }
+		public long getRows(){ return this.rows.get(); }
+		public long getSlow(){ return this.slow.get(); }
+		public double getMeanMillis(){ return this.latency.mean() / 1e6; }
+		public double getP50Millis(){ return this.latency.percentile(50) / 1e6; }
+		public double getP90Millis(){ return this.latency.percentile(90) / 1e6; }
+		public double getP99Millis(){ return this.latency.percentile(99) / 1e6; }
+		public double getP999Millis(){ return this.latency.percentile(99.9) / 1e6; }
+		public double getMaxMillis(){ return this.latency.max() / 1e6; }
+	}
+
+	//operation names given to SQL texts
+	private static final Map<String, String> NAMES = new ConcurrentHashMap<String, String>();
+	//frames skipped when the operation is taken from the stack
+	private static final List<String> PLUMBING = Arrays.asList("PooledConnection", "QueryMetrics", "ConnectionPool");
+	private static final List<String> HELPERS = Arrays.asList("withConnection", "withReadConnection", "inTransaction", "executeUpdate",
+		"executeQuery", "executeQueryAndPrintResult", "executeQueryAndReturnResult", "executeStreaming", "getCurrSeqVal",
+		"streamQuery", "exportQuery");
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final String database;
+	private final long slowNanos;
+	private final PrintStream slowLog;
+	private final Map<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+	//operation of every SQL text not named, taken from the stack once
+	private final Map<String, String> callers = new ConcurrentHashMap<String, String>();
+	private final Operation poolWait = new Operation("pool.wait");
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	/**
+	 * @param database the database name, part of the MXBean names
+	 * @param slowMillis statements taking at least this long are logged
+	 * @param slowLog where slow and failing statements are logged
+	 */
+	public QueryMetrics(String database, long slowMillis, PrintStream slowLog){
+		this.database = database;
+		this.slowNanos = slowMillis * 1000000L;
+		this.slowLog = slowLog;
+		register(this.poolWait, "Pool", null);
+	}
+
+	/**
+	 * Returns the metrics configured by the airbooking.metrics.* properties.
+	 */
+	public static QueryMetrics fromProperties(String database){
+		PrintStream log = System.err;
+		String file = System.getProperty("airbooking.metrics.slowLog");
+		if(file != null){
+			try{
+				log = new PrintStream(new FileOutputStream(file, true), true, "UTF-8");
+			}catch(IOException e){
+				System.err.println("Unable to open the slow query log " + file + ": " + e.getMessage());
+			}
+		}
+		return new QueryMetrics(database, Long.getLong("airbooking.metrics.slowMillis", 200L), log);
+	}
+
+	/**
+	 * Gives a SQL text an operation name and returns the text, for
+	 * statement constants:
+	 * static final String INSERT_BOOKING = QueryMetrics.named("BookFlight.insert", "INSERT ...");
+	 */
+	public static String named(String operation, String sql){
+		NAMES.put(sql, operation);
+		return sql;
+	}
+
+	/**
+	 * Wraps a newly prepared statement so that its executions are timed
+	 * under the operation of its SQL text.
+	 */
+	public PreparedStatement instrument(PreparedStatement stmt, String sql){
+		Operation operation = operation(operationOf(sql));
+		return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+			new Class<?>[]{PreparedStatement.class}, new Timed(stmt, sql, operation));
+	}
+
+	/**
+	 * Records how long a caller waited for a pooled connection.
+	 */
+	public void recordWait(long nanos){
+		this.poolWait.latency.record(nanos);
+	}
+
+	/**
+	 * Records a connection the pool failed to hand out.
+	 */
+	public void recordWaitError(){
+		this.poolWait.errors.incrementAndGet();
+	}
+
+	/**
+	 * Returns the operations seen so far, by name.
+	 */
+	public Map<String, Operation> getOperations(){
+		return new TreeMap<String, Operation>(this.operations);
+	}
+
+	public Operation getPoolWait(){
+		return this.poolWait;
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format.
+	 */
+	public void writePrometheus(Writer out) throws IOException {
+		Map<String, Operation> operations = getOperations();
+		out.write("# HELP airbooking_query_duration_seconds Time to execute the statements of an operation.\n");
+		out.write("# TYPE airbooking_query_duration_seconds summary\n");
+		for(Operation op : operations.values()){
+			summary(out, "airbooking_query_duration_seconds", "operation=\"" + escape(op.name) + "\"", op.latency);
+		}
+		counter(out, "airbooking_query_rows_total", "Rows returned or changed by the statements of an operation.", operations, 0);
+		counter(out, "airbooking_query_errors_total", "Statements of an operation that failed.", operations, 1);
+		counter(out, "airbooking_query_slow_total", "Statements of an operation slower than the slow query threshold.", operations, 2);
+		out.write("# HELP airbooking_pool_wait_seconds Time spent waiting for a pooled connection.\n");
+		out.write("# TYPE airbooking_pool_wait_seconds summary\n");
+		summary(out, "airbooking_pool_wait_seconds", null, this.poolWait.latency);
+		out.write("# HELP airbooking_pool_wait_errors_total Connections the pool failed to hand out in time.\n");
+		out.write("# TYPE airbooking_pool_wait_errors_total counter\n");
+		out.write("airbooking_pool_wait_errors_total " + this.poolWait.errors.get() + "\n");
+	}
+
+	/**
+	 * Writes the metrics to a file, replacing it.
+	 */
+	public void dump(String file) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+		try{
+			writePrometheus(out);
+		}finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Removes the MXBeans of these metrics.
+	 */
+	public synchronized void close(){
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(ObjectName name : this.registered){
+			try{
+				server.unregisterMBean(name);
+			}catch(Exception e){
+				// already gone.
+			}
+		}
+		this.registered.clear();
+		if(this.slowLog != System.err){
+			this.slowLog.close();
+		}
+	}
+
+	private Operation operation(String name){
+		Operation op = this.operations.get(name);
+		if(op == null){
+			Operation created = new Operation(name);
+			op = this.operations.putIfAbsent(name, created);
+			if(op == null){
+				op = created;
+				register(op, "Query", name);
+			}
+		}
+		return op;
+	}
+
+	private String operationOf(String sql){
+		String name = NAMES.get(sql);
+		if(name != null){
+			return name;
+		}
+		name = this.callers.get(sql);
+		if(name == null){
+			name = caller();
+			this.callers.put(sql, name);
+		}
+		return name;
+	}
+
+	/**
+	 * Returns Class.method of the first frame outside the pool, the
+	 * statement helpers of AirBooking and anonymous classes.
+	 */
+	private static String caller(){
+		for(StackTraceElement frame : new Throwable().getStackTrace()){
+			String cls = frame.getClassName();
+			if(cls.indexOf('$') >= 0 || cls.startsWith("java.") || cls.startsWith("javax.") || cls.startsWith("sun.") ||
+					cls.startsWith("jdk.") || PLUMBING.contains(cls) || (cls.equals("AirBooking") && HELPERS.contains(frame.getMethodName()))){
+				continue;
+			}
+			return cls.substring(cls.lastIndexOf('.') + 1) + "." + frame.getMethodName();
+		}
+		return "unknown";
+	}
+
+	private synchronized void register(Operation op, String type, String name){
+		try{
+			ObjectName objectName = new ObjectName("airbooking:type=" + type + ",db=" + ObjectName.quote(this.database) +
+				(name == null ? "" : ",operation=" + ObjectName.quote(name)));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(op, objectName);
+			this.registered.add(objectName);
+		}catch(Exception e){
+			// another client of the same database in this JVM has it; the numbers are still kept here
+		}
+	}
+
+	private void log(String what, Operation op, long nanos, String sql, Object[] params, int batch, Throwable error){
+		StringBuilder line = new StringBuilder();
+		line.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date())).append(' ').append(what)
+			.append(' ').append(op.name).append(' ').append(String.format("%.3fms", nanos / 1e6));
+		if(batch > 0){
+			line.append(" batch=").append(batch);
+		}
+		line.append(" sql=").append(sql.replaceAll("\\s+", " ")).append(" params=").append(Arrays.toString(params));
+		if(error != null){
+			line.append(" error=").append(error.getMessage());
+		}
+		this.slowLog.println(line);
+	}
+
+	private static void summary(Writer out, String metric, String labels, LatencyHistogram latency) throws IOException {
+		String prefix = labels == null ? "" : labels + ",";
+		for(double q : QUANTILES){
+			out.write(metric + "{" + prefix + "quantile=\"" + q + "\"} " + latency.percentile(q * 100) / 1e9 + "\n");
+		}
+		String suffix = labels == null ? "" : "{" + labels + "}";
+		out.write(metric + "_sum" + suffix + " " + latency.sum() / 1e9 + "\n");
+		out.write(metric + "_count" + suffix + " " + latency.count() + "\n");
+	}
+
+	private static void counter(Writer out, String metric, String help, Map<String, Operation> operations, int which) throws IOException {
+		out.write("# HELP " + metric + " " + help + "\n");
+		out.write("# TYPE " + metric + " counter\n");
+		for(Operation op : operations.values()){
+			long value = which == 0 ? op.rows.get() : which == 1 ? op.errors.get() : op.slow.get();
+			out.write(metric + "{operation=\"" + escape(op.name) + "\"} " + value + "\n");
+		}
+	}
+
+	private static String escape(String label){
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Times the executions of one prepared statement and remembers its
+	 * parameters.
+	 */
+	private class Timed implements InvocationHandler{
+		private final PreparedStatement stmt;
+		private final String sql;
+		private final Operation op;
+		private Object[] params = new Object[0];
+		private int batch = 0;
+
+		Timed(PreparedStatement stmt, String sql, Operation op){
+			this.stmt = stmt;
+			this.sql = sql;
+			this.op = op;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(name.startsWith("execute")){
+				return execute(method, args, name);
+			}
+			if(name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer){
+				bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+			}else if(name.equals("clearParameters")){
+				Arrays.fill(this.params, null);
+			}else if(name.equals("addBatch") && (args == null || args.length == 0)){
+				++this.batch;
+			}else if(name.equals("clearBatch")){
+				this.batch = 0;
+			}
+			return call(method, args);
+		}
+
+		private Object execute(Method method, Object[] args, String name) throws Throwable {
+			long begin = System.nanoTime();
+			Object result;
+			try{
+				result = call(method, args);
+			}catch(SQLException e){
+				long nanos = System.nanoTime() - begin;
+				op.latency.record(nanos);
+				op.errors.incrementAndGet();
+				log("ERROR", op, nanos, this.sql, this.params, this.batch, e);
+				this.batch = 0;
+				throw e;
+			}
+			long nanos = System.nanoTime() - begin;
+			op.latency.record(nanos);
+			if(result instanceof Integer){
+				op.rows.addAndGet(Math.max(0, (Integer) result));
+			}else if(result instanceof Long){
+				op.rows.addAndGet(Math.max(0, (Long) result));
+			}else if(result instanceof int[]){
+				op.rows.addAndGet(batchRows((int[]) result));
+			}else if(result instanceof ResultSet){
+				result = Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+					new Counted((ResultSet) result, op));
+			}
+			if(nanos >= slowNanos){
+				op.slow.incrementAndGet();
+				log("SLOW", op, nanos, this.sql, this.params, this.batch, null);
+			}
+			if(name.equals("executeBatch")){
+				this.batch = 0;
+			}
+			return result;
+		}
+
+		private void bind(int index, Object value){
+			if(index > this.params.length){
+				this.params = Arrays.copyOf(this.params, index);
+			}
+			this.params[index - 1] = value;
+		}
+
+		private int batchRows(int[] counts){
+			int rows = 0;
+			for(int n : counts){
+				// batches rewritten to multi-row inserts report SUCCESS_NO_INFO
+				rows += n >= 0 ? n : 1;
+			}
+			return rows;
+		}
+
+		private Object call(Method method, Object[] args) throws Throwable {
+			try{
+				return method.invoke(this.stmt, args);
+			}catch(InvocationTargetException e){
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Counts the rows read from a result set.
+	 */
+	private static class Counted implements InvocationHandler{
+		private final ResultSet rs;
+		private final Operation op;
+
+		Counted(ResultSet rs, Operation op){
+			this.rs = rs;
+			this.op = op;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object result;
+			try{
+				result = method.invoke(this.rs, args);
+			}catch(InvocationTargetException e){
+				throw e.getCause();
+			}
+			if(Boolean.TRUE.equals(result) && method.getName().equals("next")){
+				this.op.rows.incrementAndGet();
+			}
+			return result;
+		}
+	}
+}
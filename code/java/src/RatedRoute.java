@@ -0,0 +1,18 @@
+/**
+ * One entry of the highest rated routes: the flight, its airline and its
+ * average score.
+ */
+
+public class RatedRoute{
+	public final String airline;
+	public final String flightNum;
+	public final java.math.BigDecimal avgScore;
+	public final int ratings;
+
+	public RatedRoute(String airline, String flightNum, java.math.BigDecimal avgScore, int ratings){
+		this.airline = airline;
+		this.flightNum = flightNum;
+		this.avgScore = avgScore;
+		this.ratings = ratings;
+	}
+}
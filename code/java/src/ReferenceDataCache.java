@@ -0,0 +1,338 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Read-through cache of the Flight and Airline rows, keyed by flightNum and
+ * airId. Both tables are small and rarely written, so after the first
+ * lookup existence checks and airline names come from memory. Lookups of
+ * rows that do not exist are cached as well.
+ *
+ * Entries are dropped when this process writes a flight (invalidateFlight)
+ * and when any process does: the flightChanged and airlineChanged triggers
+ * (see triggers.sql) send the key on the flight_changed and airline_changed
+ * channels, and a listener thread invalidates what it receives. Changed
+ * flights are also reloaded into the route graph, if it was loaded, and
+ * dropped from the seat maps; their cities, and the hubs of changed
+ * airlines, are added to the city index. Passport numbers sent on
+ * passenger_changed are dropped from PassengerIds. A lookup that raced with
+ * an invalidation is not cached, as in PassengerIds.
+ *
+ * When the listener loses its connection it connects again, waiting longer
+ * after every failure, and then drops everything cached and reloads the
+ * route graph and the city index, as notifications may have been missed
+ * while it was gone.
+ */
+
+public class ReferenceDataCache{
+	private static final Flight NO_FLIGHT = new Flight(-1, null, null, null, null, 0, 0);
+	private static final Airline NO_AIRLINE = new Airline(-1, null, 0, null, null);
+	private static final String FLIGHT = QueryMetrics.named("ReferenceData.flight",
+		"SELECT airId, flightNum, origin, destination, plane, seats, duration FROM Flight WHERE flightNum = ?");
+	private static final String AIRLINE = QueryMetrics.named("ReferenceData.airline",
+		"SELECT airId, name, founded, country, hub FROM Airline WHERE airId = ?");
+	private static final String FLIGHTS = QueryMetrics.named("ReferenceData.flights",
+		"SELECT airId, flightNum, origin, destination, plane, seats, duration FROM Flight WHERE flightNum = ANY(?::bpchar[])");
+	//how long the listener waits for notifications before checking whether it should stop
+	private static final int LISTEN_TIMEOUT_MILLIS = 500;
+	//how long the listener waits before connecting again, doubled after every failure
+	private static final long RECONNECT_MIN_MILLIS = 500;
+	private static final long RECONNECT_MAX_MILLIS = 30000;
+
+	private final AirBooking esql;
+	private final LruCache<String, Flight> flights;
+	private final LruCache<Integer, Airline> airlines;
+	//bumped by every invalidation
+	private final AtomicLong invalidations = new AtomicLong();
+	private volatile boolean listening = false;
+	private Thread listener = null;
+
+	public ReferenceDataCache(AirBooking esql, int maxFlights, int maxAirlines){
+		this.esql = esql;
+		this.flights = new LruCache<String, Flight>(maxFlights);
+		this.airlines = new LruCache<Integer, Airline>(maxAirlines);
+	}
+
+	/**
+	 * Returns the flight with the given number, or null when there is none.
+	 *
+	 * @param flightNum the flight number
+	 * @return the flight row, or null
+	 * @throws java.sql.SQLException when failed to read the flight
+	 */
+	public Flight getFlight(final String flightNum) throws SQLException {
+		String key = flightNum.trim();
+		Flight flight = this.flights.get(key);
+		if(flight == null){
+			long generation = this.invalidations.get();
+			flight = esql.withConnection(new SqlWork<Flight>(){
+				public Flight run(PooledConnection conn) throws SQLException {
+					ResultSet rs = conn.prepare(FLIGHT, flightNum).executeQuery();
+					try{
+						if(!rs.next()){
+							return NO_FLIGHT;
+						}
+						return new Flight(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getString(4).trim(),
+							rs.getString(5).trim(), rs.getInt(6), rs.getInt(7));
+					}finally{
+						rs.close();
+					}
+				}
+			});
+			if(this.invalidations.get() == generation){
+				this.flights.put(key, flight);
+			}
+		}
+		return flight == NO_FLIGHT ? null : flight;
+	}
+
+	/**
+	 * Returns the flights with the given numbers, keyed by trimmed flight
+	 * number. Numbers without a flight are left out. Only the flights
+	 * missing from the cache are read, with one query.
+	 *
+	 * @throws java.sql.SQLException when failed to read the flights
+	 */
+	public Map<String, Flight> getFlights(Collection<String> flightNums) throws SQLException {
+		Map<String, Flight> found = new HashMap<String, Flight>();
+		final List<String> missing = new ArrayList<String>();
+		for(String flightNum : flightNums){
+			String key = flightNum.trim();
+			Flight flight = this.flights.get(key);
+			if(flight == null){
+				if(!missing.contains(key)){
+					missing.add(key);
+				}
+			}else if(flight != NO_FLIGHT){
+				found.put(key, flight);
+			}
+		}
+		if(missing.isEmpty()){
+			return found;
+		}
+		long generation = this.invalidations.get();
+		Map<String, Flight> read = esql.withConnection(new SqlWork<Map<String, Flight>>(){
+			public Map<String, Flight> run(PooledConnection conn) throws SQLException {
+				Map<String, Flight> read = new HashMap<String, Flight>();
+				ResultSet rs = conn.prepare(FLIGHTS, conn.getConnection().createArrayOf("varchar", missing.toArray())).executeQuery();
+				try{
+					while(rs.next()){
+						Flight flight = new Flight(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getString(4).trim(),
+							rs.getString(5).trim(), rs.getInt(6), rs.getInt(7));
+						read.put(flight.flightNum, flight);
+					}
+				}finally{
+					rs.close();
+				}
+				return read;
+			}
+		});
+		found.putAll(read);
+		if(this.invalidations.get() == generation){
+			for(String key : missing){
+				Flight flight = read.get(key);
+				this.flights.put(key, flight == null ? NO_FLIGHT : flight);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the airline with the given id, or null when there is none.
+	 *
+	 * @param airId the airline id
+	 * @return the airline row, or null
+	 * @throws java.sql.SQLException when failed to read the airline
+	 */
+	public Airline getAirline(final int airId) throws SQLException {
+		Airline airline = this.airlines.get(airId);
+		if(airline == null){
+			long generation = this.invalidations.get();
+			airline = esql.withConnection(new SqlWork<Airline>(){
+				public Airline run(PooledConnection conn) throws SQLException {
+					ResultSet rs = conn.prepare(AIRLINE, airId).executeQuery();
+					try{
+						if(!rs.next()){
+							return NO_AIRLINE;
+						}
+						return new Airline(rs.getInt(1), rs.getString(2).trim(), rs.getInt(3), rs.getString(4).trim(), rs.getString(5).trim());
+					}finally{
+						rs.close();
+					}
+				}
+			});
+			if(this.invalidations.get() == generation){
+				this.airlines.put(airId, airline);
+			}
+		}
+		return airline == NO_AIRLINE ? null : airline;
+	}
+
+	public void invalidateFlight(String flightNum){
+		this.invalidations.incrementAndGet();
+		this.flights.invalidate(flightNum.trim());
+	}
+
+	public void invalidateAirline(int airId){
+		this.invalidations.incrementAndGet();
+		this.airlines.invalidate(airId);
+	}
+
+	public LruCache<String, Flight> getFlightCache(){
+		return this.flights;
+	}
+
+	public LruCache<Integer, Airline> getAirlineCache(){
+		return this.airlines;
+	}
+
+	/**
+	 * Starts the thread that listens for changes made by other processes.
+	 * It holds one pooled connection until stop is called, and takes
+	 * another one when that connection fails.
+	 */
+	public synchronized void start(){
+		if(this.listener != null){
+			return;
+		}
+		this.listening = true;
+		this.listener = new Thread(new Runnable(){
+			public void run(){
+				long backoff = RECONNECT_MIN_MILLIS;
+				for(boolean reconnect = false; listening; reconnect = true){
+					final boolean missed = reconnect;
+					try{
+						esql.withConnection(new SqlWork<Void>(){
+							public Void run(PooledConnection conn) throws SQLException {
+								listen(conn, missed);
+								return null;
+							}
+						});
+						backoff = RECONNECT_MIN_MILLIS;
+					}catch(SQLException e){
+						if(!listening){
+							return;
+						}
+						System.err.println("Reference data listener lost its connection, connecting again in " + backoff + " ms: " + e.getMessage());
+						// until it is back nothing is cached, as nothing would be invalidated
+						clear();
+						for(long waited = 0; waited < backoff && listening; waited += LISTEN_TIMEOUT_MILLIS){
+							try{
+								Thread.sleep(LISTEN_TIMEOUT_MILLIS);
+							}catch(InterruptedException interrupted){
+								return;
+							}
+						}
+						backoff = Math.min(2 * backoff, RECONNECT_MAX_MILLIS);
+					}
+				}
+			}
+		}, "reference-data-listener");
+		this.listener.setDaemon(true);
+		this.listener.start();
+	}
+
+	/**
+	 * Stops the listener thread and gives its connection back.
+	 */
+	public synchronized void stop(){
+		this.listening = false;
+		if(this.listener != null){
+			try{
+				this.listener.join(2 * LISTEN_TIMEOUT_MILLIS);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			this.listener = null;
+		}
+	}
+
+	/**
+	 * Drops the flights, airlines and passenger ids cached.
+	 */
+	private void clear(){
+		this.invalidations.incrementAndGet();
+		this.flights.clear();
+		this.airlines.clear();
+		PassengerIds passengers = esql.startedPassengerIds();
+		if(passengers != null){
+			passengers.clear();
+		}
+	}
+
+	/**
+	 * Listens for changes on the given connection until stopped.
+	 *
+	 * @param missed whether an earlier connection failed, so that changes
+	 *        may have been missed by the route graph, the seat maps and the
+	 *        city index too
+	 */
+	private void listen(PooledConnection conn, boolean missed) throws SQLException {
+		conn.executeUpdate("LISTEN flight_changed");
+		conn.executeUpdate("LISTEN airline_changed");
+		conn.executeUpdate("LISTEN passenger_changed");
+		// anything cached before LISTEN took effect may already be stale
+		clear();
+		if(missed){
+			RouteGraph routes = esql.startedRouteGraph();
+			if(routes != null){
+				routes.refresh();
+			}
+			SeatMaps seatMaps = esql.startedSeatMaps();
+			if(seatMaps != null){
+				seatMaps.getCache().clear();
+			}
+			CityIndex cities = esql.startedCities();
+			if(cities != null){
+				cities.refresh();
+			}
+			System.err.println("Reference data listener connected again");
+		}
+		PGConnection pg = conn.getConnection().unwrap(PGConnection.class);
+		try{
+			while(this.listening){
+				PGNotification[] notifications = pg.getNotifications(LISTEN_TIMEOUT_MILLIS);
+				if(notifications == null){
+					continue;
+				}
+				for(PGNotification n : notifications){
+					if(n.getName().equals("flight_changed")){
+						invalidateFlight(n.getParameter());
+						RouteGraph routes = esql.startedRouteGraph();
+						if(routes != null){
+							routes.reload(conn, n.getParameter());
+						}
+						SeatMaps seatMaps = esql.startedSeatMaps();
+						if(seatMaps != null){
+							seatMaps.invalidateFlight(n.getParameter());
+						}
+						CityIndex cities = esql.startedCities();
+						if(cities != null){
+							cities.reloadFlight(conn, n.getParameter());
+						}
+					}else if(n.getName().equals("airline_changed")){
+						invalidateAirline(Integer.parseInt(n.getParameter().trim()));
+						CityIndex cities = esql.startedCities();
+						if(cities != null){
+							cities.reloadAirline(conn, Integer.parseInt(n.getParameter().trim()));
+						}
+					}else if(n.getName().equals("passenger_changed")){
+						PassengerIds ids = esql.startedPassengerIds();
+						if(ids != null){
+							ids.invalidate(n.getParameter());
+						}
+					}
+				}
+			}
+		}finally{
+			conn.executeUpdate("UNLISTEN *");
+		}
+	}
+}
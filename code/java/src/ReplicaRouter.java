@@ -0,0 +1,258 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes read-only work to streaming replicas of the database (see
+ * AirBooking.withReadConnection). Every replica has a connection pool of
+ * its own, and a timer asks every replica how far its replay is behind
+ * the primary. Reads go round robin to the replicas that answered the last
+ * check and are at most maxLagMillis behind; when there is none they go to
+ * the primary.
+ *
+ * A write through this client pins the reads to the primary for pinMillis
+ * (pin), so that what it just wrote is read back even from a replica that
+ * has not replayed it yet, as long as pinMillis is longer than
+ * maxLagMillis. The clients of the server share the pin.
+ *
+ * A replica that can not be reached, that cancels a read for a conflict
+ * with recovery, or whose WAL receiver is not streaming from the primary is
+ * left out until the next check and the read runs again on the primary. A
+ * replica that lost the primary has replayed all it received, so it is
+ * only taken as caught up while it streams. Without pg_read_all_stats the
+ * status of the receiver can not be read and the lag is the time since the
+ * last transaction replayed.
+ */
+
+public class ReplicaRouter{
+	//whether the WAL receiver runs and its status, null without pg_read_all_stats, then how far the replay is
+	//behind: 0 when everything received is replayed, and since the last transaction replayed
+	private static final String LAG =
+		"SELECT pg_is_in_recovery(), w.pid IS NOT NULL, w.status, " +
+		"CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+		"ELSE CAST(COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) * 1000 AS BIGINT) END, " +
+		"CAST(COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) * 1000 AS BIGINT) " +
+		"FROM (SELECT 1) AS one LEFT JOIN pg_stat_wal_receiver w ON true";
+	private static final String STREAMING = "streaming";
+	//SQL states of a lost connection (class 08), a server shutting down (57P) and a read cancelled by recovery
+	private static final String CONNECTION_EXCEPTION = "08";
+	private static final String OPERATOR_INTERVENTION = "57P";
+	private static final String SERIALIZATION_FAILURE = "40001";
+
+	/**
+	 * One replica, its pool and what the last check found.
+	 */
+	private static class Replica{
+		final String url;
+		final ConnectionPool pool;
+		volatile boolean up = false;
+		volatile long lagMillis = -1;
+
+		Replica(String url, ConnectionPool pool){
+			this.url = url;
+			this.pool = pool;
+		}
+	}
+
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	private final long maxLagMillis;
+	private final long pinNanos;
+	private volatile long pinnedUntil = System.nanoTime();
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicLong replicaReads = new AtomicLong();
+	private final AtomicLong primaryReads = new AtomicLong();
+	private final AtomicLong fallbacks = new AtomicLong();
+	private ScheduledExecutorService timer = null;
+
+	/**
+	 * @param urls the JDBC connection URLs of the replicas
+	 * @param user the database user
+	 * @param passwd the password of the user
+	 * @param poolSize the maximum number of open connections per replica
+	 * @param waitMillis how long a read waits for a replica connection
+	 * @param statementCacheSize prepared statements cached per connection
+	 * @param metrics where statements and waits are timed, or null
+	 * @param maxLagMillis how far behind a replica may be and still be read
+	 * @param pinMillis how long a write keeps the reads on the primary
+	 */
+	public ReplicaRouter(List<String> urls, String user, String passwd, int poolSize, long waitMillis, int statementCacheSize,
+			QueryMetrics metrics, long maxLagMillis, long pinMillis){
+		for(String url : urls){
+			this.replicas.add(new Replica(url, new ConnectionPool(url, user, passwd, poolSize, waitMillis, statementCacheSize, metrics)));
+		}
+		this.maxLagMillis = maxLagMillis;
+		this.pinNanos = TimeUnit.MILLISECONDS.toNanos(pinMillis);
+	}
+
+	/**
+	 * Makes the router of the replicas listed in airbooking.replicas, as
+	 * comma separated JDBC URLs, or returns null when there are none.
+	 */
+	public static ReplicaRouter fromProperties(String user, String passwd, QueryMetrics metrics){
+		String list = System.getProperty("airbooking.replicas", "").trim();
+		if(list.isEmpty()){
+			return null;
+		}
+		List<String> urls = new ArrayList<String>();
+		for(String url : list.split(",")){
+			if(!url.trim().isEmpty()){
+				urls.add(url.trim());
+			}
+		}
+		return new ReplicaRouter(urls, user, passwd,
+			Integer.getInteger("airbooking.replicas.poolSize", Integer.getInteger("airbooking.pool.size", 8)),
+			Long.getLong("airbooking.replicas.waitMillis", 1000L),
+			Integer.getInteger("airbooking.pool.statementCache", 64),
+			metrics,
+			Long.getLong("airbooking.replicas.maxLagMillis", 1000L),
+			Long.getLong("airbooking.replicas.pinMillis", 2000L));
+	}
+
+	/**
+	 * Checks the replicas now and then every checkMillis milliseconds.
+	 */
+	public synchronized void start(long checkMillis){
+		if(this.timer != null){
+			return;
+		}
+		check();
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "replica-lag-check");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.timer.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				check();
+			}
+		}, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the checks and closes the connections to the replicas.
+	 */
+	public synchronized void stop(){
+		if(this.timer != null){
+			this.timer.shutdownNow();
+			this.timer = null;
+		}
+		for(Replica replica : this.replicas){
+			replica.pool.close();
+		}
+	}
+
+	/**
+	 * Asks every replica whether it is still a replica and how far behind
+	 * it is.
+	 */
+	void check(){
+		for(Replica replica : this.replicas){
+			try{
+				PooledConnection conn = replica.pool.acquire();
+				try{
+					ResultSet rs = conn.prepare(LAG).executeQuery();
+					try{
+						rs.next();
+						String status = rs.getString(3);
+						boolean streaming = rs.getBoolean(1) && rs.getBoolean(2) && (status == null || status.equals(STREAMING));
+						if(!streaming && replica.up){
+							System.err.println("Replica " + replica.url + " is not streaming from the primary");
+						}
+						replica.lagMillis = status != null ? rs.getLong(4) : rs.getLong(5);
+						replica.up = streaming;
+					}finally{
+						rs.close();
+					}
+				}finally{
+					replica.pool.release(conn);
+				}
+			}catch(SQLException e){
+				if(replica.up){
+					System.err.println("Replica " + replica.url + " is down: " + e.getMessage());
+				}
+				replica.up = false;
+			}
+		}
+	}
+
+	/**
+	 * Keeps the reads on the primary for the next pinMillis, after a write.
+	 */
+	public void pin(){
+		this.pinnedUntil = System.nanoTime() + this.pinNanos;
+	}
+
+	/**
+	 * Returns the pool of the replica the next read goes to, or null when
+	 * it goes to the primary.
+	 */
+	public ConnectionPool route(){
+		if(System.nanoTime() - this.pinnedUntil < 0){
+			this.primaryReads.incrementAndGet();
+			return null;
+		}
+		int n = this.replicas.size();
+		int first = this.next.getAndIncrement();
+		for(int i = 0; i < n; ++i){
+			Replica replica = this.replicas.get(Math.abs((first + i) % n));
+			if(replica.up && replica.lagMillis <= this.maxLagMillis){
+				this.replicaReads.incrementAndGet();
+				return replica.pool;
+			}
+		}
+		this.primaryReads.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Leaves the replica of the given pool out until the next check, after
+	 * a read on it failed for one of the reasons of isReplicaFailure.
+	 */
+	public void failed(ConnectionPool pool, SQLException e){
+		this.fallbacks.incrementAndGet();
+		for(Replica replica : this.replicas){
+			if(replica.pool == pool && replica.up){
+				replica.up = false;
+				System.err.println("Replica " + replica.url + " failed a read: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Tells whether a read failed because of the replica rather than the
+	 * read itself, so that it may run again on the primary.
+	 */
+	public static boolean isReplicaFailure(SQLException e){
+		String state = e.getSQLState();
+		return state == null || state.startsWith(CONNECTION_EXCEPTION) || state.startsWith(OPERATOR_INTERVENTION)
+			|| state.equals(SERIALIZATION_FAILURE);
+	}
+
+	public long getReplicaReads(){
+		return this.replicaReads.get();
+	}
+
+	public long getPrimaryReads(){
+		return this.primaryReads.get();
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder s = new StringBuilder();
+		s.append("replicaReads=").append(getReplicaReads()).append(" primaryReads=").append(getPrimaryReads())
+			.append(" fallbacks=").append(this.fallbacks.get());
+		for(Replica replica : this.replicas){
+			s.append(' ').append(replica.url).append(replica.up ? " up lag=" + replica.lagMillis + "ms" : " down");
+		}
+		return s.toString();
+	}
+}
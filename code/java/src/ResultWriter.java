@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Writes a streamed result (see AirBooking.streamQuery) as text, in one of
+ * three formats:
+ *
+ *   TABLE - columns padded to the width of their type, for people
+ *   CSV   - comma separated with a header line, quoted as in RFC 4180
+ *   JSONL - JSON Lines, one object per row keyed by column name
+ *
+ * Rows are written into a char buffer of BUFFER_SIZE that goes to the
+ * writer whole, so a large result costs one write per buffer rather than
+ * one per cell. Integer columns are written digit by digit from getLong,
+ * without a String per value; the other columns come from getString. The
+ * padding of CHAR columns is dropped in CSV and JSON Lines. The header is
+ * written with the first row, so an empty result writes nothing.
+ *
+ * flush hands what is buffered to the writer and flushes it; the writer is
+ * never closed here.
+ */
+
+public abstract class ResultWriter implements RowHandler{
+	public enum Format{
+		TABLE,
+		CSV,
+		JSONL
+	}
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Writer out;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int length = 0;
+	private final char[] digits = new char[20];
+	//column names, and whether a column is an integer or a padded CHAR, read with the first row
+	protected String[] names = null;
+	protected boolean[] integral;
+	protected boolean[] padded;
+	protected int[] types;
+
+	protected ResultWriter(Writer out){
+		this.out = out;
+	}
+
+	/**
+	 * Returns a writer of the given format that writes to out.
+	 */
+	public static ResultWriter create(Format format, Writer out){
+		switch(format){
+			case CSV: return new Csv(out);
+			case JSONL: return new JsonLines(out);
+			default: return new Table(out);
+		}
+	}
+
+	public final void row(Row row) throws SQLException {
+		try{
+			if(this.names == null){
+				columns(row);
+				header(row);
+			}
+			write(row);
+		}catch(IOException e){
+			throw new SQLException("Unable to write the result: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Writes the column names, once, before the first row.
+	 */
+	protected abstract void header(Row row) throws SQLException, IOException;
+
+	protected abstract void write(Row row) throws SQLException, IOException;
+
+	/**
+	 * Hands the buffered text to the writer and flushes it.
+	 *
+	 * @throws java.io.IOException when failed to write
+	 */
+	public void flush() throws IOException {
+		drain();
+		this.out.flush();
+	}
+
+	private void columns(Row row) throws SQLException {
+		int n = row.getColumnCount();
+		this.names = new String[n];
+		this.integral = new boolean[n];
+		this.padded = new boolean[n];
+		this.types = new int[n];
+		for(int i = 0; i < n; ++i){
+			this.names[i] = row.getColumnName(i + 1);
+			this.types[i] = row.getColumnType(i + 1);
+			this.integral[i] = this.types[i] == Types.TINYINT || this.types[i] == Types.SMALLINT || this.types[i] == Types.INTEGER ||
+				this.types[i] == Types.BIGINT;
+			this.padded[i] = this.types[i] == Types.CHAR;
+		}
+	}
+
+	private void drain() throws IOException {
+		if(this.length > 0){
+			this.out.write(this.buffer, 0, this.length);
+			this.length = 0;
+		}
+	}
+
+	protected final void append(char c) throws IOException {
+		if(this.length == this.buffer.length){
+			drain();
+		}
+		this.buffer[this.length++] = c;
+	}
+
+	/**
+	 * Appends s, without its trailing blanks when trim is set.
+	 *
+	 * @return the characters appended
+	 */
+	protected final int append(String s, boolean trim) throws IOException {
+		int end = s.length();
+		if(trim){
+			while(end > 0 && s.charAt(end - 1) == ' '){
+				--end;
+			}
+		}
+		for(int at = 0; at < end; ){
+			if(this.length == this.buffer.length){
+				drain();
+			}
+			int n = Math.min(end - at, this.buffer.length - this.length);
+			s.getChars(at, at + n, this.buffer, this.length);
+			this.length += n;
+			at += n;
+		}
+		return end;
+	}
+
+	/**
+	 * Appends the decimal digits of v.
+	 *
+	 * @return the characters appended
+	 */
+	protected final int append(long v) throws IOException {
+		if(v == Long.MIN_VALUE){
+			return append(Long.toString(v), false);
+		}
+		int at = this.digits.length;
+		long rest = Math.abs(v);
+		do{
+			this.digits[--at] = (char) ('0' + rest % 10);
+			rest /= 10;
+		}while(rest != 0);
+		if(v < 0){
+			this.digits[--at] = '-';
+		}
+		for(int i = at; i < this.digits.length; ++i){
+			append(this.digits[i]);
+		}
+		return this.digits.length - at;
+	}
+
+	/**
+	 * Columns padded to the display size of their type, at most MAX_WIDTH,
+	 * or to their name when that is longer. Longer values push the rest of
+	 * their row to the right.
+	 */
+	private static class Table extends ResultWriter{
+		private static final int MAX_WIDTH = 40;
+		private int[] widths;
+
+		Table(Writer out){
+			super(out);
+		}
+
+		protected void header(Row row) throws SQLException, IOException {
+			this.widths = new int[this.names.length];
+			for(int i = 0; i < this.names.length; ++i){
+				this.widths[i] = Math.max(this.names[i].length(), Math.min(row.getColumnDisplaySize(i + 1), MAX_WIDTH));
+				pad(i, append(this.names[i], false));
+			}
+			append('\n');
+			for(int i = 0; i < this.names.length; ++i){
+				for(int c = 0; c < this.widths[i]; ++c){
+					append('-');
+				}
+				pad(i, this.widths[i]);
+			}
+			append('\n');
+		}
+
+		protected void write(Row row) throws SQLException, IOException {
+			for(int i = 0; i < this.names.length; ++i){
+				int n;
+				if(this.integral[i]){
+					long v = row.getLong(i + 1);
+					n = row.wasNull() ? append("NULL", false) : append(v);
+				}else{
+					String v = row.getString(i + 1);
+					n = append(v == null ? "NULL" : v, false);
+				}
+				pad(i, n);
+			}
+			append('\n');
+		}
+
+		private void pad(int column, int written) throws IOException {
+			if(column == this.widths.length - 1){
+				return;
+			}
+			for(int c = written; c < Math.max(this.widths[column] + 2, written + 1); ++c){
+				append(' ');
+			}
+		}
+	}
+
+	/**
+	 * A header line of the column names, then a line per row. NULL is an
+	 * empty field.
+	 */
+	private static class Csv extends ResultWriter{
+		Csv(Writer out){
+			super(out);
+		}
+
+		protected void header(Row row) throws IOException {
+			for(int i = 0; i < this.names.length; ++i){
+				if(i > 0){
+					append(',');
+				}
+				field(this.names[i], false);
+			}
+			append('\r');
+			append('\n');
+		}
+
+		protected void write(Row row) throws SQLException, IOException {
+			for(int i = 0; i < this.names.length; ++i){
+				if(i > 0){
+					append(',');
+				}
+				if(this.integral[i]){
+					long v = row.getLong(i + 1);
+					if(!row.wasNull()){
+						append(v);
+					}
+				}else{
+					String v = row.getString(i + 1);
+					if(v != null){
+						field(v, this.padded[i]);
+					}
+				}
+			}
+			append('\r');
+			append('\n');
+		}
+
+		private void field(String v, boolean trim) throws IOException {
+			int end = v.length();
+			if(trim){
+				while(end > 0 && v.charAt(end - 1) == ' '){
+					--end;
+				}
+			}
+			boolean quote = false;
+			for(int c = 0; c < end && !quote; ++c){
+				char ch = v.charAt(c);
+				quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+			}
+			if(!quote){
+				append(v, trim);
+				return;
+			}
+			append('"');
+			for(int c = 0; c < end; ++c){
+				char ch = v.charAt(c);
+				if(ch == '"'){
+					append('"');
+				}
+				append(ch);
+			}
+			append('"');
+		}
+	}
+
+	/**
+	 * An object per line, with numbers and booleans as JSON numbers and
+	 * booleans and everything else as strings.
+	 */
+	private static class JsonLines extends ResultWriter{
+		//"name": of every column, escaped once
+		private String[] keys;
+
+		JsonLines(Writer out){
+			super(out);
+		}
+
+		protected void header(Row row){
+			this.keys = new String[this.names.length];
+			for(int i = 0; i < this.names.length; ++i){
+				this.keys[i] = AirBookingServer.quote(this.names[i]) + ":";
+			}
+		}
+
+		protected void write(Row row) throws SQLException, IOException {
+			append('{');
+			for(int i = 0; i < this.names.length; ++i){
+				if(i > 0){
+					append(',');
+				}
+				append(this.keys[i], false);
+				if(this.integral[i]){
+					long v = row.getLong(i + 1);
+					if(row.wasNull()){
+						append("null", false);
+					}else{
+						append(v);
+					}
+					continue;
+				}
+				String v = row.getString(i + 1);
+				if(v == null){
+					append("null", false);
+				}else if(isNumber(this.types[i]) && !v.equals("NaN") && !v.endsWith("Infinity")){
+					append(v, false);
+				}else if(this.types[i] == Types.BOOLEAN || this.types[i] == Types.BIT){
+					append(v.startsWith("t") ? "true" : "false", false);
+				}else{
+					string(v, this.padded[i]);
+				}
+			}
+			append('}');
+			append('\n');
+		}
+
+		private void string(String v, boolean trim) throws IOException {
+			int end = v.length();
+			if(trim){
+				while(end > 0 && v.charAt(end - 1) == ' '){
+					--end;
+				}
+			}
+			append('"');
+			for(int c = 0; c < end; ++c){
+				char ch = v.charAt(c);
+				if(ch == '"' || ch == '\\'){
+					append('\\');
+					append(ch);
+				}else if(ch < 0x20){
+					append("\\u00", false);
+					append(Character.forDigit(ch >> 4, 16));
+					append(Character.forDigit(ch & 0xf, 16));
+				}else{
+					append(ch);
+				}
+			}
+			append('"');
+		}
+
+		private static boolean isNumber(int type){
+			return type == Types.NUMERIC || type == Types.DECIMAL || type == Types.REAL || type == Types.FLOAT || type == Types.DOUBLE;
+		}
+	}
+}
@@ -0,0 +1,303 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes reviews in groups. Reviews are put in a bounded queue and a single
+ * writer thread takes them out in batches: it waits up to lingerMillis for
+ * a batch to fill, checks the whole batch with one query (passenger,
+ * flight, flown and already rated, for every review at once), and inserts
+ * the accepted reviews as one JDBC batch in one transaction. A burst of
+ * reviews therefore costs a few round trips and commits per batch instead
+ * of five round trips per review.
+ *
+ * submit blocks while the queue is full, which slows the callers down to
+ * the pace of the writer instead of letting the queue grow. Every review
+ * gets a Future that completes once its batch has committed. When the
+ * batch fails, its reviews are written again one by one, so that a review
+ * whose passenger or flight was deleted after the check fails alone.
+ */
+
+public class ReviewPipeline{
+	private static final String FOREIGN_KEY_VIOLATION = "23503";
+	private static final String VALIDATE_REVIEWS = QueryMetrics.named("TakeCustomerReview.validate",
+		"SELECT p.pID, f.flightNum IS NOT NULL, " +
+		"EXISTS (SELECT 1 FROM Booking b WHERE b.pID = p.pID AND b.flightNum = r.flightNum AND b.departure <= current_date), " +
+		"EXISTS (SELECT 1 FROM Ratings x WHERE x.pID = p.pID AND x.flightNum = r.flightNum) " +
+		"FROM unnest(?::bpchar[], ?::bpchar[]) WITH ORDINALITY AS r(passNum, flightNum, i) " +
+		"LEFT JOIN Passenger p ON p.passNum = r.passNum " +
+		"LEFT JOIN Flight f ON f.flightNum = r.flightNum " +
+		"ORDER BY r.i");
+	private static final String INSERT_REVIEW = QueryMetrics.named("TakeCustomerReview.insert",
+		"INSERT INTO Ratings (rID, pID, flightNum, score, comment) VALUES (?, ?, ?, ?, ?)");
+
+	/**
+	 * A review waiting in the queue and the future of its outcome.
+	 */
+	private static class Pending{
+		final ReviewRequest request;
+		final CompletableFuture<ReviewResult> result = new CompletableFuture<ReviewResult>();
+
+		Pending(ReviewRequest request){
+			this.request = request;
+		}
+	}
+
+	private final AirBooking esql;
+	private final BlockingQueue<Pending> queue;
+	private final int batchSize;
+	private final long lingerNanos;
+	private Thread writer = null;
+	private volatile boolean stopping = false;
+	//set once the writer is gone, after which submit fails what it queued itself
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param esql the database the reviews are written to
+	 * @param capacity how many reviews may wait before submit blocks
+	 * @param batchSize the most reviews written per transaction
+	 * @param lingerMillis how long a batch waits for more reviews
+	 */
+	public ReviewPipeline(AirBooking esql, int capacity, int batchSize, long lingerMillis){
+		this.esql = esql;
+		this.queue = new ArrayBlockingQueue<Pending>(capacity);
+		this.batchSize = batchSize;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+	}
+
+	public synchronized void start(){
+		if(this.writer != null){
+			return;
+		}
+		this.stopping = false;
+		this.stopped = false;
+		this.writer = new Thread(new Runnable(){
+			public void run(){
+				write();
+			}
+		}, "review-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queues a review, waiting while the queue is full.
+	 *
+	 * @return the outcome of the review, once its batch has committed
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 *         for room in the queue
+	 */
+	public Future<ReviewResult> submit(ReviewRequest request) throws InterruptedException {
+		if(request.score < 0 || request.score > 5){
+			throw new IllegalArgumentException("Invalid Score Provided");
+		}
+		if(request.passNum == null || request.flightNum == null){
+			throw new IllegalArgumentException("Passport number and flight number are required.");
+		}
+		if(this.stopping){
+			throw new IllegalStateException("The review pipeline is stopped");
+		}
+		Pending pending = new Pending(request);
+		this.queue.put(pending);
+		// stop may have drained the queue between the check above and the put
+		if(this.stopped){
+			failLeft();
+		}
+		return pending.result;
+	}
+
+	/**
+	 * Writes the reviews still queued and stops the writer. Reviews
+	 * submitted while stopping fail.
+	 */
+	public void stop(){
+		Thread writer;
+		synchronized(this){
+			writer = this.writer;
+			this.writer = null;
+			this.stopping = true;
+		}
+		if(writer != null){
+			try{
+				writer.join();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.stopped = true;
+		failLeft();
+	}
+
+	private void failLeft(){
+		List<Pending> left = new ArrayList<Pending>();
+		this.queue.drainTo(left);
+		for(Pending pending : left){
+			pending.result.completeExceptionally(new IllegalStateException("The review pipeline is stopped"));
+		}
+	}
+
+	/**
+	 * The writer thread: takes batches from the queue until stopped and the
+	 * queue is empty.
+	 */
+	private void write(){
+		List<Pending> batch = new ArrayList<Pending>(this.batchSize);
+		try{
+			while(true){
+				Pending first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null){
+					if(this.stopping){
+						return;
+					}
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + this.lingerNanos;
+				while(batch.size() < this.batchSize){
+					if(this.queue.drainTo(batch, this.batchSize - batch.size()) > 0){
+						continue;
+					}
+					long left = deadline - System.nanoTime();
+					Pending next = left > 0 ? this.queue.poll(left, TimeUnit.NANOSECONDS) : null;
+					if(next == null){
+						break;
+					}
+					batch.add(next);
+				}
+				writeBatch(batch);
+				batch.clear();
+			}
+		}catch(InterruptedException e){
+			fail(batch, e);
+		}
+	}
+
+	private static void fail(List<Pending> batch, Exception e){
+		for(Pending pending : batch){
+			pending.result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Checks and inserts one batch in one transaction and completes the
+	 * futures of its reviews. When the batch fails it is rolled back and
+	 * its reviews are written one by one instead.
+	 */
+	private void writeBatch(final List<Pending> batch){
+		ReviewResult[] results;
+		try{
+			results = esql.inTransaction(new SqlWork<ReviewResult[]>(){
+				public ReviewResult[] run(PooledConnection conn) throws SQLException {
+					int[] pids = new int[batch.size()];
+					ReviewResult[] results = validate(conn, batch, pids);
+					insert(conn, batch, pids, results);
+					return results;
+				}
+			});
+		}catch(SQLException e){
+			if(batch.size() > 1){
+				for(Pending pending : batch){
+					writeBatch(Collections.singletonList(pending));
+				}
+			}else if(FOREIGN_KEY_VIOLATION.equals(e.getSQLState())){
+				// the passenger or the flight was deleted after the check
+				batch.get(0).result.complete(BookingEngine.isMissingPassenger(e) ? ReviewResult.NO_SUCH_PASSENGER : ReviewResult.NO_SUCH_FLIGHT);
+			}else{
+				fail(batch, e);
+			}
+			return;
+		}catch(RuntimeException e){
+			fail(batch, e);
+			return;
+		}
+		for(int i = 0; i < batch.size(); ++i){
+			batch.get(i).result.complete(results[i]);
+		}
+	}
+
+	/**
+	 * Returns the outcome of every review of the batch and fills in the
+	 * passenger ids of the accepted ones. A passenger reviewing the same
+	 * flight twice in one batch gets ALREADY_RATED the second time.
+	 */
+	private static ReviewResult[] validate(PooledConnection conn, List<Pending> batch, int[] pids) throws SQLException {
+		Connection c = conn.getConnection();
+		String[] passNums = new String[batch.size()];
+		String[] flightNums = new String[batch.size()];
+		for(int i = 0; i < batch.size(); ++i){
+			passNums[i] = batch.get(i).request.passNum.trim();
+			flightNums[i] = batch.get(i).request.flightNum.trim();
+		}
+		ReviewResult[] results = new ReviewResult[batch.size()];
+		Set<String> rated = new HashSet<String>();
+		ResultSet rs = conn.prepare(VALIDATE_REVIEWS, c.createArrayOf("varchar", passNums), c.createArrayOf("varchar", flightNums)).executeQuery();
+		try{
+			for(int i = 0; rs.next(); ++i){
+				int pid = rs.getInt(1);
+				if(rs.wasNull()){
+					results[i] = ReviewResult.NO_SUCH_PASSENGER;
+				}else if(!rs.getBoolean(2)){
+					results[i] = ReviewResult.NO_SUCH_FLIGHT;
+				}else if(!rs.getBoolean(3)){
+					results[i] = ReviewResult.NOT_FLOWN;
+				}else if(rs.getBoolean(4) || !rated.add(pid + "|" + flightNums[i])){
+					results[i] = ReviewResult.ALREADY_RATED;
+				}else{
+					results[i] = ReviewResult.RATED;
+					pids[i] = pid;
+				}
+			}
+		}finally{
+			rs.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Inserts the accepted reviews of the batch as one JDBC batch, with ids
+	 * reserved from reviewID_seq.
+	 */
+	private void insert(PooledConnection conn, List<Pending> batch, int[] pids, ReviewResult[] results) throws SQLException {
+		int accepted = 0;
+		for(ReviewResult result : results){
+			if(result == ReviewResult.RATED){
+				++accepted;
+			}
+		}
+		if(accepted == 0){
+			return;
+		}
+		int[] rids = esql.getReviewIdSequence().next(conn, accepted);
+		PreparedStatement stmt = conn.prepare(INSERT_REVIEW);
+		int next = 0;
+		for(int i = 0; i < batch.size(); ++i){
+			if(results[i] != ReviewResult.RATED){
+				continue;
+			}
+			ReviewRequest request = batch.get(i).request;
+			stmt.setInt(1, rids[next++]);
+			stmt.setInt(2, pids[i]);
+			stmt.setString(3, request.flightNum.trim());
+			stmt.setInt(4, request.score);
+			stmt.setString(5, request.comment);
+			stmt.addBatch();
+		}
+		try{
+			stmt.executeBatch();
+		}catch(SQLException e){
+			stmt.clearBatch();
+			throw e;
+		}
+	}
+}
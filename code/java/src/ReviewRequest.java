@@ -0,0 +1,17 @@
+/**
+ * A review of a flight by a passenger who has flown it.
+ */
+
+public class ReviewRequest{
+	public final String passNum;
+	public final String flightNum;
+	public final int score;
+	public final String comment;
+
+	public ReviewRequest(String passNum, String flightNum, int score, String comment){
+		this.passNum = passNum;
+		this.flightNum = flightNum;
+		this.score = score;
+		this.comment = comment;
+	}
+}
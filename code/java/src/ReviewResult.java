@@ -0,0 +1,11 @@
+/**
+ * Outcome of a review taken through AirBookingService.review.
+ */
+
+public enum ReviewResult{
+	RATED,
+	NO_SUCH_PASSENGER,
+	NO_SUCH_FLIGHT,
+	NOT_FLOWN,
+	ALREADY_RATED
+}
@@ -0,0 +1,194 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Full-text search over the comments of the reviews, ranked by relevance.
+ * Ratings.search is a tsvector generated from the comment, so it is in
+ * step with every review as it is inserted, and the ratings_search GIN
+ * index finds the matching reviews (see schema.sql and triggers.sql).
+ *
+ * The search text is read by websearch_to_tsquery: words must all occur,
+ * "quoted words" as a phrase, or between words gives either and -word
+ * leaves it out. Matches can be narrowed to a flight, an airline and a
+ * range of scores, and come ranked by ts_rank_cd, then by rID.
+ *
+ * Pages are read by keyset rather than OFFSET: every page ends with a
+ * cursor of the rank and rID of its last match, and the next page starts
+ * after it. A page therefore costs the same however deep it is, and a
+ * review added meanwhile neither repeats nor skips a match. The highlighted
+ * snippet of a match is only made for the rows of the page.
+ *
+ * Usage: ReviewSearch <dbname> <port> <user> <text> [flightNum] [minScore] [maxScore]
+ */
+
+public class ReviewSearch{
+	public static final int MAX_PAGE = 100;
+	private static final String HEADLINE = "MaxFragments=1, MinWords=5, MaxWords=20";
+
+	/**
+	 * What a search is narrowed to; null leaves a field open.
+	 */
+	public static class Filter{
+		public final String flightNum;
+		public final Integer airId;
+		public final Integer minScore;
+		public final Integer maxScore;
+
+		public Filter(String flightNum, Integer airId, Integer minScore, Integer maxScore){
+			this.flightNum = flightNum;
+			this.airId = airId;
+			this.minScore = minScore;
+			this.maxScore = maxScore;
+		}
+	}
+
+	/**
+	 * A review that matched, with its rank and the part of its comment that
+	 * matched, the search words between <b> and </b>.
+	 */
+	public static class Match{
+		public final int rID;
+		public final int pID;
+		public final String flightNum;
+		public final int score;
+		public final String comment;
+		public final String snippet;
+		public final float rank;
+
+		Match(int rID, int pID, String flightNum, int score, String comment, String snippet, float rank){
+			this.rID = rID;
+			this.pID = pID;
+			this.flightNum = flightNum;
+			this.score = score;
+			this.comment = comment;
+			this.snippet = snippet;
+			this.rank = rank;
+		}
+	}
+
+	/**
+	 * One page of matches, and the cursor of the next page or null when
+	 * this is the last one.
+	 */
+	public static class Page{
+		public final List<Match> matches;
+		public final String next;
+
+		Page(List<Match> matches, String next){
+			this.matches = matches;
+			this.next = next;
+		}
+	}
+
+	private final AirBooking esql;
+
+	public ReviewSearch(AirBooking esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Returns a page of up to limit reviews matching text, best first.
+	 *
+	 * @param filter what the matches are narrowed to, or null
+	 * @param after the cursor of the previous page, or null for the first
+	 * @throws java.sql.SQLException when failed to search
+	 */
+	public Page search(String text, Filter filter, int limit, String after) throws SQLException {
+		if(text == null || text.trim().isEmpty()){
+			throw new IllegalArgumentException("Nothing to search for.");
+		}
+		if(limit < 1 || limit > MAX_PAGE){
+			throw new IllegalArgumentException("A page holds 1 to " + MAX_PAGE + " reviews.");
+		}
+		final List<Object> params = new ArrayList<Object>();
+		StringBuilder where = new StringBuilder("r.search @@ q.q");
+		params.add(text);
+		boolean byAirline = filter != null && filter.airId != null;
+		if(filter != null){
+			if(filter.flightNum != null){
+				where.append(" AND r.flightNum = ?");
+				params.add(filter.flightNum);
+			}
+			if(byAirline){
+				where.append(" AND f.airId = ?");
+				params.add(filter.airId);
+			}
+			if(filter.minScore != null){
+				where.append(" AND r.score >= ?");
+				params.add(filter.minScore);
+			}
+			if(filter.maxScore != null){
+				where.append(" AND r.score <= ?");
+				params.add(filter.maxScore);
+			}
+		}
+		String keyset = "";
+		if(after != null){
+			int slash = after.indexOf('/');
+			float rank;
+			int rID;
+			try{
+				rank = Float.parseFloat(after.substring(0, slash));
+				rID = Integer.parseInt(after.substring(slash + 1));
+			}catch(RuntimeException e){
+				throw new IllegalArgumentException("Invalid cursor " + after + ".");
+			}
+			keyset = "WHERE m.rank < CAST(? AS REAL) OR (m.rank = CAST(? AS REAL) AND m.rID > ?) ";
+			params.add(rank);
+			params.add(rank);
+			params.add(rID);
+		}
+		params.add(limit + 1);
+		// the snippets are made after the limit, for the rows of the page only
+		final String sql = QueryMetrics.named("SearchReviews.search",
+			"SELECT m.rID, m.pID, m.flightNum, m.score, m.comment, ts_headline('english', m.comment, m.q, '" + HEADLINE + "'), m.rank " +
+			"FROM (SELECT r.rID, r.pID, r.flightNum, r.score, r.comment, q.q, ts_rank_cd(r.search, q.q) AS rank " +
+			"FROM websearch_to_tsquery('english', ?) AS q(q) CROSS JOIN Ratings r " +
+			(byAirline ? "JOIN Flight f ON f.flightNum = r.flightNum " : "") +
+			"WHERE " + where + ") m " + keyset +
+			"ORDER BY m.rank DESC, m.rID LIMIT ?");
+		List<Match> matches = esql.withReadConnection(new SqlWork<List<Match>>(){
+			public List<Match> run(PooledConnection conn) throws SQLException {
+				List<Match> matches = new ArrayList<Match>();
+				ResultSet rs = conn.prepare(sql, params.toArray()).executeQuery();
+				try{
+					while(rs.next()){
+						matches.add(new Match(rs.getInt(1), rs.getInt(2), rs.getString(3).trim(), rs.getInt(4), rs.getString(5),
+							rs.getString(6), rs.getFloat(7)));
+					}
+				}finally{
+					rs.close();
+				}
+				return matches;
+			}
+		});
+		if(matches.size() <= limit){
+			return new Page(matches, null);
+		}
+		matches.remove(limit);
+		Match last = matches.get(limit - 1);
+		return new Page(matches, last.rank + "/" + last.rID);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 4){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + ReviewSearch.class.getName() +
+					" <dbname> <port> <user> <text> [flightNum] [minScore] [maxScore]");
+			return;
+		}
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			Filter filter = new Filter(args.length > 4 && !args[4].equals("-") ? args[4] : null, null,
+				args.length > 5 ? Integer.valueOf(args[5]) : null, args.length > 6 ? Integer.valueOf(args[6]) : null);
+			Page page = new ReviewSearch(esql).search(args[3], filter, 20, null);
+			for(Match match : page.matches){
+				System.out.println(String.format("%.4f %8d %-8s %d %s", match.rank, match.rID, match.flightNum, match.score, match.snippet));
+			}
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
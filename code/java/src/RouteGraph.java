@@ -0,0 +1,343 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * In-memory graph of the Flight table for itinerary searches: every city is
+ * a node and every flight an edge from its origin to its destination,
+ * weighted by its duration.
+ *
+ * refresh loads the whole table. After that, flights written by this
+ * client are applied with put, and flights written by other clients are
+ * reloaded one at a time from the flight_changed notifications received by
+ * the ReferenceDataCache listener.
+ */
+
+public class RouteGraph{
+	/**
+	 * Decides whether a flight may be used as a leg, for example only when
+	 * it still has open seats.
+	 */
+	public interface LegFilter{
+		boolean accept(Flight leg);
+	}
+
+	/**
+	 * A partial itinerary on the search queue: the last leg taken and the
+	 * path that led to it.
+	 */
+	private static class Path implements Comparable<Path>{
+		final String city;
+		final Flight leg;
+		final Path previous;
+		final int legs;
+		final int duration;
+
+		Path(String city, Flight leg, Path previous){
+			this.city = city;
+			this.leg = leg;
+			this.previous = previous;
+			this.legs = previous == null ? 0 : previous.legs + 1;
+			this.duration = previous == null ? 0 : previous.duration + leg.duration;
+		}
+
+		/**
+		 * Returns the legs from the origin to this city, in order.
+		 */
+		List<Flight> legs(){
+			List<Flight> legs = new ArrayList<Flight>(this.legs);
+			for(Path p = this; p.leg != null; p = p.previous){
+				legs.add(p.leg);
+			}
+			Collections.reverse(legs);
+			return legs;
+		}
+
+		boolean visits(String other){
+			for(Path p = this; p != null; p = p.previous){
+				if(p.city.equals(other)){
+					return true;
+				}
+			}
+			return false;
+		}
+
+		Itinerary toItinerary(){
+			return new Itinerary(legs(), this.duration);
+		}
+
+		public int compareTo(Path other){
+			if(this.duration != other.duration){
+				return this.duration < other.duration ? -1 : 1;
+			}
+			return this.legs - other.legs;
+		}
+	}
+
+	private static final String FLIGHT_QUERY = "SELECT airId, flightNum, origin, destination, plane, seats, duration FROM Flight";
+
+	private final AirBooking esql;
+	//flights leaving each city
+	private final Map<String, List<Flight>> outgoing = new HashMap<String, List<Flight>>();
+	//flights arriving at each city
+	private final Map<String, List<Flight>> incoming = new HashMap<String, List<Flight>>();
+	private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+	public RouteGraph(AirBooking esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Finds the k shortest itineraries by total duration from origin to
+	 * destination with at most maxLegs legs, never visiting a city twice.
+	 *
+	 * This is Yen's algorithm: after the shortest itinerary, every next one
+	 * is the shortest of the candidates made by leaving the one before at
+	 * each of its cities (the spur) over a flight that none of the
+	 * itineraries found with the same legs up to there took, without going
+	 * back through the cities before the spur. Each spur is a shortest path
+	 * search, see shortest.
+	 *
+	 * @param origin the city to leave from
+	 * @param destination the city to arrive at
+	 * @param maxLegs the most flights in one itinerary
+	 * @param k the number of itineraries to return
+	 * @param filter the legs that may be used, or null for every flight
+	 * @return up to k itineraries, shortest first
+	 */
+	public synchronized List<Itinerary> search(String origin, String destination, int maxLegs, int k, LegFilter filter){
+		List<Itinerary> found = new ArrayList<Itinerary>();
+		origin = origin.trim();
+		destination = destination.trim();
+		if(origin.equals(destination) || k < 1 || maxLegs < 1){
+			return found;
+		}
+		//every leg lands with at most maxLegs - 1 legs left to fly
+		Map<String, Integer> toGo = legsToDestination(destination, maxLegs - 1);
+		Set<String> none = Collections.emptySet();
+		Path first = shortest(new Path(origin, null, null), destination, maxLegs, toGo, none, filter);
+		if(first == null){
+			return found;
+		}
+		List<Path> shortest = new ArrayList<Path>();
+		List<List<Flight>> shortestLegs = new ArrayList<List<Flight>>();
+		PriorityQueue<Path> candidates = new PriorityQueue<Path>();
+		Set<List<String>> seen = new HashSet<List<String>>();
+		seen.add(flightNums(first.legs()));
+		Path last = first;
+		while(true){
+			shortest.add(last);
+			List<Flight> legs = last.legs();
+			shortestLegs.add(legs);
+			if(shortest.size() == k){
+				break;
+			}
+			Path root = new Path(origin, null, null);
+			for(int spur = 0; spur < legs.size(); ++spur){
+				//the flights out of the spur that the itineraries with the same legs up to it took
+				Set<String> taken = new HashSet<String>();
+				for(List<Flight> other : shortestLegs){
+					if(other.size() > spur && flightNums(other.subList(0, spur)).equals(flightNums(legs.subList(0, spur)))){
+						taken.add(other.get(spur).flightNum);
+					}
+				}
+				Path candidate = shortest(root, destination, maxLegs, toGo, taken, filter);
+				if(candidate != null && seen.add(flightNums(candidate.legs()))){
+					candidates.add(candidate);
+				}
+				root = new Path(legs.get(spur).destination, legs.get(spur), root);
+			}
+			last = candidates.poll();
+			if(last == null){
+				break;
+			}
+		}
+		for(Path path : shortest){
+			found.add(path.toItinerary());
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the shortest path from root to destination with at most
+	 * maxLegs legs in all, or null when there is none, that does not go
+	 * back through a city of root nor leave root over a flight in taken.
+	 *
+	 * Paths are expanded cheapest first, and the first path to reach a
+	 * city with a given number of legs is the only one expanded, as the
+	 * rest of a shortest path does not depend on how it got there. Ties
+	 * go to the path with fewer legs, so the path found never goes
+	 * through a city twice. Only cities the destination can still be
+	 * reached from with the legs left are expanded.
+	 */
+	private Path shortest(Path root, String destination, int maxLegs, Map<String, Integer> toGo, Set<String> taken, LegFilter filter){
+		Set<String> expanded = new HashSet<String>();
+		PriorityQueue<Path> queue = new PriorityQueue<Path>();
+		queue.add(root);
+		while(!queue.isEmpty()){
+			Path path = queue.poll();
+			if(path.city.equals(destination)){
+				return path;
+			}
+			if(path.legs == maxLegs || !expanded.add(path.city + "|" + path.legs)){
+				continue;
+			}
+			List<Flight> legs = this.outgoing.get(path.city);
+			if(legs == null){
+				continue;
+			}
+			for(Flight leg : legs){
+				//skip cities the destination can not be reached from with the legs left
+				Integer remaining = toGo.get(leg.destination);
+				if(remaining == null || remaining > maxLegs - path.legs - 1){
+					continue;
+				}
+				if(root.visits(leg.destination) || (path == root && taken.contains(leg.flightNum))){
+					continue;
+				}
+				if(filter != null && !filter.accept(leg)){
+					continue;
+				}
+				queue.add(new Path(leg.destination, leg, path));
+			}
+		}
+		return null;
+	}
+
+	private static List<String> flightNums(List<Flight> legs){
+		List<String> nums = new ArrayList<String>(legs.size());
+		for(Flight leg : legs){
+			nums.add(leg.flightNum);
+		}
+		return nums;
+	}
+
+	/**
+	 * Walks the flights backwards from the destination, breadth first, and
+	 * returns the fewest legs from every city that reaches it within
+	 * maxLegs.
+	 */
+	private Map<String, Integer> legsToDestination(String destination, int maxLegs){
+		Map<String, Integer> toGo = new HashMap<String, Integer>();
+		toGo.put(destination, 0);
+		List<String> frontier = Collections.singletonList(destination);
+		for(int legs = 1; legs <= maxLegs && !frontier.isEmpty(); ++legs){
+			List<String> next = new ArrayList<String>();
+			for(String city : frontier){
+				List<Flight> arriving = this.incoming.get(city);
+				if(arriving == null){
+					continue;
+				}
+				for(Flight leg : arriving){
+					if(!toGo.containsKey(leg.origin)){
+						toGo.put(leg.origin, legs);
+						next.add(leg.origin);
+					}
+				}
+			}
+			frontier = next;
+		}
+		return toGo;
+	}
+
+	/**
+	 * Adds a flight or replaces the one with the same number.
+	 */
+	public synchronized void put(Flight flight){
+		remove(flight.flightNum);
+		this.flights.put(flight.flightNum, flight);
+		List<Flight> legs = this.outgoing.get(flight.origin);
+		if(legs == null){
+			legs = new ArrayList<Flight>();
+			this.outgoing.put(flight.origin, legs);
+		}
+		legs.add(flight);
+		legs = this.incoming.get(flight.destination);
+		if(legs == null){
+			legs = new ArrayList<Flight>();
+			this.incoming.put(flight.destination, legs);
+		}
+		legs.add(flight);
+	}
+
+	public synchronized void remove(String flightNum){
+		Flight flight = this.flights.remove(flightNum.trim());
+		if(flight != null){
+			List<Flight> legs = this.outgoing.get(flight.origin);
+			legs.remove(flight);
+			if(legs.isEmpty()){
+				this.outgoing.remove(flight.origin);
+			}
+			legs = this.incoming.get(flight.destination);
+			legs.remove(flight);
+			if(legs.isEmpty()){
+				this.incoming.remove(flight.destination);
+			}
+		}
+	}
+
+	public synchronized int size(){
+		return this.flights.size();
+	}
+
+	/**
+	 * Reloads one flight on the given connection, or drops it when it is
+	 * gone.
+	 *
+	 * @throws java.sql.SQLException when failed to read the flight
+	 */
+	public void reload(PooledConnection conn, String flightNum) throws SQLException {
+		ResultSet rs = conn.prepare(FLIGHT_QUERY + " WHERE flightNum = ?", flightNum).executeQuery();
+		try{
+			if(rs.next()){
+				put(flight(rs));
+			}else{
+				remove(flightNum);
+			}
+		}finally{
+			rs.close();
+		}
+	}
+
+	/**
+	 * Reloads the whole graph from the Flight table.
+	 *
+	 * @throws java.sql.SQLException when failed to read the flights
+	 */
+	public void refresh() throws SQLException {
+		List<Flight> all = esql.withConnection(new SqlWork<List<Flight>>(){
+			public List<Flight> run(PooledConnection conn) throws SQLException {
+				List<Flight> all = new ArrayList<Flight>();
+				ResultSet rs = conn.prepare(FLIGHT_QUERY).executeQuery();
+				try{
+					while(rs.next()){
+						all.add(flight(rs));
+					}
+				}finally{
+					rs.close();
+				}
+				return all;
+			}
+		});
+		synchronized(this){
+			this.outgoing.clear();
+			this.incoming.clear();
+			this.flights.clear();
+			for(Flight flight : all){
+				put(flight);
+			}
+		}
+	}
+
+	private static Flight flight(ResultSet rs) throws SQLException {
+		return new Flight(rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(), rs.getString(4).trim(),
+			rs.getString(5).trim(), rs.getInt(6), rs.getInt(7));
+	}
+}
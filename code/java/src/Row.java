@@ -0,0 +1,86 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * The current row of a streamed query. It is only valid inside the
+ * RowHandler call it is passed to; the same object moves on to the next
+ * row afterwards, so nothing is allocated per row.
+ *
+ * Columns are numbered from 1, as in JDBC.
+ */
+
+public class Row{
+	private final ResultSet rs;
+	private final ResultSetMetaData rsmd;
+	private long number = 0;
+
+	Row(ResultSet rs) throws SQLException {
+		this.rs = rs;
+		this.rsmd = rs.getMetaData();
+	}
+
+	boolean next() throws SQLException {
+		if(!this.rs.next()){
+			return false;
+		}
+		++this.number;
+		return true;
+	}
+
+	/**
+	 * Returns the position of this row in the result, starting at 1.
+	 */
+	public long getNumber(){
+		return this.number;
+	}
+
+	public int getColumnCount() throws SQLException {
+		return this.rsmd.getColumnCount();
+	}
+
+	public String getColumnName(int column) throws SQLException {
+		return this.rsmd.getColumnName(column);
+	}
+
+	/**
+	 * Returns the java.sql.Types type of a column.
+	 */
+	public int getColumnType(int column) throws SQLException {
+		return this.rsmd.getColumnType(column);
+	}
+
+	/**
+	 * Returns the most characters a value of a column takes.
+	 */
+	public int getColumnDisplaySize(int column) throws SQLException {
+		return this.rsmd.getColumnDisplaySize(column);
+	}
+
+	public int getInt(int column) throws SQLException {
+		return this.rs.getInt(column);
+	}
+
+	public long getLong(int column) throws SQLException {
+		return this.rs.getLong(column);
+	}
+
+	public double getDouble(int column) throws SQLException {
+		return this.rs.getDouble(column);
+	}
+
+	public java.sql.Date getDate(int column) throws SQLException {
+		return this.rs.getDate(column);
+	}
+
+	public String getString(int column) throws SQLException {
+		return this.rs.getString(column);
+	}
+
+	/**
+	 * Tells whether the column read last was SQL NULL.
+	 */
+	public boolean wasNull() throws SQLException {
+		return this.rs.wasNull();
+	}
+}
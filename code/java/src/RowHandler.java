@@ -0,0 +1,9 @@
+import java.sql.SQLException;
+
+/**
+ * Callback for AirBooking.streamQuery, called once per row in result order.
+ */
+
+public interface RowHandler{
+	void row(Row row) throws SQLException;
+}
@@ -0,0 +1,37 @@
+/**
+ * Booked and open seats of one flight on one departure date, as read from
+ * the SeatInventory table or its seat map. capacity is the seats times the
+ * overbooking of the flight.
+ */
+
+public class SeatAvailability{
+	public final String flightNum;
+	public final String origin;
+	public final String destination;
+	public final java.sql.Date departure;
+	public final int booked;
+	public final int seats;
+	public final int capacity;
+
+	public SeatAvailability(String flightNum, String origin, String destination, java.sql.Date departure, int booked, int seats,
+			int capacity){
+		this.flightNum = flightNum;
+		this.origin = origin;
+		this.destination = destination;
+		this.departure = departure;
+		this.booked = booked;
+		this.seats = seats;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the number of bookings still for sale, never less than zero.
+	 */
+	public int open(){
+		return Math.max(0, this.capacity - this.booked);
+	}
+
+	public boolean isFull(){
+		return open() == 0;
+	}
+}
@@ -0,0 +1,94 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Seat availability lookups backed by the SeatInventory table. The table
+ * holds one row per flight and departure date and is kept in step with
+ * Booking by the seatInventory trigger (see triggers.sql), so a lookup is a
+ * primary key probe on Flight and SeatInventory instead of counting Booking.
+ * The menu and server read availability from the cached seat maps instead
+ * (see SeatMaps).
+ */
+
+public class SeatInventory{
+
+	private static final String AVAILABILITY_QUERY = QueryMetrics.named("ListAvailableSeats.availability",
+		"SELECT f.flightNum, f.origin, f.destination, f.seats, COALESCE(s.booked, 0), " +
+		"COALESCE(s.capacity, CAST(FLOOR(f.seats * f.overbooking) AS INTEGER)) " +
+		"FROM Flight f LEFT JOIN SeatInventory s ON s.flightNum = f.flightNum AND s.departure = ? " +
+		"WHERE f.flightNum = ?");
+	private static final String FULL_FLIGHTS_QUERY = QueryMetrics.named("ListItineraries.fullFlights",
+		"SELECT flightNum FROM SeatInventory WHERE departure = ? AND booked >= capacity");
+
+	private SeatInventory(){
+	}
+
+	/**
+	 * Looks up the seats of a flight on a departure date.
+	 *
+	 * @param conn the connection to query on
+	 * @param flightNum the flight number
+	 * @param departure the departure date
+	 * @return the seat availability, or null when the flight does not exist
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static SeatAvailability getAvailability(PooledConnection conn, String flightNum, java.sql.Date departure) throws SQLException {
+		ResultSet rs = conn.prepare(AVAILABILITY_QUERY, departure, flightNum).executeQuery();
+		try{
+			if(!rs.next()){
+				return null;
+			}
+			return new SeatAvailability(rs.getString(1).trim(), rs.getString(2).trim(), rs.getString(3).trim(),
+				departure, rs.getInt(5), rs.getInt(4), rs.getInt(6));
+		}finally{
+			rs.close();
+		}
+	}
+
+	/**
+	 * Looks up the seats of a flight on a departure date on a pooled
+	 * connection.
+	 *
+	 * @param esql the database the flight belongs to
+	 * @param flightNum the flight number
+	 * @param departure the departure date
+	 * @return the seat availability, or null when the flight does not exist
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static SeatAvailability getAvailability(AirBooking esql, final String flightNum, final java.sql.Date departure) throws SQLException {
+		return esql.withConnection(new SqlWork<SeatAvailability>(){
+			public SeatAvailability run(PooledConnection conn) throws SQLException {
+				return getAvailability(conn, flightNum, departure);
+			}
+		});
+	}
+
+	/**
+	 * Lists the flights with no open seats left on a departure date, read
+	 * with one scan of the seat_inventory_departure index, on a replica
+	 * when there is one.
+	 *
+	 * @param esql the database to query
+	 * @param departure the departure date
+	 * @return the numbers of the full flights
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public static Set<String> getFullFlights(AirBooking esql, final java.sql.Date departure) throws SQLException {
+		return esql.withReadConnection(new SqlWork<Set<String>>(){
+			public Set<String> run(PooledConnection conn) throws SQLException {
+				Set<String> full = new HashSet<String>();
+				ResultSet rs = conn.prepare(FULL_FLIGHTS_QUERY, departure).executeQuery();
+				try{
+					while(rs.next()){
+						full.add(rs.getString(1).trim());
+					}
+				}finally{
+					rs.close();
+				}
+				return full;
+			}
+		});
+	}
+}
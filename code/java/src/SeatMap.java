@@ -0,0 +1,150 @@
+/**
+ * The seats of one flight on one departure date as a bitset, one bit per
+ * seat of the plane, set while the seat is taken. The bits are stored in
+ * the order of SeatInventory.seatMap: seat n is bit n - 1, counted from the
+ * lowest bit of the first byte.
+ *
+ * booked counts every booking of the flight, also those without a seat:
+ * up to capacity bookings are sold, capacity being the seats times the
+ * overbooking of the flight, and the bookings past the last free seat get
+ * none. Taking a given seat is O(1); the first free seat is found a word of
+ * 64 seats at a time.
+ */
+
+public class SeatMap{
+	public final String flightNum;
+	public final java.sql.Date departure;
+	private final int seats;
+	private final int capacity;
+	private final long[] words;
+	private int booked;
+	//System.nanoTime() when the map was read from SeatInventory
+	final long loadedAt;
+
+	/**
+	 * @param seats the seats of the plane
+	 * @param capacity how many bookings may be sold
+	 * @param booked how many bookings are sold
+	 * @param map the SeatInventory.seatMap of the flight and date, or null
+	 *        when no seat is taken
+	 */
+	public SeatMap(String flightNum, java.sql.Date departure, int seats, int capacity, int booked, byte[] map){
+		this.flightNum = flightNum;
+		this.departure = departure;
+		this.seats = seats;
+		this.capacity = capacity;
+		this.booked = booked;
+		this.words = new long[(seats + 63) / 64];
+		if(map != null){
+			for(int i = 0; i < map.length && i < 8 * this.words.length; ++i){
+				this.words[i / 8] |= (map[i] & 0xffL) << (8 * (i % 8));
+			}
+			// bits past the seats, left over when the plane got smaller
+			if(seats % 64 != 0){
+				this.words[this.words.length - 1] &= (1L << (seats % 64)) - 1;
+			}
+		}
+		this.loadedAt = System.nanoTime();
+	}
+
+	public int seats(){
+		return this.seats;
+	}
+
+	public int capacity(){
+		return this.capacity;
+	}
+
+	public synchronized int booked(){
+		return this.booked;
+	}
+
+	/**
+	 * Returns how many more bookings may be sold, never less than zero.
+	 */
+	public synchronized int open(){
+		return Math.max(0, this.capacity - this.booked);
+	}
+
+	public synchronized boolean isFree(int seat){
+		checkSeat(seat);
+		return (this.words[(seat - 1) >>> 6] & (1L << (seat - 1))) == 0;
+	}
+
+	/**
+	 * Returns the lowest free seat, or 0 when every seat is taken.
+	 */
+	public synchronized int firstFree(){
+		for(int w = 0; w < this.words.length; ++w){
+			long free = ~this.words[w];
+			if(free != 0){
+				int seat = 64 * w + Long.numberOfTrailingZeros(free) + 1;
+				return seat <= this.seats ? seat : 0;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns how many seats of the plane are not taken.
+	 */
+	public synchronized int freeSeats(){
+		int taken = 0;
+		for(long word : this.words){
+			taken += Long.bitCount(word);
+		}
+		return this.seats - taken;
+	}
+
+	/**
+	 * Books the lowest free seat.
+	 *
+	 * @return the seat, 0 when the booking gets no seat as every seat is
+	 *         taken, or -1 when the flight is sold out
+	 */
+	public synchronized int claim(){
+		if(this.booked >= this.capacity){
+			return -1;
+		}
+		int seat = firstFree();
+		if(seat > 0){
+			this.words[(seat - 1) >>> 6] |= 1L << (seat - 1);
+		}
+		++this.booked;
+		return seat;
+	}
+
+	/**
+	 * Books the given seat, or a booking without a seat when seat is 0.
+	 *
+	 * @return false when the seat is taken or the flight is sold out
+	 */
+	public synchronized boolean take(int seat){
+		if(this.booked >= this.capacity || (seat != 0 && !isFree(seat))){
+			return false;
+		}
+		if(seat != 0){
+			this.words[(seat - 1) >>> 6] |= 1L << (seat - 1);
+		}
+		++this.booked;
+		return true;
+	}
+
+	/**
+	 * Gives back a booking taken by claim or take, with its seat when seat
+	 * is not 0.
+	 */
+	public synchronized void release(int seat){
+		if(seat != 0){
+			checkSeat(seat);
+			this.words[(seat - 1) >>> 6] &= ~(1L << (seat - 1));
+		}
+		this.booked = Math.max(0, this.booked - 1);
+	}
+
+	private void checkSeat(int seat){
+		if(seat < 1 || seat > this.seats){
+			throw new IllegalArgumentException("Flight " + this.flightNum + " has no seat " + seat + ".");
+		}
+	}
+}
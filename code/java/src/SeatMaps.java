@@ -0,0 +1,306 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of the seat maps of flights on departure dates, read
+ * from the SeatInventory rows (see schema.sql). Availability checks and
+ * seat allocation come from memory; a flight and date without a
+ * SeatInventory row has no bookings yet and gets an empty map.
+ *
+ * The bookings of this client are taken from the cached maps as they are
+ * made (see BookingEngine), so the maps stay exact as long as no other
+ * client books the same flights. The bookings of other clients are seen
+ * once a map is older than maxAgeMillis and read again. The maps only
+ * decide which seat to ask for: the seatInventory trigger claims the
+ * booking and the seat under the row lock of the SeatInventory row and
+ * rejects a seat that is taken (exclusion_violation) or a flight that is
+ * sold out (check_violation), after which the map is read again.
+ *
+ * The lookups without a connection read from a replica when there is one
+ * (see ReplicaRouter), and the maps they read are cached like any other,
+ * so a booking may pick its seat from a map that is behind the primary.
+ * That is safe for the same reason a stale map is: the seatInventory
+ * trigger decides on the primary, and a seat or flight it rejects has its
+ * map read once more on the connection of the booking before it gives up.
+ *
+ * The overbooking of a flight, the bookings sold per seat of the plane, is
+ * kept in Flight.overbooking and copied to the capacity of its
+ * SeatInventory rows by the flightSeats trigger.
+ *
+ * Usage: SeatMaps <dbname> <port> <user> overbooking <flightNum> <factor>
+ */
+
+public class SeatMaps{
+	private static final String COLUMNS =
+		"f.flightNum, d.departure, COALESCE(s.seats, f.seats), " +
+		"COALESCE(s.capacity, CAST(FLOOR(f.seats * f.overbooking) AS INTEGER)), COALESCE(s.booked, 0), s.seatMap ";
+	private static final String SEAT_MAPS = QueryMetrics.named("SeatMaps.load",
+		"SELECT " + COLUMNS +
+		"FROM unnest(?::bpchar[], ?::date[]) AS d(flightNum, departure) " +
+		"JOIN Flight f ON f.flightNum = d.flightNum " +
+		"LEFT JOIN SeatInventory s ON s.flightNum = d.flightNum AND s.departure = d.departure");
+	//every day of the range for every flight, each probing the SeatInventory primary key
+	private static final String SEAT_MAP_CALENDAR = QueryMetrics.named("SeatMaps.calendar",
+		"SELECT " + COLUMNS +
+		"FROM unnest(?::bpchar[]) AS q(flightNum) JOIN Flight f ON f.flightNum = q.flightNum " +
+		"CROSS JOIN (SELECT CAST(g AS DATE) FROM generate_series(CAST(? AS DATE), CAST(? AS DATE), interval '1 day') g) AS d(departure) " +
+		"LEFT JOIN SeatInventory s ON s.flightNum = f.flightNum AND s.departure = d.departure " +
+		"ORDER BY f.flightNum, d.departure");
+	private static final String SET_OVERBOOKING = "UPDATE Flight SET overbooking = ? WHERE flightNum = ?";
+
+	private final AirBooking esql;
+	private final LruCache<String, SeatMap> maps;
+	private final long maxAgeNanos;
+
+	/**
+	 * @param esql the database of the flights
+	 * @param maxMaps how many flights and dates are kept in memory
+	 * @param maxAgeMillis how long a map is used before it is read again
+	 */
+	public SeatMaps(AirBooking esql, int maxMaps, long maxAgeMillis){
+		this.esql = esql;
+		this.maps = new LruCache<String, SeatMap>(maxMaps);
+		this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+	}
+
+	/**
+	 * Returns the seat map of a flight on a departure date, or null when
+	 * the flight does not exist.
+	 *
+	 * @throws java.sql.SQLException when failed to read the map
+	 */
+	public SeatMap get(final String flightNum, final java.sql.Date departure) throws SQLException {
+		SeatMap map = cached(slot(flightNum, departure));
+		if(map != null){
+			return map;
+		}
+		return esql.withReadConnection(new SqlWork<SeatMap>(){
+			public SeatMap run(PooledConnection conn) throws SQLException {
+				return get(conn, flightNum, departure);
+			}
+		});
+	}
+
+	/**
+	 * Returns the seat map of a flight on a departure date, read on the
+	 * given connection when it is not cached, or null when the flight does
+	 * not exist.
+	 *
+	 * @throws java.sql.SQLException when failed to read the map
+	 */
+	public SeatMap get(PooledConnection conn, String flightNum, java.sql.Date departure) throws SQLException {
+		List<String> flights = new ArrayList<String>(1);
+		List<java.sql.Date> days = new ArrayList<java.sql.Date>(1);
+		flights.add(flightNum);
+		days.add(departure);
+		return getAll(conn, flights, days, false).get(slot(flightNum, departure));
+	}
+
+	/**
+	 * Returns the seat maps of the given flights on the given departure
+	 * dates, pairwise, keyed by slot. Unknown flights are left out. The
+	 * maps missing from the cache, or all of them when fresh is set, are
+	 * read with one query.
+	 *
+	 * @throws java.sql.SQLException when failed to read the maps
+	 */
+	public Map<String, SeatMap> getAll(PooledConnection conn, List<String> flightNums, List<java.sql.Date> departures,
+			boolean fresh) throws SQLException {
+		Map<String, SeatMap> found = new HashMap<String, SeatMap>();
+		Map<String, Integer> missing = new LinkedHashMap<String, Integer>();
+		for(int i = 0; i < flightNums.size(); ++i){
+			String slot = slot(flightNums.get(i), departures.get(i));
+			SeatMap map = fresh ? null : cached(slot);
+			if(map != null){
+				found.put(slot, map);
+			}else if(!missing.containsKey(slot)){
+				missing.put(slot, i);
+			}
+		}
+		if(missing.isEmpty()){
+			return found;
+		}
+		List<String> flights = new ArrayList<String>(missing.size());
+		List<String> days = new ArrayList<String>(missing.size());
+		for(int i : missing.values()){
+			flights.add(flightNums.get(i).trim());
+			days.add(departures.get(i).toString());
+		}
+		Connection c = conn.getConnection();
+		ResultSet rs = conn.prepare(SEAT_MAPS, c.createArrayOf("varchar", flights.toArray()),
+			c.createArrayOf("varchar", days.toArray())).executeQuery();
+		try{
+			while(rs.next()){
+				SeatMap map = read(rs);
+				String slot = slot(map.flightNum, map.departure);
+				this.maps.put(slot, map);
+				found.put(slot, map);
+			}
+		}finally{
+			rs.close();
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the seat maps of a flight on every day from from through to,
+	 * in order of departure, or an empty list when the flight does not
+	 * exist. See getCalendar.
+	 *
+	 * @throws java.sql.SQLException when failed to read the maps
+	 */
+	public List<SeatMap> getRange(String flightNum, java.sql.Date from, java.sql.Date to) throws SQLException {
+		List<SeatMap> range = getCalendar(Collections.singletonList(flightNum), from, to).get(flightNum.trim());
+		return range == null ? new ArrayList<SeatMap>() : range;
+	}
+
+	/**
+	 * Returns the seat maps of the given flights on every day from from
+	 * through to, keyed by trimmed flight number in the order of the
+	 * flights, each in order of departure. Unknown flights are left out.
+	 * The flights with a day that is not cached are read together, every
+	 * day of the range, with one query.
+	 *
+	 * @throws java.sql.SQLException when failed to read the maps
+	 */
+	public Map<String, List<SeatMap>> getCalendar(Collection<String> flightNums, final java.sql.Date from, final java.sql.Date to)
+			throws SQLException {
+		final Map<String, List<SeatMap>> calendar = new LinkedHashMap<String, List<SeatMap>>();
+		final List<String> missing = new ArrayList<String>();
+		for(String flightNum : flightNums){
+			String key = flightNum.trim();
+			if(calendar.containsKey(key) || missing.contains(key)){
+				continue;
+			}
+			List<SeatMap> days = new ArrayList<SeatMap>();
+			for(java.sql.Date day = from; days != null && !day.after(to); day = nextDay(day)){
+				SeatMap map = cached(slot(key, day));
+				if(map == null){
+					days = null;
+				}else{
+					days.add(map);
+				}
+			}
+			if(days == null){
+				missing.add(key);
+			}
+			// keeps the order of the flights, filled in below for the missing ones
+			calendar.put(key, days);
+		}
+		if(!missing.isEmpty()){
+			esql.withReadConnection(new SqlWork<Void>(){
+				public Void run(PooledConnection conn) throws SQLException {
+					readCalendar(conn, missing, from, to, calendar);
+					return null;
+				}
+			});
+		}
+		// flights that do not exist were read without rows
+		calendar.values().removeAll(Collections.singleton(null));
+		return calendar;
+	}
+
+	private void readCalendar(PooledConnection conn, List<String> flightNums, java.sql.Date from, java.sql.Date to,
+			Map<String, List<SeatMap>> calendar) throws SQLException {
+		ResultSet rs = conn.prepare(SEAT_MAP_CALENDAR, conn.getConnection().createArrayOf("varchar", flightNums.toArray()),
+			from, to).executeQuery();
+		try{
+			while(rs.next()){
+				SeatMap map = read(rs);
+				this.maps.put(slot(map.flightNum, map.departure), map);
+				List<SeatMap> days = calendar.get(map.flightNum);
+				if(days == null){
+					days = new ArrayList<SeatMap>();
+					calendar.put(map.flightNum, days);
+				}
+				days.add(map);
+			}
+		}finally{
+			rs.close();
+		}
+	}
+
+	/**
+	 * Sets the bookings sold per seat of a flight, at least 1. The open
+	 * SeatInventory rows of the flight follow through the flightSeats
+	 * trigger.
+	 *
+	 * @return false when the flight does not exist
+	 * @throws java.sql.SQLException when failed to update the flight
+	 */
+	public boolean setOverbooking(String flightNum, BigDecimal factor) throws SQLException {
+		if(factor.compareTo(BigDecimal.ONE) < 0){
+			throw new IllegalArgumentException("Overbooking can not be less than 1.");
+		}
+		int rows = esql.executeUpdate(SET_OVERBOOKING, factor, flightNum);
+		invalidateFlight(flightNum);
+		return rows > 0;
+	}
+
+	public void invalidate(String flightNum, java.sql.Date departure){
+		this.maps.invalidate(slot(flightNum, departure));
+	}
+
+	/**
+	 * Drops the maps of a flight whose seats or overbooking changed. The
+	 * maps are not indexed by flight, and flights rarely change, so every
+	 * map is dropped.
+	 */
+	public void invalidateFlight(String flightNum){
+		this.maps.clear();
+	}
+
+	public LruCache<String, SeatMap> getCache(){
+		return this.maps;
+	}
+
+	private SeatMap cached(String slot){
+		SeatMap map = this.maps.get(slot);
+		if(map != null && System.nanoTime() - map.loadedAt > this.maxAgeNanos){
+			this.maps.invalidate(slot);
+			return null;
+		}
+		return map;
+	}
+
+	private static SeatMap read(ResultSet rs) throws SQLException {
+		return new SeatMap(rs.getString(1).trim(), rs.getDate(2), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getBytes(6));
+	}
+
+	static String slot(String flightNum, java.sql.Date departure){
+		return flightNum.trim() + "|" + departure;
+	}
+
+	private static java.sql.Date nextDay(java.sql.Date day){
+		return java.sql.Date.valueOf(day.toLocalDate().plusDays(1));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 6 || !args[3].equals("overbooking")){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + SeatMaps.class.getName() +
+					" <dbname> <port> <user> overbooking <flightNum> <factor>");
+			return;
+		}
+		AirBooking esql = new AirBooking(args[0], args[1], args[2], "");
+		try{
+			if(esql.getSeatMaps().setOverbooking(args[4], new BigDecimal(args[5]))){
+				System.out.println("Flight " + args[4] + " sells " + args[5] + " bookings per seat");
+			}else{
+				System.out.println("That is not a valid flight.");
+			}
+		}finally{
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Ids reserved from a database sequence in blocks, so that inserts can
+ * pass the id themselves. A block is one query,
+ * SELECT nextval(seq) FROM generate_series(1, n), timed under the operation
+ * given, and the ids are then handed out from memory. Rows inserted with an id skip the
+ * getPassengerID and getReviewID triggers (see triggers.sql), which only
+ * fire for rows inserted without one, so batches and COPY do not pay a
+ * plpgsql call per row.
+ *
+ * The ids come from the same sequence the triggers use, so rows inserted
+ * either way never clash. Ids left in a block when the client exits are
+ * never used, as with any sequence.
+ */
+
+public class SequenceBlocks{
+	private final String reserveQuery;
+	private final int blockSize;
+	private int[] ids = new int[0];
+	private int next = 0;
+
+	/**
+	 * @param sequence the name of the sequence
+	 * @param operation the operation the reservations are timed under
+	 * @param blockSize how many ids one query reserves
+	 */
+	public SequenceBlocks(String sequence, String operation, int blockSize){
+		this.reserveQuery = QueryMetrics.named(operation, "SELECT nextval('" + sequence + "') FROM generate_series(1, ?)");
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Returns an id no other call or client has been given.
+	 *
+	 * @param conn the connection of the caller, used when a new block has
+	 *        to be reserved
+	 * @throws java.sql.SQLException when failed to reserve a new block
+	 */
+	public synchronized int next(PooledConnection conn) throws SQLException {
+		if(this.next == this.ids.length){
+			reserve(conn, this.blockSize);
+		}
+		return this.ids[this.next++];
+	}
+
+	/**
+	 * Returns n ids at once, for a batch of inserts. A request larger than
+	 * the block size is reserved with one query of its own.
+	 *
+	 * @throws java.sql.SQLException when failed to reserve a new block
+	 */
+	public synchronized int[] next(PooledConnection conn, int n) throws SQLException {
+		int[] out = new int[n];
+		int filled = 0;
+		while(filled < n){
+			if(this.next == this.ids.length){
+				reserve(conn, Math.max(this.blockSize, n - filled));
+			}
+			int take = Math.min(n - filled, this.ids.length - this.next);
+			System.arraycopy(this.ids, this.next, out, filled, take);
+			this.next += take;
+			filled += take;
+		}
+		return out;
+	}
+
+	private void reserve(PooledConnection conn, int count) throws SQLException {
+		int[] block = new int[count];
+		int n = 0;
+		// nextval is never rolled back, so this is safe inside the caller's transaction
+		ResultSet rs = conn.prepare(this.reserveQuery, count).executeQuery();
+		try{
+			while(rs.next()){
+				block[n++] = rs.getInt(1);
+			}
+		}finally{
+			rs.close();
+		}
+		this.ids = block;
+		this.next = 0;
+	}
+}
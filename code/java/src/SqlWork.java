@@ -0,0 +1,10 @@
+import java.sql.SQLException;
+
+/**
+ * A unit of database work run on one pooled connection, see
+ * AirBooking.withConnection and AirBooking.inTransaction.
+ */
+
+public interface SqlWork<T>{
+	T run(PooledConnection conn) throws SQLException;
+}
@@ -0,0 +1,16 @@
+#! /bin/bash
+
+#PATH TO DATABASE FOLDER
+export PGFOLDER=/tmp/$LOGNAME
+#PATH TO THE DATA FOLDER OF THE REPLICA
+export PGDATA=$PGFOLDER/myReplica/data
+#LISTENING PORTS OF THE RUNNING PRIMARY AND OF THE REPLICA
+export PRIMARYPORT=$1
+export PGPORT=$2
+
+rm -rf $PGFOLDER/myReplica
+mkdir -p $PGFOLDER/myReplica/sockets
+
+#copy of the primary that streams from it (-R writes standby.signal and primary_conninfo)
+pg_basebackup -h 127.0.0.1 -p $PRIMARYPORT -D $PGDATA -X stream -R
+pg_ctl -o "-c unix_socket_directories=$PGFOLDER/myReplica/sockets -p $PGPORT" -D $PGDATA -l $PGFOLDER/replica.log start
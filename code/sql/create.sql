@@ -1,74 +1,6 @@
--- DROP STATEMENTS
-DROP TABLE IF EXISTS Airline CASCADE;
-DROP TABLE IF EXISTS Passenger CASCADE;
-DROP TABLE IF EXISTS Flight CASCADE;
-DROP TABLE IF EXISTS Ratings CASCADE;
-DROP TABLE IF EXISTS Booking CASCADE;
-
-DROP DOMAIN IF EXISTS _YEAR CASCADE;
-DROP DOMAIN IF EXISTS _HOURS CASCADE;
-DROP DOMAIN IF EXISTS _SEATS CASCADE;
-DROP DOMAIN IF EXISTS _SCORE CASCADE;
-
--- CREATE DOMAINS
-CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1900);--YEAR ONLY GREATER THAN 1900
-CREATE DOMAIN _HOURS AS int4 CHECK(VALUE > 0 AND VALUE < 24);--At most 24 hours duration
-CREATE DOMAIN _SEATS AS int4 CHECK(VALUE > 0 AND VALUE < 500);--Plane Seats
-CREATE DOMAIN _SCORE AS int4 CHECK(VALUE >= 0 AND VALUE <= 5);--Zero to five stars rating
-
--- CREATE TABLES
-CREATE TABLE Airline(
-	airId INTEGER NOT NULL,
-	name CHAR(24) NOT NULL,
-	founded _YEAR NOT NULL,
-	country CHAR(24) NOT NULL,
-	hub CHAR(24) NOT NULL,
-	PRIMARY KEY(airId)
-);
-
-CREATE TABLE Passenger(
-	pID INTEGER NOT NULL,
-	passNum CHAR(10) NOT NULL,
-	fullName CHAR(24) NOT NULL,
-	bdate DATE NOT NULL,
-	country CHAR(24) NOT NULL,
-	PRIMARY KEY(pID),
-	UNIQUE(passNum)
-);
-
-CREATE TABLE Flight(
-	airId INTEGER NOT NULL,
-	flightNum CHAR(8) NOT NULL,
-	origin CHAR(16) NOT NULL,
-	destination CHAR(16) NOT NULL,
-	plane CHAR(16) NOT NULL,
-	seats _SEATS NOT NULL,
-	duration _HOURS NOT NULL,
-	PRIMARY KEY(flightNum),
-	FOREIGN KEY (airId) REFERENCES Airline(airId)
-);
-
-CREATE TABLE Ratings(
-	rID INTEGER NOT NULL,
-	pID INTEGER NOT NULL,
-	flightNum CHAR(8) NOT NULL,
-	score _SCORE NOT NULL,
-	comment TEXT,
-	PRIMARY KEY (rID),
-	FOREIGN KEY (pID) REFERENCES Passenger(pID),
-	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum)
-);
-
-CREATE TABLE Booking(
-	bookRef CHAR(10) NOT NULL,
-	departure DATE NOT NULL,
-	flightNum CHAR(8) NOT NULL,
-	pID INTEGER NOT NULL,
-	PRIMARY KEY(bookRef),
-	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum),
-	FOREIGN KEY (pID) REFERENCES Passenger(pID),
-	UNIQUE(departure,flightNum,pID)
-);
+-- DROP STATEMENTS, DOMAINS AND TABLES
+\ir schema.sql
+--the keys of the tables are added by triggers.sql, which createtb.sh runs once the rows below are in
 
 --CREATE USER WITH PASSWORD TO CONNECT TO DATABASE--CHANGE username accordingly
 DROP USER IF EXISTS username;
@@ -79,6 +11,8 @@ GRANT ALL PRIVILEGES ON TABLE Passenger TO username;
 GRANT ALL PRIVILEGES ON TABLE Flight TO username;
 GRANT ALL PRIVILEGES ON TABLE Ratings TO username;
 GRANT ALL PRIVILEGES ON TABLE Booking TO username;
+GRANT ALL PRIVILEGES ON TABLE SeatInventory TO username;
+GRANT ALL PRIVILEGES ON TABLE RouteRating TO username;
 ------------------------------------------------------------------------------------
 
 COPY Airline (
@@ -0,0 +1,97 @@
+-- DROP STATEMENTS
+DROP TABLE IF EXISTS Airline CASCADE;
+DROP TABLE IF EXISTS Passenger CASCADE;
+DROP TABLE IF EXISTS Flight CASCADE;
+DROP TABLE IF EXISTS Ratings CASCADE;
+DROP TABLE IF EXISTS Booking CASCADE;
+DROP TABLE IF EXISTS SeatInventory CASCADE;
+DROP TABLE IF EXISTS RouteRating CASCADE;
+
+DROP DOMAIN IF EXISTS _YEAR CASCADE;
+DROP DOMAIN IF EXISTS _HOURS CASCADE;
+DROP DOMAIN IF EXISTS _SEATS CASCADE;
+DROP DOMAIN IF EXISTS _SCORE CASCADE;
+
+DROP SEQUENCE IF EXISTS passengerID_seq;
+DROP SEQUENCE IF EXISTS reviewID_seq;
+DROP SEQUENCE IF EXISTS bookRef_block_seq;
+
+-- CREATE DOMAINS
+CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1900);--YEAR ONLY GREATER THAN 1900
+CREATE DOMAIN _HOURS AS int4 CHECK(VALUE > 0 AND VALUE < 24);--At most 24 hours duration
+CREATE DOMAIN _SEATS AS int4 CHECK(VALUE > 0 AND VALUE < 500);--Plane Seats
+CREATE DOMAIN _SCORE AS int4 CHECK(VALUE >= 0 AND VALUE <= 5);--Zero to five stars rating
+
+-- CREATE TABLES
+--The primary keys, unique and foreign keys of the loaded tables are added by triggers.sql once the rows are in, so
+--COPY neither maintains their indexes nor checks every row against the referenced tables
+CREATE TABLE Airline(
+	airId INTEGER NOT NULL,
+	name CHAR(24) NOT NULL,
+	founded _YEAR NOT NULL,
+	country CHAR(24) NOT NULL,
+	hub CHAR(24) NOT NULL
+);
+
+CREATE TABLE Passenger(
+	pID INTEGER NOT NULL,
+	passNum CHAR(10) NOT NULL,
+	fullName CHAR(24) NOT NULL,
+	bdate DATE NOT NULL,
+	country CHAR(24) NOT NULL
+);
+
+CREATE TABLE Flight(
+	airId INTEGER NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	origin CHAR(16) NOT NULL,
+	destination CHAR(16) NOT NULL,
+	plane CHAR(16) NOT NULL,
+	seats _SEATS NOT NULL,
+	duration _HOURS NOT NULL,
+	overbooking NUMERIC(4,3) NOT NULL DEFAULT 1 CHECK(overbooking >= 1)--bookings sold per seat, see SeatMaps.java
+);
+
+CREATE TABLE Ratings(
+	rID INTEGER NOT NULL,
+	pID INTEGER NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	score _SCORE NOT NULL,
+	comment TEXT,
+	search TSVECTOR GENERATED ALWAYS AS (to_tsvector('english', COALESCE(comment, ''))) STORED--see ReviewSearch.java
+);
+
+--Range partitioned by month of departure, one partition booking_YYYY_MM per month (see bookingPartitions in triggers.sql).
+CREATE TABLE Booking(
+	bookRef CHAR(10) NOT NULL,
+	departure DATE NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	pID INTEGER NOT NULL,
+	seat SMALLINT--from 1, null when booked past the seats of the plane (overbooked) or loaded without one
+) PARTITION BY RANGE (departure);
+
+--Takes the loaded rows until triggers.sql has created the monthly partitions, which then replace it
+CREATE TABLE Booking_default PARTITION OF Booking DEFAULT;
+
+--Booked seats per flight and departure date, kept up to date by the seatInventory trigger. capacity is seats times the
+--overbooking of the flight; bit n of seatMap (get_bit numbering) is set while seat n + 1 is taken. changed is the
+--transaction that last changed booked, for the incremental refresh of LoadFactors.java
+CREATE TABLE SeatInventory(
+	flightNum CHAR(8) NOT NULL,
+	departure DATE NOT NULL,
+	seats INTEGER NOT NULL,
+	capacity INTEGER NOT NULL,
+	booked INTEGER NOT NULL,
+	seatMap BYTEA NOT NULL,
+	changed BIGINT NOT NULL DEFAULT txid_current(),
+	PRIMARY KEY(flightNum, departure)
+);
+
+--Sum, count and exact average of the scores of every rated flight, kept up to date by the routeRating trigger
+CREATE TABLE RouteRating(
+	flightNum CHAR(8) NOT NULL,
+	scoreSum BIGINT NOT NULL,
+	scoreCount INTEGER NOT NULL,
+	avgScore NUMERIC NOT NULL,
+	PRIMARY KEY(flightNum)
+);
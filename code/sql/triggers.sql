@@ -1,7 +1,34 @@
-CREATE SEQUENCE passengerID_seq START WITH 1;
+CREATE SEQUENCE IF NOT EXISTS passengerID_seq START WITH 1;
 SELECT setval('passengerID_seq', COALESCE((SELECT pid+1 FROM passenger WHERE pid >= ALL (Select pid from passenger)), 1), false);
-CREATE SEQUENCE reviewID_seq START WITH 1;
+CREATE SEQUENCE IF NOT EXISTS reviewID_seq START WITH 1;
 SELECT setval('reviewID_seq', COALESCE((Select rid+1 from ratings where rid >= ALL (Select rid from ratings)), 1), false);
+--blocks of booking references leased by clients, see BookingReferences.java
+CREATE SEQUENCE IF NOT EXISTS bookRef_block_seq START WITH 1;
+
+--the keys left out of schema.sql, each index built in one pass over the loaded rows and each foreign key checked with
+--one join instead of row by row; Booking gets its keys once its rows are in their monthly partitions, below. Each is
+--dropped first so that the keys can be added again; the foreign keys on a dropped primary key go with it and come back below
+ALTER TABLE Airline DROP CONSTRAINT IF EXISTS airline_pkey CASCADE;
+ALTER TABLE Airline ADD CONSTRAINT airline_pkey PRIMARY KEY (airId);
+ALTER TABLE Passenger DROP CONSTRAINT IF EXISTS passenger_pkey CASCADE;
+ALTER TABLE Passenger ADD CONSTRAINT passenger_pkey PRIMARY KEY (pID);
+--covering, passNum to pID lookups are index-only scans
+ALTER TABLE Passenger DROP CONSTRAINT IF EXISTS passenger_passnum_key;
+ALTER TABLE Passenger ADD CONSTRAINT passenger_passnum_key UNIQUE (passNum) INCLUDE (pID);
+ALTER TABLE Flight DROP CONSTRAINT IF EXISTS flight_pkey CASCADE;
+ALTER TABLE Flight ADD CONSTRAINT flight_pkey PRIMARY KEY (flightNum);
+ALTER TABLE Flight DROP CONSTRAINT IF EXISTS flight_airid_fkey;
+ALTER TABLE Flight ADD CONSTRAINT flight_airid_fkey FOREIGN KEY (airId) REFERENCES Airline(airId);
+ALTER TABLE Ratings DROP CONSTRAINT IF EXISTS ratings_pkey;
+ALTER TABLE Ratings ADD CONSTRAINT ratings_pkey PRIMARY KEY (rID);
+ALTER TABLE Ratings DROP CONSTRAINT IF EXISTS ratings_pid_fkey;
+ALTER TABLE Ratings ADD CONSTRAINT ratings_pid_fkey FOREIGN KEY (pID) REFERENCES Passenger(pID);
+ALTER TABLE Ratings DROP CONSTRAINT IF EXISTS ratings_flightnum_fkey;
+ALTER TABLE Ratings ADD CONSTRAINT ratings_flightnum_fkey FOREIGN KEY (flightNum) REFERENCES Flight(flightNum);
+ALTER TABLE SeatInventory DROP CONSTRAINT IF EXISTS seatinventory_flightnum_fkey;
+ALTER TABLE SeatInventory ADD CONSTRAINT seatinventory_flightnum_fkey FOREIGN KEY (flightNum) REFERENCES Flight(flightNum);
+ALTER TABLE RouteRating DROP CONSTRAINT IF EXISTS routerating_flightnum_fkey;
+ALTER TABLE RouteRating ADD CONSTRAINT routerating_flightnum_fkey FOREIGN KEY (flightNum) REFERENCES Flight(flightNum);
 
 CREATE OR REPLACE FUNCTION passengerID ( )
 Returns "trigger" AS '
@@ -11,7 +38,8 @@ Returns "trigger" AS '
   END;
 ' LANGUAGE 'plpgsql' VOLATILE;
 DROP TRIGGER IF EXISTS getPassengerID ON passenger;
-CREATE TRIGGER getPassengerID BEFORE INSERT ON passenger FOR EACH ROW Execute PROCEDURE passengerID ( );
+--only for rows inserted without a pid; clients reserve ids in blocks (see SequenceBlocks.java) and skip the trigger
+CREATE TRIGGER getPassengerID BEFORE INSERT ON passenger FOR EACH ROW WHEN (NEW.pid IS NULL) Execute PROCEDURE passengerID ( );
 
 CREATE OR REPLACE FUNCTION reviewID ( )
 Returns "trigger" AS '
@@ -21,7 +49,225 @@ Returns "trigger" AS '
   END;
 ' LANGUAGE 'plpgsql' VOLATILE;
 DROP TRIGGER IF EXISTS getReviewID ON ratings;
-CREATE TRIGGER getReviewID BEFORE INSERT ON ratings FOR EACH ROW Execute PROCEDURE reviewID ( );
+CREATE TRIGGER getReviewID BEFORE INSERT ON ratings FOR EACH ROW WHEN (NEW.rid IS NULL) Execute PROCEDURE reviewID ( );
+
+--creates the missing monthly partitions of Booking from the month of fromDay through the month of toDay. Clients
+--create the coming months ahead of time and a month on demand when a booking needs it (see BookingPartitions.java);
+--clients creating the same month at once take turns on an advisory lock, keyed by the oid of Booking, so the second
+--finds the partition of the first instead of failing on it; SECURITY DEFINER, as only the owner of Booking may add
+--partitions to it
+CREATE OR REPLACE FUNCTION bookingPartitions ( fromDay DATE, toDay DATE )
+Returns INTEGER AS '
+  DECLARE
+    m DATE := date_trunc(''month'', fromDay);
+    created INTEGER := 0;
+  BEGIN
+    WHILE m <= toDay LOOP
+      IF to_regclass(''booking_'' || to_char(m, ''YYYY_MM'')) IS NULL THEN
+        PERFORM pg_advisory_xact_lock(CAST(CAST(CAST(''booking'' AS regclass) AS oid) AS BIGINT));
+        IF to_regclass(''booking_'' || to_char(m, ''YYYY_MM'')) IS NULL THEN
+          EXECUTE format(''CREATE TABLE IF NOT EXISTS %I PARTITION OF Booking FOR VALUES FROM (%L) TO (%L)'',
+            ''booking_'' || to_char(m, ''YYYY_MM''), m, CAST(m + interval ''1 month'' AS DATE));
+          created := created + 1;
+        END IF;
+      END IF;
+      m := m + interval ''1 month'';
+    END LOOP;
+    RETURN created;
+  END;
+' LANGUAGE 'plpgsql' VOLATILE SECURITY DEFINER SET search_path = public;
+
+--drops the partition of the month of d once a client has exported it (see BookingPartitions.java), together with the
+--SeatInventory rows of the month. Fails, and the export is rolled back, when the partition holds rows the export missed
+CREATE OR REPLACE FUNCTION archiveBookingPartition ( d DATE, exported BIGINT )
+Returns VOID AS '
+  DECLARE
+    m DATE := date_trunc(''month'', d);
+    part TEXT := ''booking_'' || to_char(d, ''YYYY_MM'');
+    kept BIGINT;
+  BEGIN
+    EXECUTE format(''ALTER TABLE Booking DETACH PARTITION %I'', part);
+    EXECUTE format(''SELECT COUNT(*) FROM %I'', part) INTO kept;
+    IF kept <> exported THEN
+      RAISE EXCEPTION ''% holds % bookings, % were exported'', part, kept, exported;
+    END IF;
+    DELETE FROM SeatInventory WHERE departure >= m AND departure < m + interval ''1 month'';
+    EXECUTE format(''DROP TABLE %I'', part);
+  END;
+' LANGUAGE 'plpgsql' VOLATILE SECURITY DEFINER SET search_path = public;
+
+--clusters the partition of the month of d on flight_num_booking, without touching the other months
+CREATE OR REPLACE FUNCTION clusterBooking ( d DATE )
+Returns VOID AS '
+  DECLARE
+    part TEXT := ''booking_'' || to_char(d, ''YYYY_MM'');
+    idx NAME;
+  BEGIN
+    SELECT c.relname INTO idx FROM pg_index i, pg_inherits h, pg_class c
+    WHERE i.indrelid = to_regclass(part) AND h.inhrelid = i.indexrelid AND h.inhparent = to_regclass(''flight_num_booking'')
+      AND c.oid = i.indexrelid;
+    IF idx IS NOT NULL THEN
+      EXECUTE format(''CLUSTER %I USING %I'', part, idx);
+    END IF;
+  END;
+' LANGUAGE 'plpgsql' VOLATILE SECURITY DEFINER SET search_path = public;
+
+--partitions for the months of the loaded bookings and the next 12 months; the rows move out of Booking_default, which goes
+ALTER TABLE Booking DETACH PARTITION Booking_default;
+SELECT bookingPartitions(LEAST(MIN(departure), current_date), CAST(GREATEST(MAX(departure), current_date + interval '12 months') AS DATE)) FROM Booking_default;
+--loaded bookings get the seats from 1 up in order of bookRef; those past the seats of the plane get none
+INSERT INTO Booking (bookRef, departure, flightNum, pID, seat)
+SELECT b.bookRef, b.departure, b.flightNum, b.pID, CASE WHEN b.n <= f.seats THEN b.n END
+FROM (SELECT d.bookRef, d.departure, d.flightNum, d.pID, row_number() OVER (PARTITION BY d.flightNum, d.departure ORDER BY d.bookRef) AS n
+  FROM Booking_default d) b, Flight f
+WHERE f.flightNum = b.flightNum;
+DROP TABLE Booking_default;
+
+--the primary key has to include the partition key; new references are unique on their own (see BookingReferences.java).
+--Every partition gets its own booking_YYYY_MM_pkey, and its own booking_pid_fkey (see BookingEngine.java)
+ALTER TABLE Booking DROP CONSTRAINT IF EXISTS booking_pkey;
+ALTER TABLE Booking ADD CONSTRAINT booking_pkey PRIMARY KEY (bookRef, departure);
+ALTER TABLE Booking DROP CONSTRAINT IF EXISTS booking_departure_flightnum_pid_key;
+ALTER TABLE Booking ADD CONSTRAINT booking_departure_flightnum_pid_key UNIQUE (departure, flightNum, pID);
+ALTER TABLE Booking DROP CONSTRAINT IF EXISTS booking_flightnum_fkey;
+ALTER TABLE Booking ADD CONSTRAINT booking_flightnum_fkey FOREIGN KEY (flightNum) REFERENCES Flight(flightNum);
+ALTER TABLE Booking DROP CONSTRAINT IF EXISTS booking_pid_fkey;
+ALTER TABLE Booking ADD CONSTRAINT booking_pid_fkey FOREIGN KEY (pID) REFERENCES Passenger(pID);
+
+--the seat map of seats seats, cut or padded with free seats
+CREATE OR REPLACE FUNCTION resizeSeatMap ( m BYTEA, seats INTEGER )
+Returns BYTEA AS '
+  SELECT CASE WHEN length(m) >= (seats + 7) / 8 THEN substring(m from 1 for (seats + 7) / 8)
+    ELSE m || decode(repeat(''00'', (seats + 7) / 8 - length(m)), ''hex'') END;
+' LANGUAGE 'sql' IMMUTABLE;
+
+--the seat map of seats seats with seats 1 to taken taken
+CREATE OR REPLACE FUNCTION seatMapOf ( taken INTEGER, seats INTEGER )
+Returns BYTEA AS '
+  SELECT resizeSeatMap(decode(repeat(''ff'', taken / 8) ||
+    CASE WHEN taken % 8 > 0 THEN lpad(to_hex((1 << (taken % 8)) - 1), 2, ''0'') ELSE '''' END, ''hex''), seats);
+' LANGUAGE 'sql' IMMUTABLE;
+
+INSERT INTO SeatInventory (flightNum, departure, seats, capacity, booked, seatMap)
+SELECT b.flightNum, b.departure, f.seats, FLOOR(f.seats * f.overbooking), COUNT(*), seatMapOf(CAST(COUNT(b.seat) AS INTEGER), f.seats)
+FROM Booking b, Flight f
+WHERE f.flightNum = b.flightNum GROUP BY b.flightNum, b.departure, f.seats, f.overbooking;
+
+CREATE OR REPLACE FUNCTION seatInventory ( )
+Returns "trigger" AS '
+  BEGIN
+    IF TG_OP = ''DELETE'' OR TG_OP = ''UPDATE'' THEN
+      UPDATE SeatInventory SET booked = booked - 1, changed = txid_current(),
+        seatMap = CASE WHEN OLD.seat IS NULL OR OLD.seat > 8 * length(seatMap) THEN seatMap ELSE set_bit(seatMap, OLD.seat - 1, 0) END
+      WHERE flightNum = OLD.flightNum AND departure = OLD.departure;
+    END IF;
+    IF TG_OP = ''INSERT'' OR TG_OP = ''UPDATE'' THEN
+      INSERT INTO SeatInventory (flightNum, departure, seats, capacity, booked, seatMap)
+      SELECT NEW.flightNum, NEW.departure, f.seats, FLOOR(f.seats * f.overbooking), 0, seatMapOf(0, f.seats)
+      FROM Flight f WHERE f.flightNum = NEW.flightNum
+      ON CONFLICT (flightNum, departure) DO NOTHING;
+      --claims the booking and the seat under the row lock, so concurrent bookings can neither oversell the flight
+      --nor share a seat
+      UPDATE SeatInventory SET booked = booked + 1, changed = txid_current(),
+        seatMap = CASE WHEN NEW.seat IS NULL THEN seatMap ELSE set_bit(seatMap, NEW.seat - 1, 1) END
+      WHERE flightNum = NEW.flightNum AND departure = NEW.departure AND booked < capacity
+        AND CASE WHEN NEW.seat IS NULL THEN true
+          WHEN NEW.seat BETWEEN 1 AND seats THEN get_bit(seatMap, NEW.seat - 1) = 0 ELSE false END;
+      IF NOT FOUND THEN
+        IF NEW.seat IS NULL OR EXISTS (SELECT 1 FROM SeatInventory
+            WHERE flightNum = NEW.flightNum AND departure = NEW.departure AND booked >= capacity) THEN
+          RAISE EXCEPTION ''flight % is full on %'', NEW.flightNum, NEW.departure USING ERRCODE = ''check_violation'';
+        END IF;
+        RAISE EXCEPTION ''seat % of flight % is not free on %'', NEW.seat, NEW.flightNum, NEW.departure
+          USING ERRCODE = ''exclusion_violation'';
+      END IF;
+    END IF;
+    RETURN NULL;
+  END;
+' LANGUAGE 'plpgsql' VOLATILE;
+DROP TRIGGER IF EXISTS seatInventory ON booking;
+CREATE TRIGGER seatInventory AFTER INSERT OR DELETE OR UPDATE OF flightNum, departure, seat ON booking FOR EACH ROW Execute PROCEDURE seatInventory ( );
+
+CREATE OR REPLACE FUNCTION flightSeats ( )
+Returns "trigger" AS '
+  BEGIN
+    UPDATE SeatInventory SET seats = NEW.seats, capacity = FLOOR(NEW.seats * NEW.overbooking), seatMap = resizeSeatMap(seatMap, NEW.seats)
+    WHERE flightNum = NEW.flightNum;
+    RETURN NULL;
+  END;
+' LANGUAGE 'plpgsql' VOLATILE;
+DROP TRIGGER IF EXISTS flightSeats ON flight;
+CREATE TRIGGER flightSeats AFTER UPDATE OF seats, overbooking ON flight FOR EACH ROW Execute PROCEDURE flightSeats ( );
+
+--tell the reference data caches of every client which flights and airlines changed
+CREATE OR REPLACE FUNCTION flightChanged ( )
+Returns "trigger" AS '
+  BEGIN
+    IF TG_OP = ''INSERT'' OR TG_OP = ''UPDATE'' THEN
+      PERFORM pg_notify(''flight_changed'', NEW.flightNum);
+    END IF;
+    IF TG_OP = ''DELETE'' OR (TG_OP = ''UPDATE'' AND OLD.flightNum <> NEW.flightNum) THEN
+      PERFORM pg_notify(''flight_changed'', OLD.flightNum);
+    END IF;
+    RETURN NULL;
+  END;
+' LANGUAGE 'plpgsql' VOLATILE;
+DROP TRIGGER IF EXISTS flightChanged ON flight;
+CREATE TRIGGER flightChanged AFTER INSERT OR UPDATE OR DELETE ON flight FOR EACH ROW Execute PROCEDURE flightChanged ( );
+
+CREATE OR REPLACE FUNCTION airlineChanged ( )
+Returns "trigger" AS '
+  BEGIN
+    IF TG_OP = ''INSERT'' OR TG_OP = ''UPDATE'' THEN
+      PERFORM pg_notify(''airline_changed'', CAST(NEW.airId AS TEXT));
+    END IF;
+    IF TG_OP = ''DELETE'' OR (TG_OP = ''UPDATE'' AND OLD.airId <> NEW.airId) THEN
+      PERFORM pg_notify(''airline_changed'', CAST(OLD.airId AS TEXT));
+    END IF;
+    RETURN NULL;
+  END;
+' LANGUAGE 'plpgsql' VOLATILE;
+DROP TRIGGER IF EXISTS airlineChanged ON airline;
+CREATE TRIGGER airlineChanged AFTER INSERT OR UPDATE OR DELETE ON airline FOR EACH ROW Execute PROCEDURE airlineChanged ( );
+
+--tell the passenger id caches of every client which passport numbers changed
+CREATE OR REPLACE FUNCTION passengerChanged ( )
+Returns "trigger" AS '
+  BEGIN
+    IF TG_OP = ''INSERT'' OR (TG_OP = ''UPDATE'' AND (OLD.passNum <> NEW.passNum OR OLD.pID <> NEW.pID)) THEN
+      PERFORM pg_notify(''passenger_changed'', NEW.passNum);
+    END IF;
+    IF TG_OP = ''DELETE'' OR (TG_OP = ''UPDATE'' AND OLD.passNum <> NEW.passNum) THEN
+      PERFORM pg_notify(''passenger_changed'', OLD.passNum);
+    END IF;
+    RETURN NULL;
+  END;
+' LANGUAGE 'plpgsql' VOLATILE;
+DROP TRIGGER IF EXISTS passengerChanged ON passenger;
+CREATE TRIGGER passengerChanged AFTER INSERT OR UPDATE OR DELETE ON passenger FOR EACH ROW Execute PROCEDURE passengerChanged ( );
+
+INSERT INTO RouteRating (flightNum, scoreSum, scoreCount, avgScore)
+SELECT flightNum, SUM(score), COUNT(score), CAST(SUM(score) AS NUMERIC) / COUNT(score) FROM Ratings GROUP BY flightNum;
+
+CREATE OR REPLACE FUNCTION routeRating ( )
+Returns "trigger" AS '
+  BEGIN
+    IF TG_OP = ''DELETE'' OR TG_OP = ''UPDATE'' THEN
+      UPDATE RouteRating SET scoreSum = scoreSum - OLD.score, scoreCount = scoreCount - 1,
+        avgScore = CASE WHEN scoreCount = 1 THEN 0 ELSE CAST(scoreSum - OLD.score AS NUMERIC) / (scoreCount - 1) END
+      WHERE flightNum = OLD.flightNum;
+      DELETE FROM RouteRating WHERE flightNum = OLD.flightNum AND scoreCount = 0;
+    END IF;
+    IF TG_OP = ''INSERT'' OR TG_OP = ''UPDATE'' THEN
+      INSERT INTO RouteRating (flightNum, scoreSum, scoreCount, avgScore) VALUES (NEW.flightNum, NEW.score, 1, NEW.score)
+      ON CONFLICT (flightNum) DO UPDATE SET scoreSum = RouteRating.scoreSum + EXCLUDED.scoreSum, scoreCount = RouteRating.scoreCount + 1,
+        avgScore = CAST(RouteRating.scoreSum + EXCLUDED.scoreSum AS NUMERIC) / (RouteRating.scoreCount + 1);
+    END IF;
+    RETURN NULL;
+  END;
+' LANGUAGE 'plpgsql' VOLATILE;
+DROP TRIGGER IF EXISTS routeRating ON ratings;
+CREATE TRIGGER routeRating AFTER INSERT OR DELETE OR UPDATE OF flightNum, score ON ratings FOR EACH ROW Execute PROCEDURE routeRating ( );
 
 CREATE INDEX flight_num
 ON flight
@@ -48,8 +294,9 @@ CREATE INDEX flight_num_booking
 ON booking
 USING BTREE (flightnum);
 
-alter table booking CLUSTER ON flight_num_booking;
-cluster booking;
+--cluster month by month; later on only the months that changed need clusterBooking again
+SELECT clusterBooking(CAST(m AS DATE)) FROM generate_series((SELECT date_trunc('month', MIN(departure)) FROM booking),
+  (SELECT MAX(departure) FROM booking), interval '1 month') m;
 
 create INDEX flight_num_rating
 ON ratings
@@ -62,6 +309,19 @@ USING BTREE (pid);
 alter table ratings CLUSTER ON pid_rating;
 cluster ratings;
 
+--full-text search over the comments, see ReviewSearch.java
+CREATE INDEX ratings_search
+ON ratings
+USING GIN (search);
+
 CREATE INDEX origin
 ON flight
 USING BTREE (origin);
+
+CREATE INDEX route_rating_avg
+ON RouteRating
+USING BTREE (avgScore DESC, flightNum);
+
+CREATE INDEX seat_inventory_departure
+ON SeatInventory
+USING BTREE (departure);